@@ -37,12 +37,19 @@ public class AuthConfig implements Comparator<AuthConfig>, Comparable<AuthConfig
 	public static final String AUTH_NAME = "auth.login.name";
 	public static final String AUTH_PASSWORD = "auth.password";
 	public static final String AUTH_CLASS = "auth.classname";
+	public static final String AUTH_POOL_MIN = "auth.pool.min";
+	public static final String AUTH_POOL_MAX = "auth.pool.max";
+
+	private static final int DEFAULT_POOL_MIN = 5;
+	private static final int DEFAULT_POOL_MAX = 20;
 	
 	private Type _type;
 	private String _connectionUrl;
 	private String _loginName;
 	private String _password;
 	private String _authClassName;
+	private int _poolMin = DEFAULT_POOL_MIN;
+	private int _poolMax = DEFAULT_POOL_MAX;
 	
 	/**
 	 * No-param constructor.  User is required to set attributes.
@@ -64,14 +71,20 @@ public class AuthConfig implements Comparator<AuthConfig>, Comparable<AuthConfig
 			  setConnectionUrl(bundle.getString(AUTH_CONNECTION_URL));
 			  setLoginName(bundle.getString(AUTH_NAME));
 			  setPassword(bundle.getString(AUTH_PASSWORD));
+			  if (bundle.containsKey(AUTH_POOL_MIN)) {
+			    setPoolMin(Integer.parseInt(bundle.getString(AUTH_POOL_MIN).trim()));
+			  }
+			  if (bundle.containsKey(AUTH_POOL_MAX)) {
+			    setPoolMax(Integer.parseInt(bundle.getString(AUTH_POOL_MAX).trim()));
+			  }
 			}
 			else if (Type.CUSTOM_CLASS.equals(_type)) {
 			  setAuthClassName(bundle.getString(AUTH_CLASS));
 			}
 			assertComplete();
 		}
-		catch (AuthenticationException ae) {
-			throw new ConfigurationRuntimeException("Unable to properly configure authentication", ae);
+		catch (AuthenticationException | NumberFormatException e) {
+			throw new ConfigurationRuntimeException("Unable to properly configure authentication", e);
 		}
 	}
 	
@@ -145,6 +158,34 @@ public class AuthConfig implements Comparator<AuthConfig>, Comparable<AuthConfig
 		_authClassName = authClassName;
 	}
   
+	/**
+	 * @return minimum number of pooled connections for database authentication
+	 */
+	public int getPoolMin() {
+		return _poolMin;
+	}
+
+	/**
+	 * @param poolMin minimum number of pooled connections for database authentication
+	 */
+	public void setPoolMin(int poolMin) {
+		_poolMin = poolMin;
+	}
+
+	/**
+	 * @return maximum number of pooled connections for database authentication
+	 */
+	public int getPoolMax() {
+		return _poolMax;
+	}
+
+	/**
+	 * @param poolMax maximum number of pooled connections for database authentication
+	 */
+	public void setPoolMax(int poolMax) {
+		_poolMax = poolMax;
+	}
+
 	/**
 	 * Creates a copy of this object and returns it
 	 * 
@@ -157,6 +198,8 @@ public class AuthConfig implements Comparator<AuthConfig>, Comparable<AuthConfig
 		config.setLoginName(_loginName);
 		config.setPassword(_password);
 		config.setAuthClassName(_authClassName);
+		config.setPoolMin(_poolMin);
+		config.setPoolMax(_poolMax);
 		return config;
 	}
 	
@@ -201,11 +244,12 @@ public class AuthConfig implements Comparator<AuthConfig>, Comparable<AuthConfig
 	}
 	
 	/**
-	 * Override of hashCode to complement equals()
+	 * Override of hashCode to complement equals().  Pool sizes are not part
+	 * of a configuration's identity.
 	 */
 	@Override
 	public int hashCode() {
-		return HashCodeBuilder.reflectionHashCode(this);
+		return HashCodeBuilder.reflectionHashCode(this, "_poolMin", "_poolMax");
 	}
 	
 	/**
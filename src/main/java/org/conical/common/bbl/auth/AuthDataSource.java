@@ -1,8 +1,9 @@
 package org.conical.common.bbl.auth;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
@@ -25,7 +26,8 @@ public class AuthDataSource {
 	
 	private static final String DB_DRIVER = DatabaseType.ORACLE.getDbDriverClass();
 	
-	private static Map<AuthConfig, AuthDataSource> _dsMap = new HashMap<AuthConfig, AuthDataSource>();
+	private static Map<AuthConfig, AuthDataSource> _dsMap = new ConcurrentHashMap<AuthConfig, AuthDataSource>();
+	private static final ReentrantLock _createLock = new ReentrantLock();
 	
 	/**
 	 * Looks up the AuthDataSource for this configuration and returns it if it exists.  If not,
@@ -35,15 +37,29 @@ public class AuthDataSource {
 	 * @return an AuthDataSource for the given configuration
 	 * @throws AuthenticationException if unable to create a connection pool for this configuration
 	 */
-	public static synchronized AuthDataSource getInstance(AuthConfig config) throws AuthenticationException {
+	public static AuthDataSource getInstance(AuthConfig config) throws AuthenticationException {
 		if (!config.getType().equals(AuthConfig.Type.DATABASE)) {
 			throw new IllegalArgumentException("Cannot create Auth Data Source with non-database config (" + config.getType() + ")");
 		}
+		AuthDataSource ads = _dsMap.get(config);
+		if (ads != null) {
+			return ads;
+		}
+		_createLock.lock();
+		try {
+			return createInstance(config);
+		}
+		finally {
+			_createLock.unlock();
+		}
+	}
+
+	private static AuthDataSource createInstance(AuthConfig config) throws AuthenticationException {
 		AuthDataSource ads = _dsMap.get(config);
 		if (ads == null) {
 			try {
 				ads = new AuthDataSource(new DbConnectionBroker(DB_DRIVER, config.getConnectionUrl(), config.getLoginName(),
-						config.getPassword(), 5, 20, 5000));
+						config.getPassword(), config.getPoolMin(), config.getPoolMax(), 5000));
 			}
 			catch (IOException ioe) {
 				throw new AuthenticationException("Could not create connection pool for authentication", ioe);
@@ -11,6 +11,7 @@ import javax.sql.DataSource;
 
 import org.conical.common.bbl.db.DataSourceFactory;
 import org.conical.common.bbl.db.DbUtil;
+import org.conical.common.bbl.db.UnitOfWork;
 import org.conical.common.bbl.exception.BBLRuntimeException;
 
 /**
@@ -80,11 +81,14 @@ public class DatabaseAuthenticator implements Authenticator {
 		return getUser(username, null, false);
 	}
 	
+	// the scope is only opened and closed; getConnection() finds it on the thread
+	@SuppressWarnings("try")
 	private User getUser(String username, String password, boolean authenticate) throws AuthenticationException {
 		Connection conn = null;
 		PreparedStatement ps = null;
 		ResultSet rs = null;
-		try {
+		// share one checkout with the nested role lookup
+		try (UnitOfWork uow = UnitOfWork.begin(_ds)) {
 			conn = _ds.getConnection();
 			String query = (authenticate ? GET_AUTH_USER_ATTRIBUTES : GET_UNAUTH_USER_ATTRIBUTES);
 			ps = conn.prepareStatement(query);
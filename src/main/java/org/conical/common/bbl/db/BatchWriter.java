@@ -0,0 +1,406 @@
+package org.conical.common.bbl.db;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Writes rows into a table in bulk.  Rows passed to <code>add()</code> are
+ * buffered and written a chunk at a time with a single JDBC batch, and the
+ * transaction is committed after every few chunks, so a load of any size
+ * needs neither one round trip per row nor one huge transaction.
+ *
+ * On PostgreSQL (when the connection unwraps to the pgjdbc driver's
+ * connection) chunks are streamed with <code>COPY ... FROM STDIN</code>
+ * in CSV format instead, which is many times faster than batched inserts.
+ *
+ * A row the database rejects does not stop the load.  Each chunk is written
+ * under a savepoint; if any row in it fails, the chunk is rolled back and
+ * written again one row at a time, and rows that still fail are skipped and
+ * reported by <code>getFailures()</code>.
+ *
+ * The writer takes over the connection's transaction: auto-commit is turned
+ * off while it is open and restored by <code>close()</code>, which writes any
+ * buffered rows and commits.  The connection itself is left open.
+ *
+ * <pre>
+ * try (BatchWriter writer = new BatchWriter(conn, "visit", "subject_id", "visit_date")) {
+ *     for (Visit v : visits) {
+ *         writer.add(v.getSubjectId(), v.getDate());
+ *     }
+ * }
+ * </pre>
+ *
+ * @author rdoherty
+ */
+public class BatchWriter implements AutoCloseable {
+
+	private static final Logger LOG = LogManager.getLogger(BatchWriter.class);
+
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	private static final int DEFAULT_COMMIT_INTERVAL = 10;
+
+	/**
+	 * A row that could not be written
+	 */
+	public static class Failure {
+
+		private final long _rowNumber;
+		private final Object[] _values;
+		private final SQLException _cause;
+
+		Failure(long rowNumber, Object[] values, SQLException cause) {
+			_rowNumber = rowNumber;
+			_values = values;
+			_cause = cause;
+		}
+
+		/**
+		 * @return position of the row among all rows added to the writer, starting at 0
+		 */
+		public long getRowNumber() {
+			return _rowNumber;
+		}
+
+		/**
+		 * @return values of the row
+		 */
+		public Object[] getValues() {
+			return _values;
+		}
+
+		/**
+		 * @return error the database raised for the row
+		 */
+		public SQLException getCause() {
+			return _cause;
+		}
+	}
+
+	private final Connection _conn;
+	private final String _table;
+	private final String[] _columns;
+	private final boolean _restoreAutoCommit;
+	private CopyManager _copy;
+	private PreparedStatement _insert;
+
+	private int _batchSize = DEFAULT_BATCH_SIZE;
+	private int _commitInterval = DEFAULT_COMMIT_INTERVAL;
+
+	private final List<Object[]> _chunk = new ArrayList<Object[]>();
+	private long _firstRowInChunk = 0;
+	private int _chunksSinceCommit = 0;
+	private long _rowsWritten = 0;
+	private final List<Failure> _failures = new ArrayList<Failure>();
+	private boolean _closed = false;
+	// cleared if the driver cannot release savepoints, e.g. Oracle's
+	private boolean _releaseSavepoints = true;
+
+	/**
+	 * Creates a writer for a table
+	 *
+	 * @param conn connection to write through
+	 * @param table name of the table
+	 * @param columns names of the columns each row holds values for, in order
+	 * @throws SQLException if the connection's transaction could not be taken over
+	 */
+	public BatchWriter(Connection conn, String table, String... columns) throws SQLException {
+		if (columns.length == 0) {
+			throw new IllegalArgumentException("At least one column is required");
+		}
+		_conn = conn;
+		_table = table;
+		_columns = columns.clone();
+		if (conn.isWrapperFor(PGConnection.class)) {
+			_copy = conn.unwrap(PGConnection.class).getCopyAPI();
+		}
+		_restoreAutoCommit = conn.getAutoCommit();
+		if (_restoreAutoCommit) {
+			conn.setAutoCommit(false);
+		}
+	}
+
+	/**
+	 * Sets the number of rows written together in one batch or COPY.
+	 * Default is 1000.
+	 *
+	 * @param rows rows per chunk
+	 * @return this writer
+	 */
+	public BatchWriter setBatchSize(int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + rows);
+		}
+		_batchSize = rows;
+		return this;
+	}
+
+	/**
+	 * Sets the number of chunks written between commits.  Default is 10.
+	 *
+	 * @param chunks chunks per transaction
+	 * @return this writer
+	 */
+	public BatchWriter setCommitInterval(int chunks) {
+		if (chunks < 1) {
+			throw new IllegalArgumentException("Commit interval must be positive: " + chunks);
+		}
+		_commitInterval = chunks;
+		return this;
+	}
+
+	/**
+	 * Turns the PostgreSQL COPY fast path on or off.  It is on by default
+	 * whenever the connection is a PostgreSQL connection; turn it off to
+	 * load through batched inserts, e.g. so table triggers see ordinary inserts.
+	 *
+	 * @param useCopy whether to load with COPY where possible
+	 * @return this writer
+	 * @throws SQLException if the connection could not be inspected
+	 */
+	public BatchWriter setUseCopy(boolean useCopy) throws SQLException {
+		_copy = (useCopy && _conn.isWrapperFor(PGConnection.class) ?
+				_conn.unwrap(PGConnection.class).getCopyAPI() : null);
+		return this;
+	}
+
+	/**
+	 * Adds a row, writing the buffered chunk if it is full
+	 *
+	 * @param values values of the row, one per column
+	 * @throws SQLException if the database could not be written to at all;
+	 * errors caused by individual rows are reported by <code>getFailures()</code>
+	 */
+	public void add(Object... values) throws SQLException {
+		if (_closed) {
+			throw new SQLException("BatchWriter has been closed");
+		}
+		if (values.length != _columns.length) {
+			throw new IllegalArgumentException("Row has " + values.length + " values but " +
+					_columns.length + " columns were given");
+		}
+		_chunk.add(values);
+		if (_chunk.size() >= _batchSize) {
+			writeChunk();
+		}
+	}
+
+	/**
+	 * Writes any buffered rows and commits
+	 *
+	 * @throws SQLException if the rows could not be written or committed
+	 */
+	public void flush() throws SQLException {
+		writeChunk();
+		if (_chunksSinceCommit > 0) {
+			_conn.commit();
+			_chunksSinceCommit = 0;
+		}
+	}
+
+	/**
+	 * @return number of rows written so far
+	 */
+	public long getRowsWritten() {
+		return _rowsWritten;
+	}
+
+	/**
+	 * @return rows the database rejected so far, in the order they were added
+	 */
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(_failures);
+	}
+
+	/**
+	 * Writes any buffered rows, commits, and gives the connection's
+	 * transaction back to the caller.  If the rows cannot be written, the
+	 * uncommitted ones are rolled back before auto-commit is restored, so
+	 * restoring it never commits a partial chunk.
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		try {
+			flush();
+		}
+		catch (SQLException | RuntimeException e) {
+			// if the rollback fails, auto-commit is left off rather than
+			// committing whatever the rollback could not undo
+			try {
+				_conn.rollback();
+				restoreAutoCommit();
+			}
+			catch (SQLException | RuntimeException cleanup) {
+				e.addSuppressed(cleanup);
+			}
+			throw e;
+		}
+		finally {
+			DbUtil.close(_insert);
+		}
+		restoreAutoCommit();
+		if (!_failures.isEmpty()) {
+			LOG.warn(_failures.size() + " of " + (_rowsWritten + _failures.size()) + " rows could not be written to " + _table);
+		}
+	}
+
+	private void restoreAutoCommit() throws SQLException {
+		if (_restoreAutoCommit) {
+			_conn.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Writes the buffered rows under a savepoint, falling back to writing
+	 * them one at a time if any of them fails
+	 */
+	private void writeChunk() throws SQLException {
+		if (_chunk.isEmpty()) {
+			return;
+		}
+		Savepoint savepoint = _conn.setSavepoint();
+		try {
+			if (_copy != null) {
+				copyChunk();
+			}
+			else {
+				batchChunk();
+			}
+			release(savepoint);
+			_rowsWritten += _chunk.size();
+		}
+		catch (SQLException e) {
+			_conn.rollback(savepoint);
+			writeRows();
+		}
+		_firstRowInChunk += _chunk.size();
+		_chunk.clear();
+		if (++_chunksSinceCommit >= _commitInterval) {
+			_conn.commit();
+			_chunksSinceCommit = 0;
+		}
+	}
+
+	private void batchChunk() throws SQLException {
+		PreparedStatement ps = getInsert();
+		try {
+			for (Object[] row : _chunk) {
+				DbUtil.bindParameters(ps, row);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		}
+		finally {
+			ps.clearBatch();
+		}
+	}
+
+	private void copyChunk() throws SQLException {
+		StringBuilder csv = new StringBuilder(_chunk.size() * _columns.length * 16);
+		for (Object[] row : _chunk) {
+			for (int i = 0; i < row.length; i++) {
+				if (i > 0) {
+					csv.append(',');
+				}
+				appendCsv(csv, row[i]);
+			}
+			csv.append('\n');
+		}
+		String sql = "COPY " + _table + " (" + String.join(", ", _columns) + ") FROM STDIN WITH (FORMAT csv)";
+		try {
+			_copy.copyIn(sql, new StringReader(csv.toString()));
+		}
+		catch (IOException e) {
+			throw new SQLException("Unable to stream rows to " + _table, e);
+		}
+	}
+
+	/**
+	 * Appends a value in PostgreSQL's CSV format: nulls as nothing, other
+	 * values quoted so they are never mistaken for null.  Values are first
+	 * converted as they would be for batched inserts, so both paths store
+	 * the same thing.
+	 */
+	private static void appendCsv(StringBuilder csv, Object value) {
+		value = DbUtil.toSqlValue(value);
+		if (value == null) {
+			return;
+		}
+		String text;
+		if (value instanceof byte[]) {
+			StringBuilder hex = new StringBuilder("\\x");
+			for (byte b : (byte[])value) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			text = hex.toString();
+		}
+		else {
+			text = value.toString();
+		}
+		csv.append('"').append(text.replace("\"", "\"\"")).append('"');
+	}
+
+	/**
+	 * Writes the buffered rows one at a time, each under its own savepoint,
+	 * recording the rows that fail
+	 */
+	private void writeRows() throws SQLException {
+		PreparedStatement ps = getInsert();
+		for (int i = 0; i < _chunk.size(); i++) {
+			Savepoint savepoint = _conn.setSavepoint();
+			try {
+				DbUtil.bindParameters(ps, _chunk.get(i));
+				ps.executeUpdate();
+				release(savepoint);
+				_rowsWritten++;
+			}
+			catch (SQLException e) {
+				_conn.rollback(savepoint);
+				_failures.add(new Failure(_firstRowInChunk + i, _chunk.get(i), e));
+			}
+		}
+	}
+
+	/**
+	 * Releases a savepoint once the work under it has succeeded, so the
+	 * database need not keep it until the transaction ends
+	 */
+	private void release(Savepoint savepoint) throws SQLException {
+		if (_releaseSavepoints) {
+			try {
+				_conn.releaseSavepoint(savepoint);
+			}
+			catch (SQLFeatureNotSupportedException e) {
+				_releaseSavepoints = false;
+			}
+		}
+	}
+
+	private PreparedStatement getInsert() throws SQLException {
+		if (_insert == null) {
+			StringBuilder sql = new StringBuilder("insert into ").append(_table)
+					.append(" (").append(String.join(", ", _columns)).append(") values (");
+			for (int i = 0; i < _columns.length; i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			_insert = _conn.prepareStatement(sql.append(')').toString());
+		}
+		return _insert;
+	}
+}
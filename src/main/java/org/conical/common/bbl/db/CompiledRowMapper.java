@@ -0,0 +1,330 @@
+package org.conical.common.bbl.db;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.conical.common.bbl.util.EnumUtil;
+
+/**
+ * Maps result set rows to instances of a class by matching column labels to
+ * the class's properties.  Labels are matched ignoring case and underscores,
+ * so a column <code>first_name</code> fills a property <code>firstName</code>.
+ * Ordinary classes need a no-argument constructor and are filled through
+ * their setters; records are built through their canonical constructor, with
+ * components that have no matching column set to null or zero.  Columns that
+ * match nothing are ignored.
+ *
+ * The class is inspected once, the first time a mapper for it is requested.
+ * Each time the mapper sees a new result set it resolves the result set's
+ * columns against the class and composes a single method handle that reads
+ * every matched column with the <code>ResultSet</code> getter for its
+ * property's type and builds the object.  Mapping a row is then one handle
+ * invocation: no reflection, no column lookup by name, and primitive columns
+ * are passed to their setters or constructor parameters without boxing.
+ *
+ * <pre>
+ * RowMapper&lt;Subject&gt; mapper = CompiledRowMapper.of(Subject.class);
+ * try (Stream&lt;Subject&gt; subjects = DbUtil.stream(ds, SQL, mapper)) { ... }
+ * </pre>
+ *
+ * Mappers are thread-safe.
+ *
+ * @param <T> type the rows are mapped to
+ * @author rdoherty
+ */
+public class CompiledRowMapper<T> implements RowMapper<T> {
+
+	private static final MethodType ROW_TYPE = MethodType.methodType(Object.class, ResultSet.class);
+
+	private static final ClassValue<Target> TARGETS = new ClassValue<Target>() {
+		@Override
+		protected Target computeValue(Class<?> type) {
+			return new Target(type);
+		}
+	};
+
+	/**
+	 * What was learned about a class when it was inspected: how to build it
+	 * and the properties rows can fill
+	 */
+	private static class Target {
+
+		// no-argument constructor of a bean, or canonical constructor of a record
+		private final MethodHandle _constructor;
+		private final boolean _isRecord;
+		// setter, or constructor parameter index, of each property by normalized name
+		private final Map<String, MethodHandle> _setters = new HashMap<String, MethodHandle>();
+		private final Map<String, Integer> _params = new HashMap<String, Integer>();
+
+		Target(Class<?> type) {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+				_isRecord = type.isRecord();
+				if (_isRecord) {
+					RecordComponent[] components = type.getRecordComponents();
+					Class<?>[] types = new Class<?>[components.length];
+					for (int i = 0; i < components.length; i++) {
+						types[i] = components[i].getType();
+						_params.put(normalize(components[i].getName()), i);
+					}
+					_constructor = lookup.findConstructor(type, MethodType.methodType(void.class, types));
+				}
+				else {
+					_constructor = lookup.findConstructor(type, MethodType.methodType(void.class));
+					for (Method method : type.getMethods()) {
+						if (isSetter(method)) {
+							String property = normalize(method.getName().substring(3));
+							MethodHandle setter = lookup.unreflect(method);
+							// of overloaded setters, prefer the one matching the getter
+							if (!_setters.containsKey(property) || matchesGetter(type, method)) {
+								_setters.put(property, setter.asType(MethodType.methodType(void.class, type,
+										method.getParameterTypes()[0])));
+							}
+						}
+					}
+				}
+			}
+			catch (NoSuchMethodException | IllegalAccessException e) {
+				throw new IllegalArgumentException("Cannot map rows to " + type.getName() +
+						"; it needs an accessible " + (type.isRecord() ? "canonical" : "no-argument") + " constructor", e);
+			}
+		}
+
+		private static boolean isSetter(Method method) {
+			return method.getName().startsWith("set") && method.getName().length() > 3 &&
+					method.getParameterCount() == 1 && !Modifier.isStatic(method.getModifiers());
+		}
+
+		private static boolean matchesGetter(Class<?> type, Method setter) {
+			String property = setter.getName().substring(3);
+			for (String prefix : new String[]{ "get", "is" }) {
+				try {
+					if (type.getMethod(prefix + property).getReturnType() == setter.getParameterTypes()[0]) {
+						return true;
+					}
+				}
+				catch (NoSuchMethodException e) {
+					// try next prefix
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Composes a handle of type (ResultSet)Object that builds an object
+		 * from the current row of result sets with the passed column labels
+		 */
+		MethodHandle compile(String[] labels) {
+			return (_isRecord ? compileRecord(labels) : compileBean(labels)).asType(ROW_TYPE);
+		}
+
+		private MethodHandle compileRecord(String[] labels) {
+			MethodType ctorType = _constructor.type();
+			MethodHandle[] args = new MethodHandle[ctorType.parameterCount()];
+			for (int col = 1; col < labels.length; col++) {
+				Integer param = _params.get(normalize(labels[col]));
+				if (param != null) {
+					args[param] = columnReader(col, ctorType.parameterType(param));
+				}
+			}
+			for (int i = 0; i < args.length; i++) {
+				if (args[i] == null) {
+					args[i] = MethodHandles.dropArguments(MethodHandles.zero(ctorType.parameterType(i)), 0, ResultSet.class);
+				}
+			}
+			// (ResultSet, ResultSet, ...)T, then every parameter fed the same result set
+			MethodHandle ctor = MethodHandles.filterArguments(_constructor, 0, args);
+			return MethodHandles.permuteArguments(ctor,
+					MethodType.methodType(ctorType.returnType(), ResultSet.class), new int[args.length]);
+		}
+
+		private MethodHandle compileBean(String[] labels) {
+			Class<?> type = _constructor.type().returnType();
+			// (ResultSet)T that only constructs the bean
+			MethodHandle build = MethodHandles.dropArguments(_constructor, 0, ResultSet.class);
+			for (int col = 1; col < labels.length; col++) {
+				MethodHandle setter = _setters.get(normalize(labels[col]));
+				if (setter == null) {
+					continue;
+				}
+				// (T, ResultSet)void that sets the property from the column
+				MethodHandle set = MethodHandles.filterArguments(setter, 1,
+						columnReader(col, setter.type().parameterType(1)));
+				// (T, ResultSet)T that sets the property and returns the bean
+				MethodHandle setAndReturn = MethodHandles.foldArguments(
+						MethodHandles.dropArguments(MethodHandles.identity(type), 1, ResultSet.class), set);
+				// (ResultSet)T that builds the bean so far, then sets the property
+				build = MethodHandles.permuteArguments(MethodHandles.filterArguments(setAndReturn, 0, build),
+						MethodType.methodType(type, ResultSet.class), 0, 0);
+			}
+			return build;
+		}
+	}
+
+	/**
+	 * Handle compiled for the column labels of a result set
+	 */
+	private static class Binding {
+
+		private final WeakReference<ResultSet> _rs;
+		private final String[] _labels;
+		private final MethodHandle _handle;
+
+		Binding(ResultSet rs, String[] labels, MethodHandle handle) {
+			_rs = new WeakReference<ResultSet>(rs);
+			_labels = labels;
+			_handle = handle;
+		}
+	}
+
+	/**
+	 * Returns a mapper that builds instances of the passed class.  The class
+	 * is inspected on the first call for it; later calls reuse what was
+	 * learned.
+	 *
+	 * @param type class rows are mapped to
+	 * @return new mapper
+	 * @throws IllegalArgumentException if the class cannot be constructed by the mapper
+	 */
+	public static <T> CompiledRowMapper<T> of(Class<T> type) {
+		return new CompiledRowMapper<T>(TARGETS.get(type));
+	}
+
+	private final Target _target;
+	// handle for the result set last seen
+	private volatile Binding _binding;
+
+	private CompiledRowMapper(Target target) {
+		_target = target;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	@SuppressWarnings("unchecked")
+	public T mapRow(ResultSet rs) throws SQLException {
+		Binding binding = _binding;
+		if (binding == null || binding._rs.get() != rs) {
+			binding = bind(rs);
+		}
+		try {
+			return (T)(Object)binding._handle.invokeExact(rs);
+		}
+		catch (SQLException | RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new SQLException("Unable to map row", e);
+		}
+	}
+
+	/**
+	 * Resolves the columns of a newly seen result set, reusing the last
+	 * compiled handle if the result set has the same column labels
+	 */
+	private Binding bind(ResultSet rs) throws SQLException {
+		ResultSetMetaData meta = rs.getMetaData();
+		String[] labels = new String[meta.getColumnCount() + 1];
+		for (int col = 1; col < labels.length; col++) {
+			labels[col] = meta.getColumnLabel(col);
+		}
+		Binding last = _binding;
+		MethodHandle handle = (last != null && Arrays.equals(labels, last._labels) ?
+				last._handle : _target.compile(labels));
+		Binding binding = new Binding(rs, labels, handle);
+		_binding = binding;
+		return binding;
+	}
+
+	/**
+	 * @return the part of a property or column name that is matched: lower
+	 * case, without underscores
+	 */
+	private static String normalize(String name) {
+		return name.replace("_", "").toLowerCase();
+	}
+
+	/**
+	 * Returns a handle of type (ResultSet)V that reads the passed column with
+	 * the getter suited to type V.  Chars are read as the first character of
+	 * the column's string value, and primitive wrappers with the primitive
+	 * getter, giving null when the column is null.
+	 */
+	private static MethodHandle columnReader(int col, Class<?> type) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodHandle getter;
+			if (type == char.class || type == Character.class) {
+				getter = MethodHandles.filterReturnValue(lookup.findVirtual(ResultSet.class, "getString",
+						MethodType.methodType(String.class, int.class)),
+						MethodHandles.lookup().findStatic(CompiledRowMapper.class, (type == char.class ? "toChar" : "toCharacter"),
+								MethodType.methodType(type, String.class)));
+			}
+			else if (type.isPrimitive()) {
+				String name = "get" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+				getter = lookup.findVirtual(ResultSet.class, name, MethodType.methodType(type, int.class));
+			}
+			else if (MethodType.methodType(type).hasWrappers()) {
+				// the primitive getter reads zero for null; wasNull() tells the two apart
+				MethodHandle primitive = columnReader(col, MethodType.methodType(type).unwrap().returnType())
+						.asType(MethodType.methodType(Object.class, ResultSet.class));
+				MethodHandle nullIfWasNull = MethodHandles.lookup().findStatic(CompiledRowMapper.class, "nullIfWasNull",
+						MethodType.methodType(Object.class, Object.class, ResultSet.class));
+				getter = MethodHandles.permuteArguments(MethodHandles.collectArguments(nullIfWasNull, 0, primitive),
+						MethodType.methodType(Object.class, ResultSet.class), 0, 0);
+				return getter.asType(MethodType.methodType(type, ResultSet.class));
+			}
+			else if (type == String.class) {
+				getter = lookup.findVirtual(ResultSet.class, "getString", MethodType.methodType(String.class, int.class));
+			}
+			else if (type == BigDecimal.class) {
+				getter = lookup.findVirtual(ResultSet.class, "getBigDecimal", MethodType.methodType(BigDecimal.class, int.class));
+			}
+			else if (type == Date.class || type == java.sql.Timestamp.class) {
+				getter = lookup.findVirtual(ResultSet.class, "getTimestamp", MethodType.methodType(java.sql.Timestamp.class, int.class));
+			}
+			else if (type == java.sql.Date.class) {
+				getter = lookup.findVirtual(ResultSet.class, "getDate", MethodType.methodType(java.sql.Date.class, int.class));
+			}
+			else if (type.isEnum()) {
+				MethodHandle toEnum = MethodHandles.insertArguments(lookup.findStatic(EnumUtil.class, "getNullSafeEnum",
+						MethodType.methodType(Enum.class, Class.class, String.class)), 0, type);
+				getter = MethodHandles.filterReturnValue(lookup.findVirtual(ResultSet.class, "getString",
+						MethodType.methodType(String.class, int.class)), toEnum);
+			}
+			else {
+				getter = MethodHandles.insertArguments(lookup.findVirtual(ResultSet.class, "getObject",
+						MethodType.methodType(Object.class, int.class, Class.class)), 2, type);
+			}
+			getter = MethodHandles.insertArguments(getter, 1, col);
+			return getter.asType(MethodType.methodType(type, ResultSet.class));
+		}
+		catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalStateException("ResultSet has no getter for " + type.getName(), e);
+		}
+	}
+
+	private static char toChar(String value) {
+		return (value == null || value.isEmpty() ? '\0' : value.charAt(0));
+	}
+
+	private static Character toCharacter(String value) {
+		return (value == null || value.isEmpty() ? null : value.charAt(0));
+	}
+
+	private static Object nullIfWasNull(Object value, ResultSet rs) throws SQLException {
+		return (rs.wasNull() ? null : value);
+	}
+}
@@ -0,0 +1,464 @@
+package org.conical.common.bbl.db;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free bookkeeping of the connection slots owned by a
+ * <code>DbConnectionBroker</code>.  Each slot carries a state that is only
+ * ever changed with compare-and-set, so checkout and return never take a
+ * monitor.  Each thread additionally remembers the last few slots it returned
+ * and tries those first on its next checkout, which keeps a request thread
+ * on a warm connection and keeps threads off each other's slots.
+ *
+ * The bag knows nothing about the physical connections themselves; the broker
+ * keeps those in arrays indexed by slot and publishes a slot (making it
+ * visible to borrowers) only after the connection in it is fully set up.
+ *
+ * Each slot's state word also carries a generation that is incremented every
+ * time the slot is handed to a borrower.  A checkout is identified by a
+ * ticket combining slot and generation, so a borrower returning a slot that
+ * has since been reclaimed and handed to someone else is detected and
+ * ignored rather than freeing the other borrower's connection.
+ *
+ * Borrowers that find no free slot may queue as waiters.  A slot freed while
+ * waiters are queued is handed directly to the longest waiting borrower, and
+ * waiters park rather than poll or block on a monitor.
+ *
+ * @author rdoherty
+ */
+class ConnectionBag {
+
+	/** slot holds an idle connection available for checkout */
+	static final int STATE_FREE = 0;
+	/** slot holds a connection checked out by a borrower */
+	static final int STATE_IN_USE = 1;
+	/** slot is held by the broker itself (connection creation or housekeeping) */
+	static final int STATE_RESERVED = 2;
+	/** slot holds no connection (never opened, failed to open, or closed) */
+	static final int STATE_EMPTY = 3;
+
+	/** returned in place of a ticket when no slot could be checked out */
+	static final long NO_TICKET = -1;
+	/** returned by <code>await</code> when the wait queue is already full */
+	static final long QUEUE_FULL = -2;
+	/** returned by <code>await</code> when a slot was emptied and the caller may open a connection in it */
+	static final long ROOM = -4;
+
+	private static final long PENDING = -3;
+
+	private static final int STATE_BITS = 2;
+	private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+	private static final int SLOT_BITS = 16;
+	private static final long SLOT_MASK = (1 << SLOT_BITS) - 1;
+	private static final int AFFINITY_SIZE = 4;
+
+	private final AtomicLongArray _states;
+	private final AtomicInteger _slotCount = new AtomicInteger();
+	private final ThreadLocal<int[]> _affinity;
+	private final ConcurrentLinkedDeque<Waiter> _waiters = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger _waiterCount = new AtomicInteger();
+
+	/**
+	 * A borrower parked in the wait queue.  A slot is handed over by setting
+	 * the waiter's ticket; a waiter that gives up sets NO_TICKET instead, so
+	 * exactly one of the two happens.
+	 */
+	private static final class Waiter {
+
+		private final Thread _thread = Thread.currentThread();
+		private final AtomicLong _ticket = new AtomicLong(PENDING);
+
+		boolean offer(long ticket) {
+			if (_ticket.compareAndSet(PENDING, ticket)) {
+				LockSupport.unpark(_thread);
+				return true;
+			}
+			return false;
+		}
+
+		boolean cancel() {
+			if (_ticket.compareAndSet(PENDING, NO_TICKET)) {
+				LockSupport.unpark(_thread);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a bag with room for at most <code>capacity</code> slots.
+	 *
+	 * @param capacity maximum number of slots
+	 */
+	ConnectionBag(int capacity) {
+		if (capacity > SLOT_MASK + 1) {
+			throw new IllegalArgumentException("Pool cannot hold more than " + (SLOT_MASK + 1) + " connections.");
+		}
+		_states = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			_states.set(i, word(0, STATE_EMPTY));
+		}
+		_affinity = ThreadLocal.withInitial(() -> {
+			int[] recent = new int[AFFINITY_SIZE];
+			for (int i = 0; i < AFFINITY_SIZE; i++) {
+				recent[i] = -1;
+			}
+			return recent;
+		});
+	}
+
+	/**
+	 * @param ticket checkout ticket
+	 * @return slot the ticket refers to
+	 */
+	static int slotOf(long ticket) {
+		return (int)(ticket & SLOT_MASK);
+	}
+
+	/**
+	 * @param ticket checkout ticket
+	 * @return generation of the slot at the time of the checkout
+	 */
+	static long generationOf(long ticket) {
+		return ticket >>> SLOT_BITS;
+	}
+
+	private static long word(long generation, int state) {
+		return (generation << STATE_BITS) | state;
+	}
+
+	private static int stateOf(long word) {
+		return (int)(word & STATE_MASK);
+	}
+
+	/**
+	 * @param slot slot index
+	 * @param generation generation of the checkout
+	 * @return ticket identifying that checkout
+	 */
+	static long ticketOf(int slot, long generation) {
+		return (generation << SLOT_BITS) | slot;
+	}
+
+	private static long ticket(int slot, long word) {
+		return ticketOf(slot, word >>> STATE_BITS);
+	}
+
+	/**
+	 * Atomically moves a slot from one state to another, keeping its generation
+	 * unless the slot is being handed to a borrower.
+	 */
+	private long transition(int slot, int fromState, int toState) {
+		long current = _states.get(slot);
+		if (stateOf(current) != fromState) {
+			return NO_TICKET;
+		}
+		long generation = current >>> STATE_BITS;
+		long next = word(toState == STATE_IN_USE ? generation + 1 : generation, toState);
+		return (_states.compareAndSet(slot, current, next) ? ticket(slot, next) : NO_TICKET);
+	}
+
+	/**
+	 * Attempts to check out a free slot: first one recently returned by the
+	 * calling thread, then any free slot, starting the scan at a random
+	 * position so concurrent borrowers spread over the pool.
+	 *
+	 * @return ticket for the slot now owned by the caller, or NO_TICKET if none are free
+	 */
+	long borrow() {
+		long ticket;
+		for (int slot : _affinity.get()) {
+			if (slot >= 0 && (ticket = transition(slot, STATE_FREE, STATE_IN_USE)) != NO_TICKET) {
+				return ticket;
+			}
+		}
+		int count = _slotCount.get();
+		if (count == 0) {
+			return NO_TICKET;
+		}
+		int start = ThreadLocalRandom.current().nextInt(count);
+		for (int i = 0; i < count; i++) {
+			int slot = (start + i) % count;
+			if ((ticket = transition(slot, STATE_FREE, STATE_IN_USE)) != NO_TICKET) {
+				return ticket;
+			}
+		}
+		return NO_TICKET;
+	}
+
+	/**
+	 * Returns a checked out slot to the bag and records it as the calling
+	 * thread's most recently used slot.  The return is ignored unless the
+	 * slot is still checked out under the given ticket.
+	 *
+	 * @param ticket ticket received when the slot was checked out
+	 * @return true if the slot was in use under this ticket and is now free,
+	 * false if it had already been returned or taken back by the broker
+	 */
+	boolean requite(long ticket) {
+		int slot = slotOf(ticket);
+		long generation = generationOf(ticket);
+		if (!_states.compareAndSet(slot, word(generation, STATE_IN_USE), word(generation, STATE_FREE))) {
+			return false;
+		}
+		if (!_waiters.isEmpty()) {
+			handOff(slot);
+			return true;
+		}
+		int[] recent = _affinity.get();
+		if (recent[0] != slot) {
+			int i = 1;
+			while (i < AFFINITY_SIZE - 1 && recent[i] != slot) {
+				i++;
+			}
+			System.arraycopy(recent, 0, recent, 1, i);
+			recent[0] = slot;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for a slot to be handed over by a returning borrower.  Waiters are
+	 * served in arrival order.
+	 *
+	 * @param timeoutNanos maximum time to wait
+	 * @param maxWaiters maximum number of borrowers allowed to wait at once
+	 * @return ticket for the slot now owned by the caller, NO_TICKET if the wait
+	 * timed out or was cancelled, QUEUE_FULL if too many borrowers are waiting,
+	 * or ROOM if the caller was woken by <code>wakeForRoom</code>
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	long await(long timeoutNanos, int maxWaiters) throws InterruptedException {
+		if (_waiterCount.incrementAndGet() > maxWaiters) {
+			_waiterCount.decrementAndGet();
+			return QUEUE_FULL;
+		}
+		Waiter waiter = new Waiter();
+		_waiters.offerLast(waiter);
+		try {
+			// a slot may have been freed between the caller's last scan and
+			// queueing; nobody would hand that one over, so look once more
+			long ticket = borrow();
+			if (ticket != NO_TICKET) {
+				if (waiter.cancel()) {
+					return ticket;
+				}
+				requite(ticket);
+				return waiter._ticket.get();
+			}
+			long deadline = System.nanoTime() + timeoutNanos;
+			while ((ticket = waiter._ticket.get()) == PENDING) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if (Thread.interrupted()) {
+					if (waiter.cancel()) {
+						throw new InterruptedException();
+					}
+					// got a slot just as we were interrupted; keep it
+					Thread.currentThread().interrupt();
+					return waiter._ticket.get();
+				}
+			}
+			return (waiter.cancel() ? NO_TICKET : waiter._ticket.get());
+		}
+		finally {
+			_waiters.remove(waiter);
+			_waiterCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Hands a just freed slot to the longest waiting borrower, if any.  If a
+	 * borrower scanning the bag took the slot first, the waiter stays at the
+	 * head of the queue for the next return.
+	 */
+	private void handOff(int slot) {
+		Waiter waiter;
+		while ((waiter = _waiters.pollFirst()) != null) {
+			long ticket = transition(slot, STATE_FREE, STATE_IN_USE);
+			if (ticket == NO_TICKET) {
+				_waiters.offerFirst(waiter);
+				return;
+			}
+			if (waiter.offer(ticket)) {
+				return;
+			}
+			// waiter gave up in the meantime; free the slot again for the next one
+			transition(slot, STATE_IN_USE, STATE_FREE);
+		}
+	}
+
+	/**
+	 * Wakes the longest waiting borrower with ROOM instead of a slot, so it
+	 * can open a connection in a slot that has just been emptied
+	 */
+	void wakeForRoom() {
+		Waiter waiter;
+		while ((waiter = _waiters.pollFirst()) != null) {
+			if (waiter.offer(ROOM)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Wakes every waiting borrower without a slot, e.g. when the pool shuts down.
+	 */
+	void cancelWaiters() {
+		Waiter waiter;
+		while ((waiter = _waiters.pollFirst()) != null) {
+			waiter.cancel();
+		}
+	}
+
+	/**
+	 * @return number of borrowers currently waiting for a slot
+	 */
+	int getWaiterCount() {
+		return _waiterCount.get();
+	}
+
+	/**
+	 * Claims a slot in which the caller may open a new connection.  Slots
+	 * emptied earlier are reused before the bag grows.  The claimed slot is
+	 * left in the reserved state until passed to <code>publish</code> or
+	 * <code>discard</code>.
+	 *
+	 * @param maxSlots maximum number of slots the bag may grow to
+	 * @return claimed slot, or -1 if the bag is full
+	 */
+	int reserveEmpty(int maxSlots) {
+		while (true) {
+			int count = _slotCount.get();
+			for (int slot = 0; slot < count; slot++) {
+				if (transition(slot, STATE_EMPTY, STATE_RESERVED) != NO_TICKET) {
+					return slot;
+				}
+			}
+			if (count >= Math.min(maxSlots, _states.length())) {
+				return -1;
+			}
+			if (_slotCount.compareAndSet(count, count + 1) &&
+					transition(count, STATE_EMPTY, STATE_RESERVED) != NO_TICKET) {
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * Takes an idle slot offline for housekeeping.
+	 *
+	 * @param slot slot to reserve
+	 * @return true if the slot was free and is now reserved
+	 */
+	boolean reserve(int slot) {
+		return transition(slot, STATE_FREE, STATE_RESERVED) != NO_TICKET;
+	}
+
+	/**
+	 * Takes a slot back from the borrower holding the given ticket, for
+	 * example because the borrower found its connection unusable.
+	 *
+	 * @param ticket ticket received when the slot was checked out
+	 * @return true if the slot was in use under this ticket and is now reserved
+	 */
+	boolean retire(long ticket) {
+		int slot = slotOf(ticket);
+		long generation = generationOf(ticket);
+		return _states.compareAndSet(slot, word(generation, STATE_IN_USE), word(generation, STATE_RESERVED));
+	}
+
+	/**
+	 * @param ticket ticket received when a slot was checked out
+	 * @return true if the slot is still checked out under this ticket
+	 */
+	boolean isCheckedOut(long ticket) {
+		return _states.get(slotOf(ticket)) == word(generationOf(ticket), STATE_IN_USE);
+	}
+
+	/**
+	 * Takes a checked out slot away from its borrower.
+	 *
+	 * @param slot slot to reclaim
+	 * @return true if the slot was in use and is now reserved
+	 */
+	boolean reclaim(int slot) {
+		return transition(slot, STATE_IN_USE, STATE_RESERVED) != NO_TICKET;
+	}
+
+	/**
+	 * Makes a reserved slot available to borrowers.
+	 *
+	 * @param slot reserved slot
+	 */
+	void publish(int slot) {
+		if (transition(slot, STATE_RESERVED, STATE_FREE) != NO_TICKET && !_waiters.isEmpty()) {
+			handOff(slot);
+		}
+	}
+
+	/**
+	 * Hands a reserved slot directly to the calling thread as a checkout.
+	 *
+	 * @param slot reserved slot
+	 * @return ticket for the checkout
+	 */
+	long lend(int slot) {
+		return transition(slot, STATE_RESERVED, STATE_IN_USE);
+	}
+
+	/**
+	 * Marks a reserved slot as holding no connection.
+	 *
+	 * @param slot reserved slot
+	 */
+	void discard(int slot) {
+		transition(slot, STATE_RESERVED, STATE_EMPTY);
+	}
+
+	/**
+	 * @param slot slot index
+	 * @return current state of the slot
+	 */
+	int getState(int slot) {
+		return stateOf(_states.get(slot));
+	}
+
+	/**
+	 * @param slot slot index
+	 * @return current generation of the slot
+	 */
+	long getGeneration(int slot) {
+		return _states.get(slot) >>> STATE_BITS;
+	}
+
+	/**
+	 * @return number of slots ever claimed; all slot indexes are below this value
+	 */
+	int getSlotCount() {
+		return _slotCount.get();
+	}
+
+	/**
+	 * @param state slot state to count
+	 * @return number of slots currently in the given state
+	 */
+	int count(int state) {
+		int n = 0;
+		int count = _slotCount.get();
+		for (int slot = 0; slot < count; slot++) {
+			if (getState(slot) == state) {
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,165 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A set of connections checked out together by
+ * <code>DbConnectionBroker.leaseConnections()</code>.  Closing the lease
+ * returns all of them to the pool.
+ *
+ * <code>runPartitioned()</code> runs a list of tasks across the leased
+ * connections in parallel, each connection being used by one task at a time:
+ *
+ * <pre>
+ * try (ConnectionLease lease = broker.leaseConnections(4, 30000)) {
+ *     List&lt;Integer&gt; counts = lease.runPartitioned(tasks);
+ * }
+ * </pre>
+ *
+ * @author rdoherty
+ */
+public class ConnectionLease implements AutoCloseable {
+
+	private static final Logger LOG = LogManager.getLogger(ConnectionLease.class);
+
+	/**
+	 * A unit of work to run on one of the leased connections
+	 *
+	 * @param <T> type of the task's result
+	 */
+	@FunctionalInterface
+	public interface Task<T> {
+		T run(Connection conn) throws SQLException;
+	}
+
+	private final List<Connection> _conns;
+
+	ConnectionLease(List<Connection> conns) {
+		_conns = Collections.unmodifiableList(conns);
+	}
+
+	/**
+	 * @return the leased connections
+	 */
+	public List<Connection> getConnections() {
+		return _conns;
+	}
+
+	/**
+	 * @return number of leased connections
+	 */
+	public int size() {
+		return _conns.size();
+	}
+
+	/**
+	 * Runs the passed tasks on a fork-join pool with one worker per leased
+	 * connection.  Each worker takes the next task not yet started and runs
+	 * it on its own connection until no tasks are left, so there may be more
+	 * tasks than connections.  If a task fails, tasks not yet started are
+	 * skipped, and once the running ones have finished the first failure is
+	 * thrown with any later ones attached as suppressed exceptions.
+	 *
+	 * @param tasks tasks to run
+	 * @return results of the tasks, in the order the tasks were passed
+	 * @throws SQLException if a task failed
+	 */
+	public <T> List<T> runPartitioned(List<? extends Task<? extends T>> tasks) throws SQLException {
+		Object[] results = new Object[tasks.size()];
+		List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		AtomicInteger next = new AtomicInteger();
+		int workers = Math.min(_conns.size(), tasks.size());
+		ForkJoinPool pool = new ForkJoinPool(Math.max(workers, 1));
+		try {
+			List<ForkJoinTask<?>> running = new ArrayList<ForkJoinTask<?>>(workers);
+			for (int w = 0; w < workers; w++) {
+				Connection conn = _conns.get(w);
+				running.add(pool.submit(() -> {
+					int i;
+					while (errors.isEmpty() && (i = next.getAndIncrement()) < results.length) {
+						try {
+							results[i] = tasks.get(i).run(conn);
+						}
+						catch (SQLException | RuntimeException | Error e) {
+							errors.add(e);
+						}
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : running) {
+				task.join();
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		if (!errors.isEmpty()) {
+			Throwable first = errors.get(0);
+			for (Throwable e : errors.subList(1, errors.size())) {
+				first.addSuppressed(e);
+			}
+			if (first instanceof SQLException) {
+				throw (SQLException)first;
+			}
+			if (first instanceof Error) {
+				throw (Error)first;
+			}
+			throw (RuntimeException)first;
+		}
+		@SuppressWarnings("unchecked")
+		List<T> list = (List<T>)Arrays.asList(results);
+		return list;
+	}
+
+	/**
+	 * Returns all leased connections to the pool.  Every connection is
+	 * closed even if closing an earlier one fails.
+	 *
+	 * @throws SQLException the first error raised while closing a connection
+	 */
+	@Override
+	public void close() throws SQLException {
+		SQLException first = null;
+		for (Connection conn : _conns) {
+			try {
+				conn.close();
+			}
+			catch (SQLException e) {
+				if (first == null) {
+					first = e;
+				}
+				else {
+					first.addSuppressed(e);
+				}
+			}
+		}
+		if (first != null) {
+			throw first;
+		}
+	}
+
+	/**
+	 * Returns all leased connections to the pool, logging rather than
+	 * throwing any errors
+	 */
+	void closeQuietly() {
+		try {
+			close();
+		}
+		catch (SQLException e) {
+			LOG.warn("Error returning leased connections: " + e);
+		}
+	}
+}
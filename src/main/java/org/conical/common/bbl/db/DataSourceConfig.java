@@ -1,6 +1,10 @@
 package org.conical.common.bbl.db;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
@@ -12,11 +16,35 @@ import org.conical.common.bbl.util.PropertyMapLoader;
  * This class wraps the information needed to establish a connection or connection
  * pool to a database.  Objects of this class are immutable.
  * 
+ * A database served by several hosts (e.g. a primary and its standbys) can
+ * be configured by listing the hosts; connection pools then open connections
+ * to whichever host is fastest and reachable.  In a properties bundle, list
+ * the hosts comma-separated in <code>db.server.name</code>, each optionally
+ * with its own port: <code>db.server.name=db1,db2:5433</code>.
+ * 
+ * Pool sizing is optional: <code>db.pool.min</code> and <code>db.pool.max</code>
+ * (default 5 and 20) bound the pool.  Setting <code>db.pool.target.wait.ms</code>
+ * turns on adaptive sizing, which moves the pool's limit between the minimum
+ * and <code>db.pool.ceiling</code> (default <code>db.pool.max</code>) to keep
+ * the 95th percentile checkout wait under the target.
+ * 
+ * New pooled connections can be prepared before they are handed out:
+ * <code>db.init.sql</code> lists statements run on each new connection
+ * (e.g. session settings) and <code>db.warm.sql</code> lists hot queries to
+ * prepare and keep in its statement cache.  Either may be given once, or
+ * several times with numbered keys (<code>db.init.sql.1</code>,
+ * <code>db.init.sql.2</code>, ...), which run in numeric order.
+ * 
+ * Pool settings do not take part in equality: the first configuration to
+ * create a pool for a database determines its settings.
+ * 
  * @author rdoherty
  */
 public class DataSourceConfig {
 
 	private static final boolean DEFAULT_CONN_POOLING_SETTING = true;
+	private static final int DEFAULT_MIN_CONNECTIONS = 5;
+	private static final int DEFAULT_MAX_CONNECTIONS = 20;
 	
 	public static final String DB_TYPE_KEY = "db.type";
 	public static final String DB_CONNECTION_URL_KEY = "db.connection.url";
@@ -26,15 +54,28 @@ public class DataSourceConfig {
 	public static final String DB_LOGIN_NAME_KEY = "db.login.name";
 	public static final String DB_LOGIN_PASSWORD_KEY = "db.password";
 	public static final String DB_CONNECTION_POOLING_KEY = "db.conn.pool";
+	public static final String DB_POOL_MIN_KEY = "db.pool.min";
+	public static final String DB_POOL_MAX_KEY = "db.pool.max";
+	public static final String DB_POOL_CEILING_KEY = "db.pool.ceiling";
+	public static final String DB_POOL_TARGET_WAIT_KEY = "db.pool.target.wait.ms";
+	public static final String DB_INIT_SQL_KEY = "db.init.sql";
+	public static final String DB_WARM_SQL_KEY = "db.warm.sql";
 	
 	private DatabaseType _dbType;
 	private String _url;
+	private List<String> _urls;
 	private String _server;
 	private int _port;
 	private String _dbName; // or oracle SID
 	private String _user;
 	private String _password;
 	private boolean _isPooled;
+	private int _minConnections = DEFAULT_MIN_CONNECTIONS;
+	private int _maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private int _maxConnectionsCeiling = -1;
+	private long _targetWaitMillis = 0;
+	private List<String> _initSql = Collections.emptyList();
+	private List<String> _warmSql = Collections.emptyList();
 	
 	/**
 	 * Constructs object using connection URL.  The URL will be checked against the dbType.
@@ -57,6 +98,7 @@ public class DataSourceConfig {
 			_server = urlParts[0];
 			_port = Integer.parseInt(urlParts[1]);
 			_dbName = urlParts[2];
+			_urls = Collections.singletonList(url);
 			_user = user;
 			_password = password;
 			_isPooled = isPooled;
@@ -89,6 +131,7 @@ public class DataSourceConfig {
 			_port = port;
 			_dbName = dbName;
 			_url = _dbType.getConnectionURL(_server, _port, _dbName);
+			_urls = Collections.singletonList(_url);
 			_user = user;
 			_password = password;
 			_isPooled = isPooled;
@@ -98,6 +141,45 @@ public class DataSourceConfig {
 		}
 	}
 	
+	/**
+	 * Constructs object for a database served by several hosts.  Each host is
+	 * given as a server name, optionally followed by a colon and a port; hosts
+	 * without a port use the passed default port.  The first host is reported
+	 * as this configuration's server, port and URL.
+	 * 
+	 * @param dbType type of database
+	 * @param servers database hosts, in order of preference
+	 * @param port default port DB is served out of
+	 * @param dbName name of database (or Oracle SID)
+	 * @param user user to connect as
+	 * @param password password to verify user
+	 * @param isPooled whether this connection should be pooled
+	 */
+	public DataSourceConfig(DatabaseType dbType, List<String> servers, int port, String dbName, String user, String password, boolean isPooled) {
+		init(dbType, servers, port, dbName, user, password, isPooled);
+	}
+
+	private void init(DatabaseType dbType, List<String> servers, int port, String dbName, String user, String password, boolean isPooled) {
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("At least one database server is required");
+		}
+		List<String> urls = new ArrayList<String>();
+		for (String server : servers) {
+			String[] hostPort = server.trim().split(":");
+			try {
+				int hostPortNum = (hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : port);
+				urls.add(dbType.getConnectionURL(hostPort[0], hostPortNum, dbName));
+				if (urls.size() == 1) {
+					init(dbType, hostPort[0], hostPortNum, dbName, user, password, isPooled);
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid port in database server " + server, e);
+			}
+		}
+		_urls = Collections.unmodifiableList(urls);
+	}
+
 	/**
 	 * Constructs object given a set of parameters in a configuration bundle (i.e.
 	 * properties file).  See constants in this class for what values should appear
@@ -128,6 +210,17 @@ public class DataSourceConfig {
 			usePooling = Boolean.valueOf(boolStr);
 		}
 		
+		// set (optional) pool sizing
+		_minConnections = intProperty(props, DB_POOL_MIN_KEY, DEFAULT_MIN_CONNECTIONS);
+		_maxConnections = intProperty(props, DB_POOL_MAX_KEY, DEFAULT_MAX_CONNECTIONS);
+		_maxConnectionsCeiling = intProperty(props, DB_POOL_CEILING_KEY, -1);
+		_targetWaitMillis = intProperty(props, DB_POOL_TARGET_WAIT_KEY, 0);
+		checkPoolSizes();
+		
+		// set (optional) connection preparation
+		_initSql = listProperty(props, DB_INIT_SQL_KEY);
+		_warmSql = listProperty(props, DB_WARM_SQL_KEY);
+		
 		// check for connection URL
 		if (StringUtils.isEmpty(props.get(DB_CONNECTION_URL_KEY))) {
 			if (!PropertyMapLoader.requiredPropertiesPresent(props, DB_SERVER_NAME_KEY, DB_SERVER_PORT_KEY, DB_NAME_KEY)) {
@@ -136,8 +229,14 @@ public class DataSourceConfig {
 			if (!NumberUtils.isDigits(props.get(DB_SERVER_PORT_KEY))) {
 				throw new ConfigurationRuntimeException("Database port must be an integer.");
 			}
+			List<String> servers = new ArrayList<String>();
+			for (String server : props.get(DB_SERVER_NAME_KEY).split(",")) {
+				if (!server.trim().isEmpty()) {
+					servers.add(server.trim());
+				}
+			}
 			init(DatabaseType.valueOf(props.get(DB_TYPE_KEY)),
-			     props.get(DB_SERVER_NAME_KEY),
+			     servers,
 			     Integer.parseInt(props.get(DB_SERVER_PORT_KEY)),
 			     props.get(DB_NAME_KEY),
 			     props.get(DB_LOGIN_NAME_KEY),
@@ -153,12 +252,108 @@ public class DataSourceConfig {
 		}
 	}
 	
+	private static int intProperty(Map<String, String> props, String key, int defaultValue) {
+		String value = props.get(key);
+		if (StringUtils.isEmpty(value)) {
+			return defaultValue;
+		}
+		if (!NumberUtils.isDigits(value)) {
+			throw new ConfigurationRuntimeException("Database property " + key + " must be a non-negative integer.");
+		}
+		return Integer.parseInt(value);
+	}
+
+	/**
+	 * Returns the value of the passed key followed by the values of the keys
+	 * formed by appending a dot and a number to it, in numeric order
+	 */
+	private static List<String> listProperty(Map<String, String> props, String key) {
+		TreeMap<Integer, String> numbered = new TreeMap<Integer, String>();
+		String prefix = key + ".";
+		for (Map.Entry<String, String> prop : props.entrySet()) {
+			String suffix = (prop.getKey().startsWith(prefix) ? prop.getKey().substring(prefix.length()) : null);
+			if (suffix != null && NumberUtils.isDigits(suffix) && !StringUtils.isBlank(prop.getValue())) {
+				numbered.put(Integer.valueOf(suffix), prop.getValue().trim());
+			}
+		}
+		List<String> values = new ArrayList<String>();
+		if (!StringUtils.isBlank(props.get(key))) {
+			values.add(props.get(key).trim());
+		}
+		values.addAll(numbered.values());
+		return Collections.unmodifiableList(values);
+	}
+
+	private void checkPoolSizes() {
+		if (_minConnections < 0 || _maxConnections < 1 || _minConnections > _maxConnections) {
+			throw new ConfigurationRuntimeException("Database pool sizes must satisfy 0 <= min <= max and max >= 1 (min=" +
+					_minConnections + ", max=" + _maxConnections + ")");
+		}
+	}
+
+	/**
+	 * Returns a copy of this configuration with different pool settings
+	 * 
+	 * @param minConnections minimum number of pooled connections
+	 * @param maxConnections maximum number of pooled connections
+	 * @param maxConnectionsCeiling hard maximum adaptive sizing may grow the pool to, or -1 for maxConnections
+	 * @param targetWaitMillis 95th percentile checkout wait adaptive sizing aims for, or 0 to disable it
+	 * @return new configuration
+	 */
+	public DataSourceConfig withPoolSizes(int minConnections, int maxConnections, int maxConnectionsCeiling, long targetWaitMillis) {
+		DataSourceConfig copy = copy();
+		copy._minConnections = minConnections;
+		copy._maxConnections = maxConnections;
+		copy._maxConnectionsCeiling = maxConnectionsCeiling;
+		copy._targetWaitMillis = targetWaitMillis;
+		copy.checkPoolSizes();
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of this configuration with different connection preparation
+	 * 
+	 * @param initSql statements run on each new pooled connection before it is handed out
+	 * @param warmSql queries prepared and cached on each new pooled connection before it is handed out
+	 * @return new configuration
+	 */
+	public DataSourceConfig withConnectionInit(List<String> initSql, List<String> warmSql) {
+		DataSourceConfig copy = copy();
+		copy._initSql = Collections.unmodifiableList(new ArrayList<String>(initSql));
+		copy._warmSql = Collections.unmodifiableList(new ArrayList<String>(warmSql));
+		return copy;
+	}
+
+	private DataSourceConfig copy() {
+		DataSourceConfig copy = new DataSourceConfig();
+		copy._dbType = _dbType;
+		copy._url = _url;
+		copy._urls = _urls;
+		copy._server = _server;
+		copy._port = _port;
+		copy._dbName = _dbName;
+		copy._user = _user;
+		copy._password = _password;
+		copy._isPooled = _isPooled;
+		copy._minConnections = _minConnections;
+		copy._maxConnections = _maxConnections;
+		copy._maxConnectionsCeiling = _maxConnectionsCeiling;
+		copy._targetWaitMillis = _targetWaitMillis;
+		copy._initSql = _initSql;
+		copy._warmSql = _warmSql;
+		return copy;
+	}
+
+	private DataSourceConfig() {
+		// used by copy()
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (obj instanceof DataSourceConfig) {
 			DataSourceConfig dci = (DataSourceConfig)obj;
 			return (_dbType.equals(dci._dbType) &&
-					_url.equals(dci._url) &&
+					_urls.equals(dci._urls) &&
 				    _user.equals(dci._user) &&
 				    _password.equals(dci._password) &&
 				    _isPooled == dci._isPooled);
@@ -170,7 +365,7 @@ public class DataSourceConfig {
 	public int hashCode() {
 		return new HashCodeBuilder()
 		  .append(_dbType)
-		  .append(_url)
+		  .append(_urls)
 		  .append(_user)
 		  .append(_password)
 		  .append(_isPooled)
@@ -185,6 +380,14 @@ public class DataSourceConfig {
 		return _url;
 	}
 
+	/**
+	 * @return connection URLs of all the hosts serving this database, the
+	 * first being the one returned by <code>getUrl()</code>
+	 */
+	public List<String> getUrls() {
+		return _urls;
+	}
+
 	public String getServer() {
 		return _server;
 	}
@@ -208,4 +411,42 @@ public class DataSourceConfig {
 	public boolean isPooled() {
 		return _isPooled;
 	}
+
+	public int getMinConnections() {
+		return _minConnections;
+	}
+
+	public int getMaxConnections() {
+		return _maxConnections;
+	}
+
+	/**
+	 * @return hard maximum number of connections adaptive sizing may grow the
+	 * pool to, or -1 to use the maximum number of connections
+	 */
+	public int getMaxConnectionsCeiling() {
+		return _maxConnectionsCeiling;
+	}
+
+	/**
+	 * @return 95th percentile checkout wait adaptive sizing aims for, or 0 if
+	 * adaptive sizing is off
+	 */
+	public long getTargetWaitMillis() {
+		return _targetWaitMillis;
+	}
+
+	/**
+	 * @return statements run on each new pooled connection before it is handed out
+	 */
+	public List<String> getInitSql() {
+		return _initSql;
+	}
+
+	/**
+	 * @return queries prepared and cached on each new pooled connection before it is handed out
+	 */
+	public List<String> getWarmSql() {
+		return _warmSql;
+	}
 }
@@ -2,14 +2,21 @@ package org.conical.common.bbl.db;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.management.JMException;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.conical.common.bbl.exception.BBLRuntimeException;
 
 /**
@@ -17,17 +24,23 @@ import org.conical.common.bbl.exception.BBLRuntimeException;
  * database connection information.  A cache of DataSources is maintained and
  * when a DataSource is requested, the cache is consulted before creating a
  * new DataSource.  This class is threadsafe and uses DbConnectionBroker as the
- * underlying connection pooling mechanism.
+ * underlying connection pooling mechanism.  Pools are warmed up in the
+ * background, so creating a DataSource never waits on the database being
+ * reachable; use <code>DbConnectionBroker.getReadyFuture()</code> to find out
+ * when a pool's initial connections are open.  Each pool is registered as a
+ * <code>DbConnectionBrokerMXBean</code> so its metrics can be read over JMX.
  * 
  * @author rdoherty
  */
 public class DataSourceFactory {
+
+	private static final Logger LOG = LogManager.getLogger(DataSourceFactory.class);
 	
-	private static final int DB_MIN_CONNECTIONS = 5;
-	private static final int DB_MAX_CONNECTIONS = 20;
 	private static final int DB_MAX_CONNECTION_TIME_MS = 600000;
 		
-	private static Map<DataSourceConfig, DataSource> _dataSourceMap = new HashMap<DataSourceConfig, DataSource>();
+	private static Map<DataSourceConfig, DataSource> _dataSourceMap = new ConcurrentHashMap<DataSourceConfig, DataSource>();
+	private static Map<List<DataSourceConfig>, RoutingDataSource> _routingMap = new ConcurrentHashMap<List<DataSourceConfig>, RoutingDataSource>();
+	private static final ReentrantLock _createLock = new ReentrantLock();
 	
 	/**
 	 * Looks up a DataSource in JNDI registered under the passed name and returns it.
@@ -68,18 +81,43 @@ public class DataSourceFactory {
 		}
 	}
 
-	private static synchronized DataSource getOrCreateDataSource(DataSourceConfig config) throws IOException {
+	private static DataSource getOrCreateDataSource(DataSourceConfig config) throws IOException {
+		// a lock rather than synchronized so callers on virtual threads do not
+		// pin their carrier while a pool is created
+		_createLock.lock();
+		try {
+			return createDataSource(config);
+		}
+		finally {
+			_createLock.unlock();
+		}
+	}
+
+	private static DataSource createDataSource(DataSourceConfig config) throws IOException {
 		DataSource ds = _dataSourceMap.get(config);
 		if (ds == null) {
 			if (config.isPooled()) {
-				ds = new DbConnectionBroker(
+				DbConnectionBroker broker = new DbConnectionBroker(
 						config.getDbType().getDbDriverClass(),
-						config.getUrl(),
+						config.getUrls(),
 						config.getUser(),
 						config.getPassword(),
-						DB_MIN_CONNECTIONS,
-						DB_MAX_CONNECTIONS,
-						DB_MAX_CONNECTION_TIME_MS);
+						config.getMinConnections(),
+						config.getMaxConnections(),
+						DB_MAX_CONNECTION_TIME_MS,
+						new PoolConfig()
+							.setWarmUp(PoolConfig.WarmUp.BACKGROUND)
+							.setMaxConnectionsCeiling(config.getMaxConnectionsCeiling())
+							.setAdaptiveTargetWait(config.getTargetWaitMillis())
+							.setInitSql(config.getInitSql())
+							.setWarmStatements(config.getWarmSql()));
+				try {
+					broker.registerMBean(config.getUser() + "@" + config.getUrl());
+				}
+				catch (JMException e) {
+					LOG.warn("Unable to register connection pool MBean for " + config.getUrl(), e);
+				}
+				ds = broker;
 			}
 			else {
 				ds = getUnpooledDataSource(config);
@@ -89,6 +127,42 @@ public class DataSourceFactory {
 		return ds;
 	}
 	
+	/**
+	 * Fetches a DataSource that routes read-only connections to one of the
+	 * passed replicas and everything else to the primary.  The primary and
+	 * each replica get their own DataSource from <code>getDataSource()</code>.
+	 * 
+	 * @param primary configuration of the primary database
+	 * @param replicas configurations of the read replicas
+	 * @return routing DataSource for those databases
+	 * @see RoutingDataSource
+	 */
+	public static RoutingDataSource getRoutingDataSource(DataSourceConfig primary, DataSourceConfig... replicas) {
+		List<DataSourceConfig> key = new ArrayList<DataSourceConfig>();
+		key.add(primary);
+		key.addAll(Arrays.asList(replicas));
+		RoutingDataSource ds = _routingMap.get(key);
+		if (ds != null) {
+			return ds;
+		}
+		_createLock.lock();
+		try {
+			ds = _routingMap.get(key);
+			if (ds == null) {
+				List<DataSource> replicaSources = new ArrayList<DataSource>();
+				for (DataSourceConfig replica : replicas) {
+					replicaSources.add(getDataSource(replica));
+				}
+				ds = new RoutingDataSource(getDataSource(primary), replicaSources);
+				_routingMap.put(key, ds);
+			}
+			return ds;
+		}
+		finally {
+			_createLock.unlock();
+		}
+	}
+
 	private static DataSource getUnpooledDataSource(DataSourceConfig config) {
 		try {
 			// create an anonymous class here so we get the application classloader rather than the system's;
@@ -1,5 +1,6 @@
 package org.conical.common.bbl.db;
 
+import java.lang.ref.WeakReference;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -8,6 +9,7 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
@@ -15,6 +17,8 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
@@ -26,12 +30,45 @@ import java.util.concurrent.Executor;
  * connection.  This was necessary to support the Connection API while
  * continuing to use the DbConnection heritage class.
  * 
+ * Session properties (auto-commit, read-only, isolation, catalog, schema,
+ * holdability, type map, network timeout) changed through this object are
+ * tracked.  On close, an open transaction is rolled back and only the
+ * properties that were changed are set back to their values at checkout, so
+ * the next borrower gets a clean session and callers that change nothing pay
+ * nothing extra.
+ * 
+ * Statements created through this object are tracked as well.  Any that
+ * their owner has not closed by the time the connection is returned are
+ * closed then, with their result sets, so abandoned cursors are freed on
+ * every return rather than when the physical connection is recycled.
+ * New statements get the pool's default query timeout, if one is set.
+ * 
  * @author rdoherty
  */
 public class DbConnection implements Connection {
 
 	private DbConnectionBroker _parent;
 	private Connection _child;
+	private long _ticket;
+	private StatementCache _stmtCache;
+	private boolean _closed = false;
+	private int _refs = 1;
+
+	// statements handed out during this checkout that may still be open
+	private static final int MIN_PRUNE_SIZE = 16;
+	private List<Tracked> _tracked = new ArrayList<Tracked>();
+	private int _pruneAt = MIN_PRUNE_SIZE;
+
+	// session properties changed during this checkout, and their values at checkout
+	private static final int AUTO_COMMIT = 1, READ_ONLY = 2, ISOLATION = 4, CATALOG = 8,
+			SCHEMA = 16, HOLDABILITY = 32, TYPE_MAP = 64, NETWORK_TIMEOUT = 128;
+	private int _dirty = 0;
+	// a statement was handed out during this checkout, so a transaction may be open
+	private boolean _statementUsed = false;
+	private boolean _autoCommit, _origAutoCommit, _origReadOnly;
+	private int _origIsolation, _origHoldability, _origNetworkTimeout;
+	private String _origCatalog, _origSchema;
+	private Map<String, Class<?>> _origTypeMap;
 	
 	/**
 	 * Creates a DbConnection object given a parent broker and the connection to be wrapped
@@ -40,8 +77,60 @@ public class DbConnection implements Connection {
 	 * @param child connection to be wrapped
 	 */
 	public DbConnection(DbConnectionBroker parent, Connection child) {
+		this(parent, child, ConnectionBag.NO_TICKET);
+	}
+
+	/**
+	 * Creates a DbConnection object for a specific checkout from the parent
+	 * broker.  The ticket identifies the pool slot and the generation of that
+	 * slot at checkout, allowing the connection to be returned without searching
+	 * the pool and making a second return of the same checkout harmless.
+	 * 
+	 * @param parent parent broker
+	 * @param child connection to be wrapped
+	 * @param ticket checkout ticket issued by the broker's connection bag
+	 */
+	DbConnection(DbConnectionBroker parent, Connection child, long ticket) {
+		this(parent, child, ticket, null);
+	}
+
+	/**
+	 * Creates a DbConnection object for a specific checkout whose prepared
+	 * statements are served from, and returned to, the passed statement cache.
+	 * 
+	 * @param parent parent broker
+	 * @param child connection to be wrapped
+	 * @param ticket checkout ticket issued by the broker's connection bag
+	 * @param stmtCache statement cache of the wrapped connection, or null for none
+	 */
+	DbConnection(DbConnectionBroker parent, Connection child, long ticket, StatementCache stmtCache) {
 		_parent = parent;
 		_child = child;
+		_ticket = ticket;
+		_stmtCache = stmtCache;
+	}
+
+	/**
+	 * @return ticket identifying the pool checkout this connection represents
+	 */
+	long getTicket() {
+		return _ticket;
+	}
+
+	/**
+	 * Adds a reference to this connection; it is only released to the pool
+	 * when <code>close()</code> has been called once more than this method.
+	 * Used by <code>UnitOfWork</code> to share one checkout between callers.
+	 */
+	void retain() {
+		_refs++;
+	}
+
+	/**
+	 * @return true if this checkout has been returned to the pool
+	 */
+	boolean isReleased() {
+		return _closed;
 	}
 
 	/** {@inheritDoc} */
@@ -53,7 +142,205 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public void close() throws SQLException {
-		_parent.freeConnection(_child);		
+		if (_closed || --_refs > 0) {
+			return;
+		}
+		_closed = true;
+		closeTracked();
+		if ((_dirty != 0 || _statementUsed) && (_ticket == ConnectionBag.NO_TICKET || _parent.isCheckedOut(_ticket))) {
+			try {
+				resetSession();
+			}
+			catch (SQLException e) {
+				// state unknown; don't hand this connection to anyone else
+				if (_ticket != ConnectionBag.NO_TICKET) {
+					_parent.discardConnection(_ticket, e);
+					return;
+				}
+			}
+		}
+		if (_ticket == ConnectionBag.NO_TICKET) {
+			_parent.freeConnection(_child);
+		}
+		else {
+			_parent.freeConnection(_ticket);
+		}
+	}
+
+	/**
+	 * A statement handed out by this connection.  The handed out object is
+	 * held weakly so an abandoned wrapper can be collected; the driver's
+	 * statement is held until it is closed, so it can still be closed when
+	 * the connection is returned.
+	 */
+	static final class Tracked extends WeakReference<Statement> {
+
+		private Statement _child;
+
+		private Tracked(Statement handedOut, Statement child) {
+			super(handedOut);
+			_child = child;
+		}
+
+		/**
+		 * Called when the handed out statement is closed by its owner
+		 */
+		void closed() {
+			_child = null;
+		}
+	}
+
+	/**
+	 * Applies the pool's default query timeout to a newly created driver
+	 * statement.  Cached statements keep it between checkouts, since a
+	 * statement whose timeout was changed by its caller is not cached.
+	 */
+	private <T extends Statement> T applyTimeout(T stmt) throws SQLException {
+		int seconds = getDefaultQueryTimeout();
+		if (seconds > 0) {
+			stmt.setQueryTimeout(seconds);
+		}
+		return stmt;
+	}
+
+	/**
+	 * @return query timeout given to new statements, in seconds; zero for none
+	 */
+	int getDefaultQueryTimeout() {
+		return _parent.getDefaultQueryTimeout();
+	}
+
+	/**
+	 * Called by statements created through this connection when they start
+	 * executing with a query timeout, so the pool's watchdog can cancel them
+	 * if they overrun it
+	 * 
+	 * @param stmt driver statement
+	 * @param seconds the statement's query timeout
+	 */
+	void startRunning(Statement stmt, int seconds) {
+		if (_ticket != ConnectionBag.NO_TICKET) {
+			_parent.startRunning(_ticket, stmt, seconds);
+		}
+	}
+
+	/**
+	 * Called by statements passed to <code>startRunning</code> when they finish
+	 * 
+	 * @param stmt driver statement
+	 */
+	void stopRunning(Statement stmt) {
+		if (_ticket != ConnectionBag.NO_TICKET) {
+			_parent.stopRunning(_ticket, stmt);
+		}
+	}
+
+	/**
+	 * Registers a statement wrapper so it is closed when this connection is
+	 * returned, if its owner has not closed it by then
+	 */
+	private <T extends DbStatement> T track(T stmt) {
+		stmt.setTracked(track(stmt, stmt.getChild()));
+		return stmt;
+	}
+
+	/**
+	 * Registers a driver statement that is handed out unwrapped (callable
+	 * statements) so it is closed when this connection is returned
+	 */
+	private CallableStatement track(CallableStatement stmt) {
+		track(stmt, stmt);
+		return stmt;
+	}
+
+	private Tracked track(Statement handedOut, Statement child) {
+		_statementUsed = true;
+		if (_tracked.size() >= _pruneAt) {
+			_tracked.removeIf(t -> t._child == null);
+			_pruneAt = Math.max(MIN_PRUNE_SIZE, 2 * _tracked.size());
+		}
+		Tracked t = new Tracked(handedOut, child);
+		_tracked.add(t);
+		return t;
+	}
+
+	/**
+	 * Closes the statements, and their result sets, that were handed out
+	 * during this checkout and are still open, so their cursors are freed
+	 * before the connection goes to its next borrower.
+	 */
+	private void closeTracked() {
+		int statements = 0, resultSets = 0;
+		for (Tracked t : _tracked) {
+			Statement child = t._child;
+			if (child == null) {
+				continue;
+			}
+			Statement handedOut = t.get();
+			try {
+				if (handedOut instanceof DbStatement) {
+					if (((DbStatement)handedOut).closeResultSet()) {
+						resultSets++;
+					}
+					handedOut.close();
+					statements++;
+				}
+				else if (!child.isClosed()) {
+					// an abandoned wrapper, or an unwrapped callable statement
+					child.close();
+					statements++;
+				}
+			}
+			catch (SQLException e) {
+				// do nothing; closing quietly
+			}
+		}
+		_tracked.clear();
+		_pruneAt = MIN_PRUNE_SIZE;
+		if (statements + resultSets > 0) {
+			_parent.countForceClosed(statements, resultSets);
+		}
+	}
+
+	/**
+	 * Rolls back an open transaction and sets the session properties changed
+	 * during this checkout back to their values at checkout.  A session that
+	 * was already out of auto-commit mode at checkout, e.g. through the
+	 * pool's init SQL or a driver property, is rolled back too if a statement
+	 * was used on it.
+	 */
+	private void resetSession() throws SQLException {
+		boolean inTransaction = ((_dirty & AUTO_COMMIT) != 0 ? !_autoCommit :
+				_statementUsed && !_child.getAutoCommit());
+		if (inTransaction) {
+			_child.rollback();
+		}
+		if ((_dirty & AUTO_COMMIT) != 0 && _autoCommit != _origAutoCommit) {
+			_child.setAutoCommit(_origAutoCommit);
+		}
+		if ((_dirty & READ_ONLY) != 0) {
+			_child.setReadOnly(_origReadOnly);
+		}
+		if ((_dirty & ISOLATION) != 0) {
+			_child.setTransactionIsolation(_origIsolation);
+		}
+		if ((_dirty & CATALOG) != 0) {
+			_child.setCatalog(_origCatalog);
+		}
+		if ((_dirty & SCHEMA) != 0) {
+			_child.setSchema(_origSchema);
+		}
+		if ((_dirty & HOLDABILITY) != 0) {
+			_child.setHoldability(_origHoldability);
+		}
+		if ((_dirty & TYPE_MAP) != 0) {
+			_child.setTypeMap(_origTypeMap);
+		}
+		if ((_dirty & NETWORK_TIMEOUT) != 0) {
+			_child.setNetworkTimeout(Runnable::run, _origNetworkTimeout);
+		}
+		_dirty = 0;
+		_statementUsed = false;
 	}
 
 	/** {@inheritDoc} */
@@ -96,14 +383,14 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public Statement createStatement() throws SQLException {
-		return _child.createStatement();
+		return track(new DbStatement(this, applyTimeout(_child.createStatement())));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public Statement createStatement(int resultSetType, int resultSetConcurrency)
 			throws SQLException {
-		return _child.createStatement(resultSetType, resultSetConcurrency);
+		return track(new DbStatement(this, applyTimeout(_child.createStatement(resultSetType, resultSetConcurrency))));
 	}
 
 	/** {@inheritDoc} */
@@ -111,7 +398,7 @@ public class DbConnection implements Connection {
 	public Statement createStatement(int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
-		return _child.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+		return track(new DbStatement(this, applyTimeout(_child.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability))));
 	}
 
 	/** {@inheritDoc} */
@@ -178,7 +465,7 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public boolean isClosed() throws SQLException {
-		return _child.isClosed();
+		return _closed || _child.isClosed();
 	}
 
 	/** {@inheritDoc} */
@@ -202,14 +489,14 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public CallableStatement prepareCall(String sql) throws SQLException {
-		return _child.prepareCall(sql);
+		return track(applyTimeout(_child.prepareCall(sql)));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public CallableStatement prepareCall(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
-		return _child.prepareCall(sql, resultSetType, resultSetConcurrency);
+		return track(applyTimeout(_child.prepareCall(sql, resultSetType, resultSetConcurrency)));
 	}
 
 	/** {@inheritDoc} */
@@ -217,41 +504,48 @@ public class DbConnection implements Connection {
 	public CallableStatement prepareCall(String sql, int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
-		return _child.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		return track(applyTimeout(_child.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability)));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
-		return _child.prepareStatement(sql);
+		if (_stmtCache != null) {
+			return prepareCached(new StatementCache.Key(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY, -1));
+		}
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql))));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
 			throws SQLException {
-		return _child.prepareStatement(sql, autoGeneratedKeys);
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql, autoGeneratedKeys))));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
 			throws SQLException {
-		return _child.prepareStatement(sql, columnIndexes);
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql, columnIndexes))));
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public PreparedStatement prepareStatement(String sql, String[] columnNames)
 			throws SQLException {
-		return _child.prepareStatement(sql, columnNames);
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql, columnNames))));
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency) throws SQLException {
-		return _child.prepareStatement(sql, resultSetType, resultSetConcurrency);
+		if (_stmtCache != null) {
+			return prepareCached(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, -1));
+		}
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql, resultSetType, resultSetConcurrency))));
 	}
 
 	/** {@inheritDoc} */
@@ -259,7 +553,23 @@ public class DbConnection implements Connection {
 	public PreparedStatement prepareStatement(String sql, int resultSetType,
 			int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
-		return _child.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+		if (_stmtCache != null) {
+			return prepareCached(new StatementCache.Key(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+		}
+		return track(new DbPreparedStatement(this, applyTimeout(_child.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability))));
+	}
+
+	/**
+	 * Takes a statement matching the passed key from the connection's
+	 * statement cache, preparing a new one if none is cached.  The returned
+	 * statement goes back into the cache when closed.
+	 */
+	private PreparedStatement prepareCached(StatementCache.Key key) throws SQLException {
+		PreparedStatement ps = _stmtCache.take(key);
+		if (ps == null || ps.isClosed()) {
+			ps = applyTimeout(key.prepare(_child));
+		}
+		return track(new DbPreparedStatement(this, ps, _stmtCache, key));
 	}
 
 	/** {@inheritDoc} */
@@ -283,13 +593,22 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		if ((_dirty & AUTO_COMMIT) == 0) {
+			_origAutoCommit = _child.getAutoCommit();
+		}
 		_child.setAutoCommit(autoCommit);
+		_dirty |= AUTO_COMMIT;
+		_autoCommit = autoCommit;
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public void setCatalog(String catalog) throws SQLException {
+		if ((_dirty & CATALOG) == 0) {
+			_origCatalog = _child.getCatalog();
+		}
 		_child.setCatalog(catalog);
+		_dirty |= CATALOG;
 	}
 
 	/** {@inheritDoc} */
@@ -309,13 +628,21 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public void setHoldability(int holdability) throws SQLException {
+		if ((_dirty & HOLDABILITY) == 0) {
+			_origHoldability = _child.getHoldability();
+		}
 		_child.setHoldability(holdability);
+		_dirty |= HOLDABILITY;
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public void setReadOnly(boolean readOnly) throws SQLException {
+		if ((_dirty & READ_ONLY) == 0) {
+			_origReadOnly = _child.isReadOnly();
+		}
 		_child.setReadOnly(readOnly);
+		_dirty |= READ_ONLY;
 	}
 
 	/** {@inheritDoc} */
@@ -333,13 +660,21 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public void setTransactionIsolation(int level) throws SQLException {
+		if ((_dirty & ISOLATION) == 0) {
+			_origIsolation = _child.getTransactionIsolation();
+		}
 		_child.setTransactionIsolation(level);
+		_dirty |= ISOLATION;
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+		if ((_dirty & TYPE_MAP) == 0) {
+			_origTypeMap = _child.getTypeMap();
+		}
 		_child.setTypeMap(map);
+		_dirty |= TYPE_MAP;
 	}
 
 	/** {@inheritDoc} */
@@ -357,7 +692,11 @@ public class DbConnection implements Connection {
 	/** {@inheritDoc} */
 	@Override
 	public void setSchema(String schema) throws SQLException {
+		if ((_dirty & SCHEMA) == 0) {
+			_origSchema = _child.getSchema();
+		}
 		_child.setSchema(schema);
+		_dirty |= SCHEMA;
 	}
 
 	/** {@inheritDoc} */
@@ -376,7 +715,11 @@ public class DbConnection implements Connection {
 	@Override
 	public void setNetworkTimeout(Executor executor, int milliseconds)
 			throws SQLException {
+		if ((_dirty & NETWORK_TIMEOUT) == 0) {
+			_origNetworkTimeout = _child.getNetworkTimeout();
+		}
 		_child.setNetworkTimeout(executor, milliseconds);
+		_dirty |= NETWORK_TIMEOUT;
 	}
 
 	/** {@inheritDoc} */
@@ -7,15 +7,41 @@ package org.conical.common.bbl.db;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 import org.apache.logging.log4j.LogManager;
@@ -32,27 +58,81 @@ import org.apache.logging.log4j.Logger;
  * @author Marc A. Mnich
  * @author Ryan R. Doherty
  */
-public class DbConnectionBroker implements DataSource, Runnable {
+public class DbConnectionBroker implements DataSource, Runnable, DbConnectionBrokerMXBean {
 
 	private static Logger LOG = LogManager.getLogger(DbConnectionBroker.class);
 	
-	private Thread runner;
+	private ScheduledExecutorService _housekeeper;
     
     private Connection[] _connPool;
-    private int[] _connStatus;
+    private ConnectionBag _bag;
 
-    private long[] _connLockTime, _connCreateDate;
+    private long[] _connLockTime, _connCreateDate, _connLastUsed, _connNextCheck, _connMaxAge;
+    private int[] _connEpoch;
+    private double _lifetimeJitter;
+    // connections opened before the last recycleAll() carry an older epoch
+    private final AtomicInteger _recycleEpoch = new AtomicInteger();
+    // signalled when a connection is returned while the pool is being destroyed
+    private final ReentrantLock _drainLock = new ReentrantLock();
+    private final Condition _drained = _drainLock.newCondition();
+    // held by a bulk lease while it gathers its connections
+    private final ReentrantLock _leaseLock = new ReentrantLock(true);
     private String[] _connId;
-    private String _dbDriver, _dbServer, _dbLogin, _dbPassword;
-    private int _currConnections, _connLast, _maxConns, _maxConnMSec, _maxCheckoutSeconds, _debugLevel;
+    private Throwable[] _connCheckoutTrace;
+    private long[] _connLeakReported;
+    private int[] _connLane;
+    private LaneGate _lanes;
+    private PoolConfig.LeakMode _leakMode;
+    private int _leakTraceSampling;
+    private ExecutorService _abortExecutor;
+    private StatementCache[] _stmtCache;
+    private int _stmtCacheSize;
+    private int _queryTimeoutSeconds;
+    private List<String> _initSql, _warmStatements;
+    private long _queryWatchdogMillis;
+    // statement currently executing on each connection, and when its query timeout runs out
+    private AtomicReferenceArray<Statement> _runningStmt;
+    private long[] _runningDeadline;
+    private final LongAdder _stmtCacheHits = new LongAdder(), _stmtCacheMisses = new LongAdder();
 
-    //available: set to false on destroy, checked by getConnection()
-    private boolean _available = true;
+    // metrics exposed through DbConnectionBrokerMXBean
+    private final LatencyHistogram _waitTimes = new LatencyHistogram(), _holdTimes = new LatencyHistogram();
+    private final LongAdder _connsCreated = new LongAdder(), _connsRecycled = new LongAdder();
+    private final LongAdder _connFailures = new LongAdder(), _checkoutTimeouts = new LongAdder();
+    private final LongAdder _leaksDetected = new LongAdder();
+    private final LongAdder _stmtsForceClosed = new LongAdder(), _resultSetsForceClosed = new LongAdder();
+    private final LongAdder _queriesCancelled = new LongAdder();
+    private volatile long _lastExhausted = 0;
+    private ObjectName _mbeanName;
+    private String _dbDriver, _dbLogin, _dbPassword;
+    private HostSelector _hosts;
+    private int _maxConns, _maxConnMSec, _maxCheckoutSeconds, _debugLevel;
+    private volatile long _checkoutTimeoutMillis;
+    private volatile int _maxWaiters;
+    private long _idleTimeoutMillis, _validationWindowMillis, _validationIntervalMillis, _housekeepingMillis;
+    private int _minIdle;
+
+    // adaptive sizing: the working limit on the pool size, moved between
+    // _minConns and _maxConns by the housekeeping pass
+    private volatile int _poolLimit;
+    private int _minConns;
+    private long _targetWaitMillis, _adaptiveIntervalMillis, _lastAdjust;
+    private long[] _waitSnapshot = new long[0];
+    private double _utilizationSum;
+    private int _utilizationSamples;
 
-    private SQLWarning _currSQLWarning;
+    // completed once the minimum number of connections has been opened
+    private final CompletableFuture<Void> _ready = new CompletableFuture<>();
+
+    //available: set to false on destroy, checked by getConnection()
+    private volatile boolean _available = true;
 
     private final int DEFAULTMAXCHECKOUTSECONDS = 60;
     private final int DEFAULTDEBUGLEVEL = 2;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final double LOW_UTILIZATION = 0.5;
+    // how often a waiting request retries opening a connection the pool has room for
+    private static final long REOPEN_RETRY_MILLIS = 1000;
     
     /**
      * Creates a new Connection Broker<br>
@@ -72,9 +152,9 @@ public class DbConnectionBroker implements DataSource, Runnable {
     						  String dbPassword, int minConns, int maxConns, double maxConnTime)
     		throws IOException {
 	
-    	setupBroker(dbDriver, dbServer, dbLogin, dbPassword, minConns, 
+    	setupBroker(dbDriver, Collections.singletonList(dbServer), dbLogin, dbPassword, minConns, 
     			maxConns, maxConnTime, false, 
-    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL);
+    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL, new PoolConfig());
     }
 
     /*
@@ -85,9 +165,9 @@ public class DbConnectionBroker implements DataSource, Runnable {
     						  double maxConnTime, boolean logAppend) 
     		throws IOException {
 	
-    	setupBroker(dbDriver, dbServer, dbLogin, dbPassword, minConns, 
+    	setupBroker(dbDriver, Collections.singletonList(dbServer), dbLogin, dbPassword, minConns, 
     			maxConns, maxConnTime, logAppend,
-    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL);
+    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL, new PoolConfig());
     }
 
     /*
@@ -99,30 +179,122 @@ public class DbConnectionBroker implements DataSource, Runnable {
     						  int maxCheckoutSeconds, int debugLevel) 
     		throws IOException {
 	
-    	setupBroker(dbDriver, dbServer, dbLogin, dbPassword, minConns, 
+    	setupBroker(dbDriver, Collections.singletonList(dbServer), dbLogin, dbPassword, minConns, 
     			maxConns, maxConnTime, logAppend, 
-    			maxCheckoutSeconds, debugLevel);
+    			maxCheckoutSeconds, debugLevel, new PoolConfig());
+    }
+
+    /**
+     * Creates a new Connection Broker with additional settings.  See the
+     * first constructor for a description of the other arguments.
+     *
+     * config:          optional pool settings, e.g. how the initial connections are opened
+     */
+    public DbConnectionBroker(String dbDriver, String dbServer, String dbLogin,
+    						  String dbPassword, int minConns, int maxConns,
+    						  double maxConnTime, PoolConfig config) 
+    		throws IOException {
+	
+    	setupBroker(dbDriver, Collections.singletonList(dbServer), dbLogin, dbPassword, minConns, 
+    			maxConns, maxConnTime, false, 
+    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL, config);
+    }
+
+    /**
+     * Creates a new Connection Broker with additional settings and its own
+     * maximum checkout time, e.g. to go with the config's leak mode.  See the
+     * first constructor for a description of the other arguments.
+     */
+    public DbConnectionBroker(String dbDriver, String dbServer, String dbLogin,
+    						  String dbPassword, int minConns, int maxConns,
+    						  double maxConnTime, int maxCheckoutSeconds, PoolConfig config) 
+    		throws IOException {
+	
+    	setupBroker(dbDriver, Collections.singletonList(dbServer), dbLogin, dbPassword, minConns, 
+    			maxConns, maxConnTime, false, 
+    			maxCheckoutSeconds, DEFAULTDEBUGLEVEL, config);
     }
 
-    private void setupBroker(String dbDriver, String dbServer, String dbLogin,
+    /**
+     * Creates a new Connection Broker for a database served by several hosts,
+     * e.g. a primary and its standbys.  New connections are opened to the
+     * fastest host currently reachable; a host that fails is retried with
+     * exponential back-off.  See the first constructor for a description of
+     * the other arguments.
+     *
+     * dbServers:       JDBC connect strings, one per host, in order of preference
+     */
+    public DbConnectionBroker(String dbDriver, List<String> dbServers, String dbLogin,
+    						  String dbPassword, int minConns, int maxConns,
+    						  double maxConnTime, PoolConfig config) 
+    		throws IOException {
+	
+    	setupBroker(dbDriver, dbServers, dbLogin, dbPassword, minConns, 
+    			maxConns, maxConnTime, false, 
+    			DEFAULTMAXCHECKOUTSECONDS, DEFAULTDEBUGLEVEL, config);
+    }
+
+    private void setupBroker(String dbDriver, List<String> dbServers, String dbLogin,
     						 String dbPassword, int minConns, int maxConns,
     						 double maxConnTime, boolean logAppend,
-    						 int maxCheckoutSeconds, int debugLevel) 
+    						 int maxCheckoutSeconds, int debugLevel, PoolConfig config) 
     		throws IOException {
-            
+
+        // the pool's arrays are sized for the hard ceiling; adaptive sizing
+        // moves the working limit between minConns and the ceiling.  A ceiling
+        // below maxConns (or minConns) lowers them to it.
+        int ceiling = (config.getMaxConnectionsCeiling() > 0 ? config.getMaxConnectionsCeiling() : maxConns);
+        if(minConns > ceiling) {
+            LOG.warn("minconnections " + minConns + " is above the ceiling of " + ceiling + " connections; using " + ceiling);
+            minConns = ceiling;
+        }
+        _poolLimit = Math.min(maxConns, ceiling);
+        _minConns = minConns;
+        maxConns = ceiling;
+        _targetWaitMillis = config.getAdaptiveTargetWait();
+        _adaptiveIntervalMillis = config.getAdaptiveInterval();
+        _lastAdjust = System.currentTimeMillis();
         _connPool = new Connection[maxConns];
-        _connStatus = new int[maxConns];
+        _bag = new ConnectionBag(maxConns);
         _connLockTime = new long[maxConns];
         _connCreateDate = new long[maxConns];
+        _connLastUsed = new long[maxConns];
+        _connNextCheck = new long[maxConns];
+        _connMaxAge = new long[maxConns];
+        _connEpoch = new int[maxConns];
+        _lifetimeJitter = config.getLifetimeJitter();
         _connId = new String[maxConns];
-        _currConnections = minConns;
+        _stmtCache = new StatementCache[maxConns];
+        _connCheckoutTrace = new Throwable[maxConns];
+        _connLeakReported = new long[maxConns];
+        Arrays.fill(_connLeakReported, -1);
+        _connLane = new int[maxConns];
+        _lanes = (config.getLaneNames().isEmpty() ? null :
+                new LaneGate(config.getLaneNames(), config.getLaneReserves(), () -> _poolLimit));
+        _leakMode = config.getLeakMode();
+        _leakTraceSampling = config.getLeakTraceSampling();
+        _initSql = config.getInitSql();
+        _warmStatements = config.getWarmStatements();
+        // warm statements live in the statement cache, so it must hold them all
+        _stmtCacheSize = Math.max(config.getStatementCacheSize(), _warmStatements.size());
+        _queryTimeoutSeconds = config.getQueryTimeout();
+        _queryWatchdogMillis = config.getQueryWatchdogInterval();
+        _runningStmt = new AtomicReferenceArray<Statement>(maxConns);
+        _runningDeadline = new long[maxConns];
         _maxConns = maxConns;
         _dbDriver = dbDriver;
-        _dbServer = dbServer;
+        _hosts = new HostSelector(dbServers);
         _dbLogin = dbLogin;
         _dbPassword = dbPassword;
         _maxCheckoutSeconds = maxCheckoutSeconds;
         _debugLevel = debugLevel;
+        _checkoutTimeoutMillis = config.getCheckoutTimeout();
+        _maxWaiters = config.getMaxWaiters();
+        _idleTimeoutMillis = config.getIdleTimeout();
+        _minIdle = (config.getMinIdle() < 0 ? minConns : config.getMinIdle());
+        _validationWindowMillis = config.getValidationWindow();
+        _validationIntervalMillis = config.getValidationInterval();
+        _housekeepingMillis = config.getHousekeepingInterval();
 
         _maxConnMSec = (int)(maxConnTime * 86400000.0);  //86400 sec/day
         if(_maxConnMSec < 30000) {  // Recycle no less than 30 seconds.
@@ -133,297 +305,904 @@ public class DbConnectionBroker implements DataSource, Runnable {
         LOG.info("-----------------------------------------");
         LOG.info("Starting DbConnectionBroker Version 1.0.13:");
         LOG.info("dbDriver = " + dbDriver);
-        LOG.info("dbServer = " + dbServer);
+        LOG.info("dbServer = " + String.join(", ", dbServers));
         LOG.info("dbLogin = " + dbLogin);
         LOG.info("minconnections = " + minConns);
-        LOG.info("maxconnections = " + maxConns);
+        LOG.info("maxconnections = " + _poolLimit + (maxConns > _poolLimit ? " (ceiling " + maxConns + ")" : ""));
+        if(_targetWaitMillis > 0) {
+            LOG.info("adaptive sizing target wait = " + _targetWaitMillis + " ms");
+        }
         LOG.info("Total refresh interval = " + maxConnTime + " days");
         LOG.info("logAppend = " + logAppend);
         LOG.info("maxCheckoutSeconds = " + maxCheckoutSeconds);
         LOG.info("debugLevel = " + debugLevel);
+        LOG.info("warmUp = " + config.getWarmUp());
+        LOG.info("idleTimeout = " + _idleTimeoutMillis + " ms");
+        LOG.info("minIdle = " + _minIdle);
+        LOG.info("statementCacheSize = " + _stmtCacheSize);
+        LOG.info("initSql = " + _initSql.size() + " statement(s), warmStatements = " + _warmStatements.size());
+        LOG.info("leakMode = " + _leakMode);
+        if(_lanes != null) {
+            LOG.info("lanes = " + String.join(", ", _lanes.describe()));
+            if(_lanes.getReservedTotal() >= _poolLimit) {
+                LOG.warn("Lanes reserve " + _lanes.getReservedTotal() + " of " + _poolLimit +
+                        " connections; borrowers naming no lane will never be served");
+            }
+        }
+        LOG.info("queryTimeout = " + _queryTimeoutSeconds + " s" +
+                (_queryWatchdogMillis > 0 ? ", watchdog every " + _queryWatchdogMillis + " ms" : ""));
         LOG.info("-----------------------------------------");
         
         // Initialize the pool of connections with the mininum connections:
         // Problems creating connections may be caused during reboot when the
         //    servlet is started before the database is ready.  Handle this
-        //    by waiting and trying again.  The loop allows 5 minutes for 
-        //    db reboot.
-        boolean connectionsSucceeded=false;
-        int dbLoop=20;
-        
-        try {
-            for(int i=1; i < dbLoop; i++) {
+        //    by waiting and trying again.  By default the loop allows 5 minutes
+        //    for db reboot.  In BACKGROUND mode this all happens off the
+        //    calling thread; the pool meanwhile opens connections on demand.
+        if(config.getWarmUp() == PoolConfig.WarmUp.BACKGROUND) {
+            startHousekeeping();
+            Thread warmer = new Thread(() -> warmUp(_minConns, config), "DbConnectionBroker warm-up");
+            warmer.setDaemon(true);
+            warmer.start();
+        }
+        else {
+            warmUp(_minConns, config);
+            if(_ready.isCompletedExceptionally()) {
                 try {
-                    for(int j=0; j < _currConnections; j++) { 
-                        createConn(j);
-                    }
-                    connectionsSucceeded=true;
-                    break;
+                    _ready.join();
                 }
-                catch (SQLException e){
-                	if (debugLevel > 0) {
-                		LOG.info("--->Attempt (" + String.valueOf(i) +
-                				" of " + String.valueOf(dbLoop) + 
-                		") failed to create new connections set at startup: ");
-                		LOG.info("    " + e);
-                		LOG.info("    Will try again in 15 seconds...");
-                	}
-                	try {
-                		Thread.sleep(15000);
-                	}
-                	catch(InterruptedException e1) {}
+                catch(CompletionException e) {
+                    throw new IOException(e.getCause());
                 }
             }
-            if(!connectionsSucceeded) { // All attempts at connecting to db exhausted
-            	if(debugLevel > 0) {
-            		LOG.info("\r\nAll attempts at connecting to Database exhausted");
-            	}
-                throw new IOException();
+            startHousekeeping();
+        }
+
+    }//End DbConnectionBroker()
+
+
+    private void startHousekeeping() {
+        _housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "DbConnectionBroker housekeeping");
+            t.setDaemon(true);
+            return t;
+        });
+        _housekeeper.scheduleWithFixedDelay(this, _housekeepingMillis, _housekeepingMillis, TimeUnit.MILLISECONDS);
+        if(_queryWatchdogMillis > 0) {
+            _housekeeper.scheduleWithFixedDelay(this::cancelRunawayStatements,
+                    _queryWatchdogMillis, _queryWatchdogMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels statements that have run past their query timeout.  The
+     * statement's caller gets an exception and the connection stays in the
+     * pool, instead of being held until the max checkout time has passed and
+     * then torn down.  Cancel requests go out on the abort executor so a
+     * slow database does not hold up the housekeeping thread.
+     */
+    private void cancelRunawayStatements() {
+        try {
+            long now = System.currentTimeMillis();
+            int slotCount = _bag.getSlotCount();
+            for(int i=0; i < slotCount && _available; i++) {
+                Statement stmt = _runningStmt.get(i);
+                if(stmt == null || now < _runningDeadline[i] || !_runningStmt.compareAndSet(i, stmt, null)) {
+                    continue;
+                }
+                _queriesCancelled.increment();
+                if(_debugLevel > 0) {
+                    LOG.info("Cancelling statement on connection " + i + " after it ran past its query timeout");
+                }
+                getAbortExecutor().execute(() -> {
+                    try {
+                        stmt.cancel();
+                    }
+                    catch(SQLException e) {
+                        if(_debugLevel > 1) {
+                            LOG.info("Unable to cancel statement: " + e);
+                        }
+                    }
+                });
             }
         }
-        catch (Exception e) { 
-            throw new IOException(e);
+        catch(RuntimeException e) {
+            LOG.error("Error during query watchdog pass", e);
         }
-        
-        // Fire up the background housekeeping thread
+    }
 
-        runner = new Thread(this);
-        runner.start();
+    /**
+     * @return query timeout applied to new statements, in seconds; zero for none
+     */
+    int getDefaultQueryTimeout() {
+        return _queryTimeoutSeconds;
+    }
 
-    }//End DbConnectionBroker()
+    /**
+     * Records that a statement with a query timeout has started executing
+     * on a checked out connection, so the watchdog can cancel it if it
+     * overruns.  Does nothing if the watchdog is off.
+     *
+     * @param ticket ticket of the checkout the statement belongs to
+     * @param stmt driver statement
+     * @param seconds the statement's query timeout
+     */
+    void startRunning(long ticket, Statement stmt, int seconds) {
+        if(_queryWatchdogMillis > 0) {
+            int slot = ConnectionBag.slotOf(ticket);
+            _runningDeadline[slot] = System.currentTimeMillis() + seconds * 1000L;
+            _runningStmt.set(slot, stmt);
+        }
+    }
 
+    /**
+     * Records that a statement passed to <code>startRunning</code> has finished
+     *
+     * @param ticket ticket of the checkout the statement belongs to
+     * @param stmt driver statement
+     */
+    void stopRunning(long ticket, Statement stmt) {
+        if(_queryWatchdogMillis > 0) {
+            _runningStmt.compareAndSet(ConnectionBag.slotOf(ticket), stmt, null);
+        }
+    }
 
     /**
-     * Housekeeping thread.  Runs in the background with low CPU overhead.
-     * Connections are checked for warnings and closure and are periodically
-     * restarted.
-     * This thread is a catchall for corrupted
-     * connections and prevents the buildup of open cursors. (Open cursors
-     * result when the application fails to close a Statement).
+     * Opens the minimum number of connections, retrying as configured until
+     * it succeeds, and completes the broker's readiness future with the result.
+     */
+    private void warmUp(int minConns, PoolConfig config) {
+        int attempts = config.getWarmUpAttempts();
+        SQLException lastError = null;
+        for(int i=1; i <= attempts && _available; i++) {
+            try {
+                openInitialConnections(minConns, config.getWarmUp() != PoolConfig.WarmUp.SERIAL);
+                _ready.complete(null);
+                return;
+            }
+            catch (SQLException e) {
+                lastError = e;
+            	if (_debugLevel > 0) {
+            		LOG.info("--->Attempt (" + String.valueOf(i) +
+            				" of " + String.valueOf(attempts) + 
+            		") failed to create new connections set at startup: ");
+            		LOG.info("    " + e);
+            	}
+            	if(i == attempts) {
+            		break;
+            	}
+            	if (_debugLevel > 0) {
+            		LOG.info("    Will try again in " + config.getWarmUpRetryInterval() + " ms...");
+            	}
+            	try {
+            		Thread.sleep(config.getWarmUpRetryInterval());
+            	}
+            	catch(InterruptedException e1) {
+            		Thread.currentThread().interrupt();
+            		break;
+            	}
+            }
+        }
+        // All attempts at connecting to db exhausted
+        if(_debugLevel > 0) {
+        	LOG.info("\r\nAll attempts at connecting to Database exhausted");
+        }
+        _ready.completeExceptionally(new SQLException("Unable to open initial connections", lastError));
+    }
+
+    /**
+     * Opens connections until the pool holds at least <code>minConns</code>,
+     * either one after another or all at once on short-lived threads.
+     *
+     * @throws SQLException if any of the connections could not be opened
+     */
+    private void openInitialConnections(int minConns, boolean parallel) throws SQLException {
+        int needed = minConns - getSize();
+        if(needed <= 0) {
+            return;
+        }
+        if(!parallel || needed == 1) {
+            for(int i=0; i < needed; i++) {
+                int slot = openConnection();
+                if(slot < 0) {
+                    return;
+                }
+                _bag.publish(slot);
+            }
+            return;
+        }
+        ExecutorService opener = Executors.newFixedThreadPool(needed, r -> {
+            Thread t = new Thread(r, "DbConnectionBroker warm-up");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for(int i=0; i < needed; i++) {
+                results.add(opener.submit(() -> {
+                    int slot = openConnection();
+                    if(slot >= 0) {
+                        _bag.publish(slot);
+                    }
+                    return null;
+                }));
+            }
+            SQLException error = null;
+            for(Future<?> result : results) {
+                try {
+                    result.get();
+                }
+                catch(ExecutionException e) {
+                    if(error == null) {
+                        error = (e.getCause() instanceof SQLException ?
+                                (SQLException)e.getCause() : new SQLException(e.getCause()));
+                    }
+                }
+            }
+            if(error != null) {
+                throw error;
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while opening connections", e);
+        }
+        finally {
+            opener.shutdownNow();
+        }
+    }
+
+    /**
+     * Housekeeping pass.  Runs in the background with low CPU overhead:
+     * the broker schedules it every few seconds on its own housekeeping
+     * executor.  Each pass looks at each connection, but only does
+     * work on a connection when one of its own deadlines has passed:
+     * <ul>
+     *   <li>a connection older than the max connection time is restarted</li>
+     *   <li>an idle connection unused for longer than the idle timeout is
+     *       closed, shrinking the pool, as long as enough idle connections
+     *       remain</li>
+     *   <li>an idle connection is checked for warnings and validated with
+     *       <code>Connection.isValid()</code> once per validation interval,
+     *       unless it was in use recently enough to be known good</li>
+     *   <li>a connection checked out for longer than the max checkout time
+     *       is reported as leaked and, depending on the leak mode, taken
+     *       back and restarted</li>
+     * </ul>
+     * This pass is a catchall for corrupted
+     * connections.  (Open cursors, which result when the application fails
+     * to close a Statement, are freed each time a connection is returned;
+     * see <code>DbConnection</code>.)
      * This method acts as fault tolerance for bad connection/statement programming.
      */
     @Override
     public void run() {
-    	
-        boolean forever = true;
-        Statement stmt=null;
-        long maxCheckoutMillis = _maxCheckoutSeconds * 1000;
-
-        while (forever) {
-		    	    
-		    // Get any Warnings on connections and print to event file
-		    for(int i=0; i < _currConnections; i++) {            
-		    	try { 
-		    		_currSQLWarning = _connPool[i].getWarnings(); 
-		    		if(_currSQLWarning != null) {
-		    			if(_debugLevel > 1) {
-		    				LOG.info("Warnings on connection " + 
-		    						String.valueOf(i) + " " + _currSQLWarning);
-		    			}
-		    			_connPool[i].clearWarnings();
-		    		}
-		    	}
-		    	catch(SQLException e) {
-		    		if(_debugLevel > 1) {
-		    			LOG.info("Cannot access Warnings: " + e);
-		    		}
-		    	}		
+        try {
+		    long now = System.currentTimeMillis();
+		    if(_targetWaitMillis > 0) {
+		    	adjustPoolLimit(now);
 		    }
-	            
-		    for(int i=0; i < _currConnections; i++) { // Do for each connection
-		    	long age = System.currentTimeMillis() - _connCreateDate[i];
-			
-		    	try {  // Test the connection with createStatement call
-		    		synchronized(_connStatus) {
-		    			if (_connStatus[i] > 0) { // In use, catch it next time!
-				    
-		    				// Check the time it's been checked out and recycle
-		    				long timeInUse = System.currentTimeMillis() - _connLockTime[i];			
-		    				if (_debugLevel > 2) {
-		    					LOG.info("Warning.  Connection " + i + 
-		    							" in use for " + timeInUse + " ms");
-		    				}
-		    				if (maxCheckoutMillis != 0) {
-		    					if (timeInUse > maxCheckoutMillis) {
-		    						if(_debugLevel > 1) {
-		    							LOG.info("Warning. Connection " + 
-		    									i + " failed to be returned in time.  Recycling...");
-		    						}
-		    						throw new SQLException();
-		    					}
-		    				}
-		    				continue;
-		    			}
-		    			_connStatus[i] = 2; // Take offline (2 indicates housekeeping lock)
-		    		}
-		    		
-		    		if (age > _maxConnMSec) {  // Force a reset at the max conn time
-		    			throw new SQLException();
-		    		}
-			    
-		    		stmt = _connPool[i].createStatement();
-		    		_connStatus[i] = 0;  // Connection is O.K.
-		    		//log.info("Connection confirmed for conn = " +
-		    		//             String.valueOf(i));
-			    
-		    		// Some DBs return an object even if DB is shut down
-		    		if(_connPool[i].isClosed()) {
-		    			throw new SQLException();
-		    		}
-			    
-		    		// Connection has a problem, restart it
+		    int excess = getSize() - _poolLimit;
+		    int slotCount = _bag.getSlotCount();
+		    for(int i=0; i < slotCount && _available; i++) { // Do for each connection
+		    	int state = _bag.getState(i);
+		    	if(state == ConnectionBag.STATE_IN_USE) {
+		    		checkCheckoutTime(i, now);
 		    	}
-		    	catch(SQLException e) {
-	
-		    		if(_debugLevel > 1) {
-		    			LOG.info(new Date().toString() + 
-		    					" ***** Recycling connection " + 
-		    					String.valueOf(i) + ":");
-		    		}
-				
-		    		try {
-		    			_connPool[i].close(); 
-		    		}
-		    		catch(SQLException e0) {
-		    			if(_debugLevel > 0) {
-		    				LOG.info("Error!  Can't close connection!  Might have been closed already.  Trying to recycle anyway... (" + e0 + ")");
-		    			}
-		    		}
-	
-		    		try {
-		    			createConn(i);
-		    		}
-		    		catch(SQLException e1) {
-		    			if(_debugLevel > 0) {
-		    				LOG.info("Failed to create connection: " + e1);
-		    			}
-		    			_connStatus[i] = 0;  // Can't open, try again next time
-		    		}
+		    	else if(state == ConnectionBag.STATE_FREE && checkIdleConnection(i, now, excess > 0)) {
+		    		excess--;
 		    	}
-		    	finally {
-		    		try{
-		    			if (stmt != null) {
-		    				stmt.close();
-		    			}
-		    		}
-		    		catch(SQLException e1){}
-		    	}
-		    }
-		    
-		    try {
-		    	Thread.sleep(20000);
-		    }  // Wait 20 seconds for next cycle
-		    
-		    catch (InterruptedException e) {
-		    	// Returning from the run method sets the internal 
-		    	// flag referenced by Thread.isAlive() to false.
-		    	// This is required because we don't use stop() to 
-		    	// shutdown this thread.
-		    	return;
 		    }
         }
+        catch(RuntimeException e) {
+        	// an exception would cancel all future passes; log it and carry on
+        	LOG.error("Error during connection pool housekeeping", e);
+        }
     } // End run
+
+    /**
+     * Reports a connection that has been checked out for longer than the max
+     * checkout time as leaked, along with the stack that checked it out if
+     * one was recorded.  In RECLAIM mode the connection is then taken back,
+     * aborted and replaced; in WARN mode each checkout is reported once and
+     * left with its caller.
+     */
+    private void checkCheckoutTime(int i, long now) {
+    	// Check the time it's been checked out and recycle
+    	long timeInUse = now - _connLockTime[i];
+    	if (_debugLevel > 2) {
+    		LOG.info("Warning.  Connection " + i + 
+    				" in use for " + timeInUse + " ms");
+    	}
+    	long maxCheckoutMillis = _maxCheckoutSeconds * 1000L;
+    	if (maxCheckoutMillis == 0 || timeInUse <= maxCheckoutMillis) {
+    		return;
+    	}
+    	long generation = _bag.getGeneration(i);
+    	if (_leakMode == PoolConfig.LeakMode.WARN) {
+    		if (_connLeakReported[i] != generation) {
+    			_connLeakReported[i] = generation;
+    			reportLeak(i, timeInUse, _connCheckoutTrace[i]);
+    		}
+    	}
+    	else {
+    		Throwable trace = _connCheckoutTrace[i];
+    		int lane = _connLane[i];
+    		if (_bag.retire(ConnectionBag.ticketOf(i, generation))) {
+    			leaveLane(lane);
+    			reportLeak(i, timeInUse, trace);
+    			if(_debugLevel > 1) {
+    				LOG.info("Warning. Connection " + 
+    						i + " failed to be returned in time.  Aborting and recycling...");
+    			}
+    			abortConn(i);
+    			reopenConn(i);
+    		}
+    	}
+    }
+
+    private void reportLeak(int i, long timeInUse, Throwable trace) {
+    	_leaksDetected.increment();
+    	String msg = "Connection " + i + " leaked: checked out for " + timeInUse + " ms";
+    	if (trace != null) {
+    		LOG.warn(msg, trace);
+    	}
+    	else {
+    		LOG.warn(msg + " (checkout stack not recorded)");
+    	}
+    }
+
+    /**
+     * Restarts, retires or validates an idle connection if any of its
+     * deadlines have passed, or retires it if the pool is over its limit.
+     * Does nothing (and makes no JDBC calls) otherwise.
+     *
+     * @return true if the connection was closed, shrinking the pool
+     */
+    private boolean checkIdleConnection(int i, long now, boolean overLimit) {
+    	boolean expired = (now - _connCreateDate[i] > _connMaxAge[i] || isStale(i));
+    	boolean idleTooLong = overLimit ||
+    			(_idleTimeoutMillis > 0 && now - _connLastUsed[i] > _idleTimeoutMillis);
+    	boolean validationDue = (now >= _connNextCheck[i]);
+    	if(!expired && !idleTooLong && !validationDue) {
+    		return false;
+    	}
+    	if(!_bag.reserve(i)) {
+    		return false; // Checked out in the meantime, catch it next time!
+    	}
+    	// Slot is now offline (reserved for housekeeping)
+
+    	if(expired) {  // Force a reset at the max conn time
+    		recycleConn(i);
+    	}
+    	else if(idleTooLong && _bag.count(ConnectionBag.STATE_FREE) >= _minIdle) {
+    		if(_debugLevel > 2) {
+    			LOG.info("Closing connection " + i + ", idle for " + (now - _connLastUsed[i]) + " ms");
+    		}
+    		closeConn(i);
+    		_bag.discard(i);
+    		return true;
+    	}
+    	else if(now - _connLastUsed[i] < _validationWindowMillis || isConnectionValid(i)) {
+    		_connNextCheck[i] = now + _validationIntervalMillis;
+    		_bag.publish(i);  // Connection is O.K.
+    	}
+    	else {
+    		recycleConn(i);
+    	}
+    	return false;
+    }
+
+    /**
+     * Adaptive sizing.  Samples utilization on every pass and, once per
+     * adaptive interval, raises the pool limit by a quarter if the 95th
+     * percentile checkout wait over the interval exceeded the target while
+     * the pool was full, or lowers it by a tenth if the pool was on average
+     * less than half used.  The limit never leaves [minConns, ceiling];
+     * connections above a lowered limit are closed as they become idle.
+     */
+    private void adjustPoolLimit(long now) {
+    	int limit = _poolLimit;
+    	_utilizationSum += (double)getUseCount() / limit;
+    	_utilizationSamples++;
+    	if(now - _lastAdjust < _adaptiveIntervalMillis) {
+    		return;
+    	}
+    	long[] waits = _waitTimes.getCounts();
+    	long p95 = (_waitSnapshot.length == 0 ? _waitTimes.getPercentile(95) :
+    			LatencyHistogram.getPercentile(_waitSnapshot, waits, 95));
+    	double utilization = _utilizationSum / _utilizationSamples;
+    	if(p95 > _targetWaitMillis && getSize() >= limit && limit < _maxConns) {
+    		limit = Math.min(_maxConns, limit + Math.max(1, limit / 4));
+    	}
+    	else if(utilization < LOW_UTILIZATION && limit > _minConns) {
+    		limit = Math.max(_minConns, limit - Math.max(1, limit / 10));
+    	}
+    	if(limit != _poolLimit) {
+    		if(_debugLevel > 1) {
+    			LOG.info("Adaptive sizing: p95 wait " + p95 + " ms, utilization " +
+    					Math.round(utilization * 100) + "%; connection limit " + _poolLimit + " -> " + limit);
+    		}
+    		_poolLimit = limit;
+    	}
+    	_waitSnapshot = waits;
+    	_utilizationSum = 0;
+    	_utilizationSamples = 0;
+    	_lastAdjust = now;
+    }
+
+    /**
+     * Checks a reserved connection for warnings and for liveness.
+     */
+    private boolean isConnectionValid(int i) {
+    	try {
+    		// Get any Warnings on connection and print to event file
+    		SQLWarning warning = _connPool[i].getWarnings(); 
+    		if(warning != null) {
+    			if(_debugLevel > 1) {
+    				LOG.info("Warnings on connection " + 
+    						String.valueOf(i) + " " + warning);
+    			}
+    			_connPool[i].clearWarnings();
+    		}
+    		return _connPool[i].isValid(VALIDATION_TIMEOUT_SECONDS);
+    	}
+    	catch(SQLException e) {
+    		if(_debugLevel > 1) {
+    			LOG.info("Connection " + i + " failed validation: " + e);
+    		}
+    		return false;
+    	}
+    }
+
+    /**
+     * Closes the connection in a reserved slot and opens a new one in its
+     * place.  If the new connection cannot be opened the slot is left empty
+     * and is reopened on demand.
+     */
+    private void recycleConn(int i) {
+    	if(_debugLevel > 1) {
+    		LOG.info(new Date().toString() + 
+    				" ***** Recycling connection " + 
+    				String.valueOf(i) + ":");
+    	}
+    	_connsRecycled.increment();
+    	closeConn(i);
+    	reopenConn(i);
+    }
+
+    /**
+     * Opens a new connection in a reserved slot whose connection has been
+     * closed, and returns the slot to the pool.  If the new connection cannot
+     * be opened the slot is left empty and is reopened on demand; a waiting
+     * request, if any, is woken to do so.
+     */
+    private void reopenConn(int i) {
+    	try {
+    		createConn(i);
+    		_bag.publish(i);
+    	}
+    	catch(SQLException e1) {
+    		if(_debugLevel > 0) {
+    			LOG.info("Failed to create connection: " + e1);
+    		}
+    		_bag.discard(i);  // Can't open, reopen on demand
+    		_bag.wakeForRoom();
+    	}
+    }
+
+    /**
+     * Aborts the connection in a reserved slot, ending any work its leaked
+     * holder still has in progress without waiting on the database.  Falls
+     * back to closing it if the driver does not support abort.
+     */
+    private void abortConn(int i) {
+    	if(_stmtCache[i] != null) {
+    		_stmtCache[i].close();
+    		_stmtCache[i] = null;
+    	}
+    	try {
+    		_connPool[i].abort(getAbortExecutor());
+    	}
+    	catch(SQLException | AbstractMethodError e) {
+    		if(_debugLevel > 1) {
+    			LOG.info("Unable to abort connection " + i + "; closing instead (" + e + ")");
+    		}
+    		closeConn(i);
+    	}
+    }
+
+    private ExecutorService getAbortExecutor() {
+    	if(_abortExecutor == null) {
+    		_abortExecutor = Executors.newCachedThreadPool(r -> {
+    			Thread t = new Thread(r, "DbConnectionBroker abort");
+    			t.setDaemon(true);
+    			return t;
+    		});
+    	}
+    	return _abortExecutor;
+    }
+
+    private void closeConn(int i) {
+    	if(_stmtCache[i] != null) {
+    		_stmtCache[i].close();
+    		_stmtCache[i] = null;
+    	}
+    	try {
+    		_connPool[i].close(); 
+    	}
+    	catch(SQLException e0) {
+    		if(_debugLevel > 0) {
+    			LOG.info("Error!  Can't close connection!  Might have been closed already.  Trying to recycle anyway... (" + e0 + ")");
+    		}
+    	}
+    }
     
     /**
-     * This method hands out the connections in round-robin order.
-     * This prevents a faulty connection from locking
-     * up an application entirely.  A browser 'refresh' will
-     * get the next connection while the faulty
-     * connection is cleaned up by the housekeeping thread.
+     * This method hands out the connections without taking any lock.  A
+     * thread is first offered the connection it most recently returned;
+     * otherwise the pool is scanned from a random position so that
+     * concurrent requests spread across the connections.  This also
+     * prevents a faulty connection from locking up an application
+     * entirely.  A browser 'refresh' will get another connection while the
+     * faulty connection is cleaned up by the housekeeping thread.
      * 
      * If the min number of threads are ever exhausted, new
      * threads are added up the the max thread count.
-     * Finally, if all threads are in use, this method waits
-     * 2 seconds and tries again, up to ten times.  After that, it
-     * returns a null.
+     * Finally, if all threads are in use, the caller joins a FIFO wait
+     * queue and is handed the next connection returned to the pool.  If
+     * none is returned within the checkout timeout, or the queue is already
+     * at its maximum depth, a <code>SQLTransientConnectionException</code>
+     * is thrown.
+     * 
+     * Inside a <code>UnitOfWork</code> for this broker, the connection bound
+     * to the unit of work is returned instead and no checkout takes place.
+     * 
+     * If the pool has priority lanes, this checkout belongs to the default
+     * lane; see <code>getConnection(String)</code>.
+     * 
+     * @throws SQLTransientConnectionException if no connection became available in time
+     * @throws SQLException if the pool has been destroyed or the caller was interrupted
      */
     @Override
-    public Connection getConnection() { 
-    
-        Connection conn=null;
-
-        if(_available){
-            boolean gotOne = false;
-            
-            for(int outerloop=1; outerloop<=10; outerloop++) {
-            
-                try  {
-                	int loop=0;
-                    int roundRobin = _connLast + 1;
-                    if(roundRobin >= _currConnections) roundRobin=0;
-                    
-                    do {
-                    	synchronized(_connStatus) {
-                    		if ((_connStatus[roundRobin] < 1) &&
-                    		    (! _connPool[roundRobin].isClosed())) {
-                    			conn = _connPool[roundRobin];
-                    			_connStatus[roundRobin]=1;
-                    			_connLockTime[roundRobin] = System.currentTimeMillis();
-                    			_connLast = roundRobin;
-                    			gotOne = true;
-                    			break;
-                            }
-                    		else {
-                                loop++;
-                                roundRobin++;
-                                if(roundRobin >= _currConnections) roundRobin=0;
-                    		}
-                    	}
-                    }
-                    while((gotOne==false)&&(loop < _currConnections));                    
-                }
-                catch (SQLException e1) {
-                	LOG.info("Error: " + e1);
-                }
-            
-                if(gotOne) {
-                	break;
-                }
-                else {
-                	synchronized(this) {  // Add new connections to the pool
-                		if(_currConnections < _maxConns) {
-                			try {
-                				createConn(_currConnections);
-                				_currConnections++;
-                            }
-                			catch(SQLException e) {
-                				if(_debugLevel > 0) {
-                					LOG.info("Error: Unable to create new connection: " + e);
-                				}
-                            }
-                        }
-                    }
-                    
-                    try { Thread.sleep(2000); }
-                    catch(InterruptedException e) {}
+    public Connection getConnection() throws SQLException { 
+        return getConnection((String)null);
+    }
 
-                    if(_debugLevel > 0) {
-                    	LOG.info("-----> Connections Exhausted!  Will wait and try again in loop " + 
-                    			String.valueOf(outerloop));
-                    }
-                }                
-            } // End of try 10 times loop
+    /**
+     * Checks out a connection on behalf of a priority lane configured with
+     * <code>PoolConfig.addLane</code>.  The checkout may use the connections
+     * reserved for the lane, and if it has to wait it is served ahead of
+     * waiting borrowers from lower priority lanes.  Unknown lane names and
+     * null are treated as the default lane, which ranks below all named
+     * lanes.  Otherwise behaves as <code>getConnection()</code>.
+     * 
+     * @param lane name of the lane
+     * @return connection
+     * @throws SQLTransientConnectionException if no connection became available in time
+     * @throws SQLException if the pool has been destroyed or the caller was interrupted
+     */
+    public Connection getConnection(String lane) throws SQLException { 
+
+        UnitOfWork scope = UnitOfWork.current(this);
+        return (scope != null ? scope.getConnection(lane) : checkOutConnection(lane));
+    }
+
+    /**
+     * Checks out several connections at once for a job that needs all of
+     * them to make progress, such as one that splits its work across
+     * parallel workers.  Either all <code>count</code> connections are
+     * checked out or, if they cannot all be had within the timeout, none
+     * are: any taken on the way are returned before the exception is thrown.
+     * 
+     * Bulk leases are gathered one at a time, so two jobs can never each
+     * hold part of what the other is waiting for.  The connections belong to
+     * the default lane and are not bound to any <code>UnitOfWork</code>.
+     * 
+     * Leased connections are checked out like any other, so they are subject
+     * to <code>maxCheckoutSeconds</code>: under the default
+     * <code>LeakMode.RECLAIM</code>, a job that holds its lease longer than
+     * that has its connections aborted.  Long jobs need a pool configured
+     * with a longer checkout limit or <code>LeakMode.WARN</code>.
+     * 
+     * @param count number of connections to lease
+     * @param timeoutMillis maximum time to wait for all of them
+     * @return the leased connections; close the lease to return them
+     * @throws IllegalArgumentException if the pool's current connection limit,
+     * less the connections reserved for named lanes, is below <code>count</code>
+     * @throws SQLTransientConnectionException if the connections could not all be checked out in time
+     * @throws SQLException if the pool has been destroyed or the caller was interrupted
+     */
+    public ConnectionLease leaseConnections(int count, long timeoutMillis) throws SQLException {
+        int maxCount = _poolLimit - (_lanes == null ? 0 : _lanes.getReservedTotal());
+        if(count < 1 || count > maxCount) {
+        	throw new IllegalArgumentException("Cannot lease " + count + " connections from a pool that can lend at most " + maxCount);
         }
-        else {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+        	if(!_leaseLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        		_checkoutTimeouts.increment();
+        		throw new SQLTransientConnectionException("Another bulk lease held the pool for longer than " + timeoutMillis + " ms");
+        	}
+        }
+        catch(InterruptedException e) {
+        	Thread.currentThread().interrupt();
+        	throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        List<Connection> conns = new ArrayList<Connection>(count);
+        try {
+        	while(conns.size() < count) {
+        		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        		conns.add(checkOutConnection(null, Math.max(remaining, 0)));
+        	}
+        }
+        catch(SQLException | RuntimeException e) {
+        	if(_debugLevel > 0) {
+        		LOG.info("Bulk lease of " + count + " connections failed after " + conns.size() + "; returning them");
+        	}
+        	new ConnectionLease(conns).closeQuietly();
+        	if(e instanceof SQLTransientConnectionException) {
+        		throw new SQLTransientConnectionException("Could not lease " + count + " connections within " +
+        				timeoutMillis + " ms", e);
+        	}
+        	throw e;
+        }
+        finally {
+        	_leaseLock.unlock();
+        }
+        return new ConnectionLease(conns);
+    }
+
+    /**
+     * Checks a connection out of the pool, bypassing any unit of work
+     * 
+     * @param laneName lane the checkout belongs to, or null for the default lane
+     */
+    DbConnection checkOutConnection(String laneName) throws SQLException { 
+        return checkOutConnection(laneName, _checkoutTimeoutMillis);
+    }
+
+    /**
+     * Checks a connection out of the pool, bypassing any unit of work
+     * 
+     * @param laneName lane the checkout belongs to, or null for the default lane
+     * @param timeoutMillis maximum time to wait for a connection
+     */
+    private DbConnection checkOutConnection(String laneName, long timeoutMillis) throws SQLException { 
+    
+        if(!_available){
         	if(_debugLevel > 0) {
         		LOG.info("Unsuccessful getConnection() request during destroy()");
         	}
+        	throw new SQLException("Connection pool has been shut down");
         } // End if(available)    
-                    
+
+        long start = System.nanoTime();
+        if(_lanes == null) {
+        	return takeConnection(-1, start, timeoutMillis);
+        }
+        int lane = _lanes.laneOf(laneName);
+        enterLane(lane, laneName, timeoutMillis);
+        try {
+        	return takeConnection(lane, start, timeoutMillis);
+        }
+        catch(SQLException | RuntimeException e) {
+        	_lanes.release(lane);
+        	throw e;
+        }
+    }
+
+    /**
+     * Waits until the checkout may go ahead under its lane's priority and
+     * the other lanes' reserves.
+     */
+    private void enterLane(int lane, String laneName, long timeoutMillis) throws SQLException {
+    	boolean admitted;
+    	try {
+    		admitted = _lanes.acquire(lane, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    	}
+    	catch(InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new SQLException("Interrupted while waiting for a connection", e);
+    	}
+    	if(!admitted) {
+    		_lastExhausted = System.currentTimeMillis();
+    		_checkoutTimeouts.increment();
+    		if(_debugLevel > 0) {
+    			LOG.info("-----> Connections Exhausted!  No connection for lane " + laneName + " within " + timeoutMillis + " ms");
+    		}
+    		throw new SQLTransientConnectionException("No connection available for lane " + laneName +
+    				" within " + timeoutMillis + " ms");
+    	}
+    }
+
+    /**
+     * Gives back the lane admission of a checkout that has ended
+     */
+    private void leaveLane(int lane) {
+    	if(lane >= 0) {
+    		_lanes.release(lane);
+    	}
+    }
+
+    /**
+     * Takes a connection from the pool, opening one or waiting for one to be
+     * returned if none is free
+     * 
+     * @param lane lane the checkout was admitted to, or -1 if the pool has no lanes
+     * @param start time the request started, from <code>System.nanoTime()</code>
+     * @param timeoutMillis maximum time to wait for a connection to be returned
+     */
+    private DbConnection takeConnection(int lane, long start, long timeoutMillis) throws SQLException {
+        long ticket = checkOut();
+
+        SQLException createError = null;
+        if(ticket == ConnectionBag.NO_TICKET) {
+            // Add a new connection to the pool and take it
+            try {
+            	int slot = openConnection();
+            	if(slot >= 0) {
+            		_connLockTime[slot] = System.currentTimeMillis();
+            		ticket = _bag.lend(slot);
+            	}
+            }
+            catch(SQLException e) {
+            	if(_debugLevel > 0) {
+            		LOG.info("Error: Unable to create new connection: " + e);
+            	}
+            	createError = e;
+            }
+        }
+
+        if(ticket == ConnectionBag.NO_TICKET) {
+        	ticket = awaitConnection(createError, timeoutMillis);
+        }
+
+        _waitTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        int slot = ConnectionBag.slotOf(ticket);
+        _connLane[slot] = lane;
+        _connCheckoutTrace[slot] = (_leakTraceSampling > 0 &&
+                ThreadLocalRandom.current().nextInt(_leakTraceSampling) == 0 ?
+                new Throwable("Connection " + slot + " checked out here") : null);
         if(_debugLevel > 2) {
-        	LOG.info("Handing out connection " + 
-        			idOfConnection(conn) + " --> " +
+        	LOG.info("Handing out connection " + slot + " --> " +
         			(new SimpleDateFormat("MM/dd/yyyy  hh:mm:ss a")).format(new java.util.Date()));
         }
 
-        return new DbConnection(this, conn);
+        return new DbConnection(this, _connPool[slot], ticket, _stmtCache[slot]);
+    }
+
+    /**
+     * Waits in the pool's queue for a connection to be returned.  If woken
+     * because a slot was emptied, opens a connection in it instead; once an
+     * open has failed, e.g. while the database is down, the open is retried
+     * every REOPEN_RETRY_MILLIS for the rest of the wait.
+     *
+     * @param createError error from the last attempt to grow the pool, if any
+     * @param timeoutMillis maximum time to wait
+     * @return ticket for the handed over connection
+     * @throws SQLException if no connection could be obtained
+     */
+    private long awaitConnection(SQLException createError, long timeoutMillis) throws SQLException {
+    	_lastExhausted = System.currentTimeMillis();
+    	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    	boolean retrying = false;
+    	long ticket;
+    	while(true) {
+    		long remaining = Math.max(deadline - System.nanoTime(), 0);
+    		try {
+    			ticket = _bag.await((retrying ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(REOPEN_RETRY_MILLIS)) : remaining),
+    					_maxWaiters);
+    		}
+    		catch(InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new SQLException("Interrupted while waiting for a connection", e);
+    		}
+    		boolean timeLeft = (deadline - System.nanoTime() > 0);
+    		if(!_available || !(ticket == ConnectionBag.ROOM || (retrying && ticket == ConnectionBag.NO_TICKET && timeLeft))) {
+    			break;
+    		}
+    		try {
+    			int slot = openConnection();
+    			if(slot >= 0) {
+    				ticket = _bag.lend(slot);
+    				break;
+    			}
+    			retrying = false;  // the pool filled up again; wait for a return
+    		}
+    		catch(SQLException e) {
+    			createError = e;
+    			retrying = true;
+    		}
+    	}
+    	if(ticket == ConnectionBag.ROOM) {
+    		ticket = ConnectionBag.NO_TICKET;  // shut down while opening
+    	}
+    	if(ticket == ConnectionBag.QUEUE_FULL) {
+    		_checkoutTimeouts.increment();
+    		if(_debugLevel > 0) {
+    			LOG.info("-----> Connections Exhausted!  Rejecting request; " + _maxWaiters + " requests already waiting");
+    		}
+    		throw new SQLTransientConnectionException("Connection pool exhausted and " +
+    				_maxWaiters + " requests are already waiting");
+    	}
+    	if(ticket == ConnectionBag.NO_TICKET) {
+    		if(!_available) {
+    			throw new SQLException("Connection pool has been shut down");
+    		}
+    		_checkoutTimeouts.increment();
+    		if(_debugLevel > 0) {
+    			LOG.info("-----> Connections Exhausted!  No connection returned within " + timeoutMillis + " ms");
+    		}
+    		throw new SQLTransientConnectionException("No connection available within " +
+    				timeoutMillis + " ms", createError);
+    	}
+    	_connLockTime[ConnectionBag.slotOf(ticket)] = System.currentTimeMillis();
+    	return ticket;
+    }
+
+    /**
+     * Takes a free connection from the pool.  Connections found closed by
+     * the driver are dropped from the pool on the way.
+     *
+     * @return ticket for the checked out connection, or NO_TICKET if none are free
+     */
+    private long checkOut() {
+    	long ticket;
+    	while((ticket = _bag.borrow()) != ConnectionBag.NO_TICKET) {
+    		int slot = ConnectionBag.slotOf(ticket);
+    		try {
+    			if(!_connPool[slot].isClosed()) {
+    				_connLockTime[slot] = System.currentTimeMillis();
+    				return ticket;
+    			}
+    		}
+    		catch(SQLException e) {
+    			LOG.info("Error: " + e);
+    		}
+    		if(_bag.reclaim(slot)) {
+    			try { _connPool[slot].close(); }
+    			catch(SQLException e) {}
+    			_bag.discard(slot);
+    		}
+    	}
+    	return ConnectionBag.NO_TICKET;
+    }
+
+    /**
+     * Opens a new connection in an empty slot.  The slot is returned still
+     * reserved; the caller either publishes it to the pool or lends it out.
+     *
+     * @return slot holding the new connection, or -1 if the pool is full
+     * @throws SQLException if unable to open the connection
+     */
+    private int openConnection() throws SQLException {
+    	int slot = _bag.reserveEmpty(_poolLimit);
+    	if(slot >= 0) {
+    		try {
+    			createConn(slot);
+    		}
+    		catch(SQLException e) {
+    			_bag.discard(slot);
+    			throw e;
+    		}
+    	}
+    	return slot;
     }
     
     /**
-     * Returns the local JDBC ID for a connection.
+     * Returns the local JDBC ID for a connection.  Connections handed out by
+     * this broker carry their slot; any other connection is matched against
+     * the pool by its string form.
      */
     private int idOfConnection(Connection conn) {
 
+        if (conn instanceof DbConnection && ((DbConnection)conn).getTicket() != ConnectionBag.NO_TICKET) {
+            return ConnectionBag.slotOf(((DbConnection)conn).getTicket());
+        }
+
     	int match;
         String tag;
         
@@ -436,8 +1215,9 @@ public class DbConnectionBroker implements DataSource, Runnable {
         
         match=-1;
         
-        for(int i=0; i< _currConnections; i++) {
-            if(_connId[i].equals(tag)) {
+        int slotCount = _bag.getSlotCount();
+        for(int i=0; i< slotCount; i++) {
+            if(tag.equals(_connId[i])) {
                 match = i;
                 break;
             }
@@ -450,10 +1230,13 @@ public class DbConnectionBroker implements DataSource, Runnable {
      * reuse.
      */
     public String freeConnection(Connection conn) {
+        if (conn instanceof DbConnection && ((DbConnection)conn).getTicket() != ConnectionBag.NO_TICKET) {
+            return (freeConnection(((DbConnection)conn).getTicket()) ? "freed " + conn.toString() : "");
+        }
         String res="";
         int thisconn = idOfConnection(conn);
-        if (thisconn >= 0) {
-        	_connStatus[thisconn]=0;
+        if (thisconn >= 0 && _bag.getState(thisconn) == ConnectionBag.STATE_IN_USE &&
+                freeConnection(ConnectionBag.ticketOf(thisconn, _bag.getGeneration(thisconn)))) {
             res = "freed " + conn.toString();
             //log.info("Freed connection " + String.valueOf(thisconn) +
             //            " normal exit: ");
@@ -466,6 +1249,156 @@ public class DbConnectionBroker implements DataSource, Runnable {
         return res;
     }
     
+    /**
+     * Frees the checkout identified by the passed ticket.  This is a constant
+     * time state change on the ticket's slot.  If the slot has since been
+     * reclaimed by the housekeeping thread (and possibly handed to another
+     * borrower), or this checkout was already returned, nothing is freed.
+     *
+     * @param ticket ticket issued when the connection was checked out
+     * @return true if the connection was returned to the pool
+     */
+    boolean freeConnection(long ticket) {
+        int slot = ConnectionBag.slotOf(ticket);
+        // a stale handle must not touch the slot's bookkeeping, which may
+        // belong to another borrower by now
+        if (_bag.isCheckedOut(ticket)) {
+            long now = System.currentTimeMillis();
+            long held = now - _connLockTime[slot];
+            int lane = _connLane[slot];  // read before the slot can be handed on
+            // stamped before the slot is freed, so the idle check never sees an old time
+            _connLastUsed[slot] = now;
+            if (_available && isStale(slot) && _bag.retire(ticket)) {
+                _holdTimes.record(held);
+                leaveLane(lane);
+                recycleLater(slot);
+                return true;
+            }
+            if (_bag.requite(ticket)) {
+                _holdTimes.record(held);
+                leaveLane(lane);
+                signalDrain();
+                return true;
+            }
+        }
+        if(_debugLevel > 1) {
+            LOG.info("----> Ignoring return of stale handle for connection " + slot);
+        }
+        return false;
+    }
+
+    /**
+     * Replaces every connection in the pool, e.g. after the database's
+     * credentials or settings have changed.  Connections are replaced one at
+     * a time by the housekeeping thread: idle ones straight away, checked out
+     * ones as they are returned, so the pool keeps serving throughout.
+     * Connections opened after this call are left alone.
+     */
+    @Override
+    public void recycleAll() {
+        int epoch = _recycleEpoch.incrementAndGet();
+        if(_debugLevel > 0) {
+            LOG.info("Recycling all connections (epoch " + epoch + ")");
+        }
+        try {
+            _housekeeper.execute(this);
+        }
+        catch(RejectedExecutionException e) {
+            // shutting down; nothing left to recycle
+        }
+    }
+
+    /**
+     * @return true if the connection in the slot was opened before the last
+     * call to <code>recycleAll()</code>
+     */
+    private boolean isStale(int i) {
+        return _connEpoch[i] != _recycleEpoch.get();
+    }
+
+    /**
+     * Has the housekeeping thread replace the connection in a reserved slot,
+     * keeping replacements serial and off the returning caller's thread
+     */
+    private void recycleLater(int i) {
+        try {
+            _housekeeper.execute(() -> recycleConn(i));
+        }
+        catch(RejectedExecutionException e) {
+            closeConn(i);
+            _bag.discard(i);
+            signalDrain();
+        }
+    }
+
+    /**
+     * Wakes <code>destroy()</code> if it is waiting for connections to be
+     * returned.  Costs a volatile read while the pool is open.
+     */
+    private void signalDrain() {
+        if(!_available) {
+            _drainLock.lock();
+            try {
+                _drained.signalAll();
+            }
+            finally {
+                _drainLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Records statements and result sets a borrower left open, which were
+     * closed when its connection was returned.
+     *
+     * @param statements number of statements closed
+     * @param resultSets number of result sets closed
+     */
+    void countForceClosed(int statements, int resultSets) {
+        _stmtsForceClosed.add(statements);
+        _resultSetsForceClosed.add(resultSets);
+        if(_debugLevel > 1) {
+            LOG.info("Closed " + statements + " statement(s) and " + resultSets +
+                    " result set(s) left open by a borrower");
+        }
+    }
+
+    /**
+     * @param ticket ticket issued when a connection was checked out
+     * @return true if the connection is still checked out under this ticket
+     */
+    boolean isCheckedOut(long ticket) {
+        return _bag.isCheckedOut(ticket);
+    }
+
+    /**
+     * Takes back a checked out connection that is no longer safe to hand out,
+     * e.g. because its session could not be reset, and closes it.  The pool
+     * reopens the slot on demand.
+     *
+     * @param ticket ticket issued when the connection was checked out
+     * @param cause reason the connection is being discarded
+     */
+    void discardConnection(long ticket, SQLException cause) {
+        int slot = ConnectionBag.slotOf(ticket);
+        int lane = _connLane[slot];
+        if (!_bag.retire(ticket)) {
+            return;
+        }
+        leaveLane(lane);
+        if(_debugLevel > 0) {
+            LOG.info("Discarding connection " + slot + " returned in an unknown state: " + cause);
+        }
+        closeConn(slot);
+        if (_bag.getWaiterCount() > 0) {
+            reopenConn(slot);  // someone is waiting for it
+        }
+        else {
+            _bag.discard(slot);
+        }
+        signalDrain();
+    }
+
     /**
      * Returns the age of a connection -- the time since it was handed out to
      * an application.
@@ -475,28 +1408,100 @@ public class DbConnectionBroker implements DataSource, Runnable {
         return System.currentTimeMillis() - _connLockTime[thisconn];
     }
 
+    /**
+     * Opens a physical connection to the best available host, moving on to
+     * the next host if it fails.  Each host is tried at most once.
+     */
+    private Connection connect() throws SQLException {
+        SQLException error = null;
+        List<HostSelector.Host> tried = new ArrayList<HostSelector.Host>(_hosts.size());
+        for(int attempt=0; attempt < _hosts.size(); attempt++) {
+            HostSelector.Host host = _hosts.select(tried);
+            tried.add(host);
+            long start = System.nanoTime();
+            try {
+                Connection conn = DriverManager.getConnection(host.getUrl(),_dbLogin,_dbPassword);
+                _hosts.success(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return conn;
+            }
+            catch (SQLException e1) {
+                _connFailures.increment();
+                _hosts.failure(host);
+                if(_debugLevel > 0 && _hosts.size() > 1) {
+                    LOG.info("Unable to connect to " + host.getUrl() + ": " + e1);
+                }
+                error = e1;
+            }
+        }
+        throw error;
+    }
+
     private void createConn(int i)
         throws SQLException {
 
         Date now = new Date();        
         try {
             Class.forName (_dbDriver);
-            _connPool[i] = DriverManager.getConnection(_dbServer,_dbLogin,_dbPassword);                           
-            _connStatus[i]=0;
+            _connPool[i] = connect();
+            _connsCreated.increment();
             _connId[i]=_connPool[i].toString();
             _connLockTime[i]=0;
             _connCreateDate[i] =  now.getTime();
+            _connMaxAge[i] = _maxConnMSec -
+                    (long)(ThreadLocalRandom.current().nextDouble() * _lifetimeJitter * _maxConnMSec);
+            _connEpoch[i] = _recycleEpoch.get();
+            _connLastUsed[i] = now.getTime();
+            _connNextCheck[i] = now.getTime() + _validationIntervalMillis;
+            _stmtCache[i] = (_stmtCacheSize > 0 ?
+                    new StatementCache(_stmtCacheSize, _stmtCacheHits, _stmtCacheMisses) : null);
+            prepareConn(i);
         }
         catch (ClassNotFoundException e2) {
         	if(_debugLevel > 0) {
         		LOG.info("Error creating connection: " + e2);
         	}
+        	throw new SQLException("Unable to load JDBC driver " + _dbDriver, e2);
         }
                 
         LOG.info(now.toString() + "  Opening connection " + String.valueOf(i) + 
                     " " + _connPool[i].toString() + ":");
     }
     
+    /**
+     * Runs the init SQL on a newly opened connection and fills its statement
+     * cache with the warm statements, before it is published to borrowers.
+     * If the init SQL fails the connection is closed, since its session is
+     * not what callers expect; a warm statement that fails to prepare is
+     * only logged.
+     */
+    private void prepareConn(int i) throws SQLException {
+        if(!_initSql.isEmpty()) {
+            try (Statement stmt = _connPool[i].createStatement()) {
+                for(String sql : _initSql) {
+                    stmt.execute(sql);
+                }
+            }
+            catch(SQLException e) {
+                closeConn(i);
+                throw new SQLException("Init SQL failed on new connection " + i, e);
+            }
+        }
+        for(String sql : _warmStatements) {
+            StatementCache.Key key = new StatementCache.Key(sql, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY, -1);
+            try {
+                PreparedStatement ps = key.prepare(_connPool[i]);
+                if(_queryTimeoutSeconds > 0) {
+                    ps.setQueryTimeout(_queryTimeoutSeconds);
+                }
+                _stmtCache[i].put(key, ps);
+            }
+            catch(SQLException e) {
+                LOG.warn("Unable to prepare warm statement on connection " + i + ": " + sql, e);
+            }
+        }
+    }
+
     /**
      * Shuts down the housekeeping thread and closes all connections 
      * in the pool. Call this method from the destroy() method of the servlet.
@@ -510,7 +1515,8 @@ public class DbConnectionBroker implements DataSource, Runnable {
      *    Up to the time of <code>millis</code> milliseconds after shutdown of
      *    the housekeeping thread, <code>freeConnection()</code> can still be
      *    called to return used connections.
-     * <LI>After <code>millis</code> milliseconds after the shutdown of the
+     * <LI>As soon as the last used connection is returned, or at the latest
+     *    <code>millis</code> milliseconds after the shutdown of the
      *    housekeeping thread, all connections in the pool are closed.
      * <LI>If any connections were in use while being closed then a
      *    <code>SQLException</code> is thrown.
@@ -525,35 +1531,62 @@ public class DbConnectionBroker implements DataSource, Runnable {
     public void destroy(int millis) throws SQLException {
     
         // Checking for invalid negative arguments is not necessary,
-        // Thread.join() does this already in runner.join().
+        // awaitTermination() treats them as zero.
 
         // Stop issuing connections
         _available=false;
+        _bag.cancelWaiters();
+        unregisterMBean();
 
-        // Shut down the background housekeeping thread
-        runner.interrupt();
+        // Shut down the background housekeeping executor
+        if(_housekeeper != null) {
+            _housekeeper.shutdownNow();
 
-        // Wait until the housekeeping thread has died.
-        try { runner.join(millis); } 
-        catch(InterruptedException e){} // ignore 
+            // Wait until the current housekeeping pass has finished.
+            try { _housekeeper.awaitTermination(millis, TimeUnit.MILLISECONDS); }
+            catch(InterruptedException e){} // ignore 
+        }
+        if(_abortExecutor != null) {
+            _abortExecutor.shutdown();
+        }
         
         // The housekeeping thread could still be running
         // (e.g. if millis is too small). This case is ignored.
         // At worst, this method will throw an exception with the 
         // clear indication that the timeout was too short.
 
-        long startTime=System.currentTimeMillis();
-
         // Wait for freeConnection() to return any connections
-        // that are still used at this time.
+        // that are still used at this time; each return wakes us up,
+        // so this finishes as soon as the last one is back.
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(millis, 0));
         int useCount;
-        while((useCount=getUseCount())>0 && System.currentTimeMillis() - startTime <=  millis) {
-            try { Thread.sleep(500); }
-            catch(InterruptedException e) {} // ignore 
+        _drainLock.lock();
+        try {
+            while((useCount=getUseCount()) > 0) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    break;
+                }
+                _drained.awaitNanos(remaining);
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            useCount = getUseCount();
+        }
+        finally {
+            _drainLock.unlock();
         }
 
         // Close all connections, whether safe or not
-        for(int i=0; i < _currConnections; i++) {
+        int slotCount = _bag.getSlotCount();
+        for(int i=0; i < slotCount; i++) {
+            if(_connPool[i] == null) {
+                continue;
+            }
+            if(_stmtCache[i] != null) {
+                _stmtCache[i].close();
+            }
             try {
                 _connPool[i].close();
             }
@@ -594,28 +1627,289 @@ public class DbConnectionBroker implements DataSource, Runnable {
      * Returns the number of connections in use.
      */
     // This method could be reduced to return a counter that is
-    // maintained by all methods that update connStatus.
+    // maintained by all methods that update the slot states.
     // However, it is more efficient to do it this way because:
     // Updating the counter would put an additional burden on the most
     // frequently used methods; in comparison, this method is
     // rarely used (although essential).
     private int getUseCount() {
-        int useCount=0;
-        synchronized(_connStatus) {
-            for(int i=0; i < _currConnections; i++) {
-                if(_connStatus[i] > 0) { // In use
-                    useCount++;
-                }
+        return _bag.count(ConnectionBag.STATE_IN_USE);
+    }//End getUseCount()
+
+    /**
+     * Sets the maximum time <code>getConnection()</code> waits for a connection
+     * to be returned when the pool is exhausted.  Default is 20 seconds.
+     *
+     * @param millis checkout timeout in milliseconds
+     */
+    public void setCheckoutTimeout(long millis) {
+        _checkoutTimeoutMillis = millis;
+    }
+
+    /**
+     * @return maximum time in milliseconds <code>getConnection()</code> waits
+     * for a connection when the pool is exhausted
+     */
+    public long getCheckoutTimeout() {
+        return _checkoutTimeoutMillis;
+    }
+
+    /**
+     * Sets the maximum number of requests allowed to wait for a connection at
+     * once.  Requests beyond this depth are rejected immediately with a
+     * <code>SQLTransientConnectionException</code>.  Default is unbounded.
+     *
+     * @param maxWaiters maximum wait queue depth
+     */
+    public void setMaxWaiters(int maxWaiters) {
+        _maxWaiters = maxWaiters;
+    }
+
+    /**
+     * @return maximum number of requests allowed to wait for a connection at once
+     */
+    public int getMaxWaiters() {
+        return _maxWaiters;
+    }
+
+    /**
+     * Returns true once the minimum number of connections has been opened.
+     * A broker warming up in the background is usable before then; it opens
+     * connections on demand.
+     */
+    public boolean isReady() {
+        return _ready.isDone() && !_ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Returns a future that completes when the minimum number of connections
+     * has been opened, or completes exceptionally if the broker gave up trying.
+     */
+    public CompletableFuture<Void> getReadyFuture() {
+        return _ready.copy();
+    }
+
+    /**
+     * Registers this broker with the platform MBean server so its metrics can
+     * be read over JMX.  A broker already registered under the same name is
+     * replaced.
+     *
+     * @param poolName name identifying this pool, e.g. login and database URL
+     * @return name under which the broker was registered
+     * @throws JMException if the broker could not be registered
+     */
+    public ObjectName registerMBean(String poolName) throws JMException {
+        ObjectName name = new ObjectName("org.conical.common.bbl.db:type=DbConnectionBroker,name=" +
+                ObjectName.quote(poolName));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        _mbeanName = name;
+        return name;
+    }
+
+    private void unregisterMBean() {
+        if(_mbeanName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+        }
+        catch(JMException e) {
+            if(_debugLevel > 1) {
+                LOG.info("Unable to unregister MBean " + _mbeanName + ": " + e);
             }
         }
-        return useCount;
-    }//End getUseCount()
+        _mbeanName = null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getActiveConnections() {
+        return getUseCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getIdleConnections() {
+        return _bag.count(ConnectionBag.STATE_FREE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getPendingRequests() {
+        return getWaiterCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getTotalConnections() {
+        return getSize();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxConnections() {
+        return _maxConns;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getConnectionLimit() {
+        return _poolLimit;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getConnectionsCreated() {
+        return _connsCreated.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getConnectionsRecycled() {
+        return _connsRecycled.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getConnectionFailures() {
+        return _connFailures.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCheckoutTimeouts() {
+        return _checkoutTimeouts.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String[] getHostStatus() {
+        return _hosts.describe();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String[] getLaneStatus() {
+        return (_lanes == null ? new String[0] : _lanes.describe());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getLeaksDetected() {
+        return _leaksDetected.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getMillisSinceLastExhaustion() {
+        long last = _lastExhausted;
+        return (last == 0 ? -1 : System.currentTimeMillis() - last);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] getHistogramBucketBounds() {
+        return LatencyHistogram.getBounds();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] getCheckoutWaitHistogram() {
+        return _waitTimes.getCounts();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getCheckoutWaitMillisP95() {
+        return _waitTimes.getPercentile(95);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] getHoldTimeHistogram() {
+        return _holdTimes.getCounts();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getHoldTimeMillisP95() {
+        return _holdTimes.getPercentile(95);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long[] getSlotAges() {
+        long now = System.currentTimeMillis();
+        long[] ages = new long[_bag.getSlotCount()];
+        for(int i=0; i < ages.length; i++) {
+            int state = _bag.getState(i);
+            ages[i] = (state == ConnectionBag.STATE_FREE || state == ConnectionBag.STATE_IN_USE ?
+                    now - _connCreateDate[i] : -1);
+        }
+        return ages;
+    }
+
+    /**
+     * Returns the number of prepared statements served from connections'
+     * statement caches since the broker was created.
+     */
+    @Override
+    public long getStatementCacheHits() {
+        return _stmtCacheHits.sum();
+    }
+
+    /**
+     * Returns the number of prepared statements that were not found in a
+     * connection's statement cache and had to be prepared by the driver.
+     */
+    @Override
+    public long getStatementCacheMisses() {
+        return _stmtCacheMisses.sum();
+    }
+
+    /**
+     * Returns the number of statements that borrowers left open and that
+     * were closed when their connections were returned.
+     */
+    @Override
+    public long getStatementsForceClosed() {
+        return _stmtsForceClosed.sum();
+    }
+
+    /**
+     * Returns the number of result sets that borrowers left open and that
+     * were closed when their connections were returned.
+     */
+    @Override
+    public long getResultSetsForceClosed() {
+        return _resultSetsForceClosed.sum();
+    }
+
+    /**
+     * Returns the number of statements the query watchdog has cancelled for
+     * running past their query timeout.
+     */
+    @Override
+    public long getQueriesCancelled() {
+        return _queriesCancelled.sum();
+    }
+
+    /**
+     * Returns the number of requests currently waiting for a connection.
+     */
+    public int getWaiterCount() {
+        return _bag.getWaiterCount();
+    }
 
     /**
      * Returns the number of connections in the dynamic pool.
      */
     public int getSize() {
-        return _currConnections;
+        return _bag.getSlotCount() - _bag.count(ConnectionBag.STATE_EMPTY);
     }//End getSize()
 
     
@@ -0,0 +1,101 @@
+package org.conical.common.bbl.db;
+
+/**
+ * Management interface of a <code>DbConnectionBroker</code>.  Brokers created
+ * by <code>DataSourceFactory</code> are registered with the platform MBean
+ * server under <code>org.conical.common.bbl.db:type=DbConnectionBroker</code>
+ * and a name identifying the database and login, so pool saturation can be
+ * watched and alerted on with any JMX client.
+ *
+ * Histograms are reported as counts per bucket; the upper bound of each
+ * bucket is given by <code>getHistogramBucketBounds()</code>, and the final
+ * bucket counts everything longer than the last bound.
+ *
+ * @author rdoherty
+ */
+public interface DbConnectionBrokerMXBean {
+
+	/** @return number of connections currently checked out */
+	public int getActiveConnections();
+
+	/** @return number of open connections currently available for checkout */
+	public int getIdleConnections();
+
+	/** @return number of requests currently waiting for a connection */
+	public int getPendingRequests();
+
+	/** @return number of connections in the pool */
+	public int getTotalConnections();
+
+	/** @return hard maximum number of connections in the pool */
+	public int getMaxConnections();
+
+	/** @return current limit on the number of connections, which adaptive sizing moves below the hard maximum */
+	public int getConnectionLimit();
+
+	/** @return number of connections opened since the broker was created */
+	public long getConnectionsCreated();
+
+	/** @return number of connections closed and reopened by housekeeping */
+	public long getConnectionsRecycled();
+
+	/** @return number of failed attempts to open a connection */
+	public long getConnectionFailures();
+
+	/** @return number of requests refused because no connection became available in time or the wait queue was full */
+	public long getCheckoutTimeouts();
+
+	/** @return connect latency, failure count and retry time of each database host */
+	public String[] getHostStatus();
+
+	/** @return reserve, active and waiting borrowers of each priority lane; empty if there are no lanes */
+	public String[] getLaneStatus();
+
+	/** @return number of connections found checked out for longer than the max checkout time */
+	public long getLeaksDetected();
+
+	/**
+	 * @return milliseconds since a request last found every connection in use
+	 * and the pool at its maximum size, or -1 if that has never happened
+	 */
+	public long getMillisSinceLastExhaustion();
+
+	/** @return upper bounds, in milliseconds, of the histogram buckets */
+	public long[] getHistogramBucketBounds();
+
+	/** @return histogram of the time requests waited for a connection */
+	public long[] getCheckoutWaitHistogram();
+
+	/** @return 95th percentile of the time requests waited for a connection, in milliseconds */
+	public long getCheckoutWaitMillisP95();
+
+	/** @return histogram of the time connections were held before being returned */
+	public long[] getHoldTimeHistogram();
+
+	/** @return 95th percentile of the time connections were held, in milliseconds */
+	public long getHoldTimeMillisP95();
+
+	/** @return age in milliseconds of the connection in each slot, or -1 for empty slots */
+	public long[] getSlotAges();
+
+	/** @return number of prepared statements served from statement caches */
+	public long getStatementCacheHits();
+
+	/** @return number of prepared statements not found in statement caches */
+	public long getStatementCacheMisses();
+
+	/** @return number of statements left open by borrowers and closed on return */
+	public long getStatementsForceClosed();
+
+	/** @return number of result sets left open by borrowers and closed on return */
+	public long getResultSetsForceClosed();
+
+	/** @return number of statements cancelled by the query watchdog */
+	public long getQueriesCancelled();
+
+	/**
+	 * Replaces every connection in the pool, one at a time, without
+	 * interrupting service
+	 */
+	public void recycleAll();
+}
@@ -0,0 +1,520 @@
+package org.conical.common.bbl.db;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+
+/**
+ * An implementation of <code>java.sql.PreparedStatement</code> that wraps a
+ * statement prepared on a pooled connection.  If the statement came from the
+ * connection's statement cache, closing it does not close the driver's
+ * statement but clears its parameters and returns it to the cache, so the
+ * next request preparing the same SQL skips the parse.  Statements whose
+ * settings were changed by the caller are closed rather than cached.
+ * 
+ * @author rdoherty
+ */
+public class DbPreparedStatement extends DbStatement implements PreparedStatement {
+
+	private PreparedStatement _child;
+	private StatementCache _cache;
+	private StatementCache.Key _key;
+	private boolean _batched = false;
+
+	/**
+	 * Creates a DbPreparedStatement wrapping the given statement
+	 * 
+	 * @param conn connection through which the statement was prepared
+	 * @param child statement to be wrapped
+	 */
+	public DbPreparedStatement(DbConnection conn, PreparedStatement child) {
+		this(conn, child, null, null);
+	}
+
+	/**
+	 * Creates a DbPreparedStatement wrapping a statement that is returned to
+	 * the passed cache when closed.
+	 * 
+	 * @param conn connection through which the statement was prepared
+	 * @param child statement to be wrapped
+	 * @param cache cache the statement belongs to
+	 * @param key key of the statement in the cache
+	 */
+	DbPreparedStatement(DbConnection conn, PreparedStatement child, StatementCache cache, StatementCache.Key key) {
+		super(conn, child);
+		_child = child;
+		_cache = cache;
+		_key = key;
+	}
+
+	/**
+	 * Returns the wrapped statement to its cache if possible; otherwise closes it.
+	 */
+	@Override
+	protected void release(Statement child) throws SQLException {
+		if (_cache == null || isModified()) {
+			child.close();
+			return;
+		}
+		try {
+			closeResultSet();
+			if (_batched) {
+				_child.clearBatch();
+			}
+			_child.clearParameters();
+			_child.clearWarnings();
+		}
+		catch (SQLException e) {
+			child.close();
+			return;
+		}
+		_cache.put(_key, _child);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet executeQuery() throws SQLException {
+		beginExecute();
+		try {
+			return trackResult(_child.executeQuery());
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate() throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeUpdate();
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(int parameterIndex, int sqlType) throws SQLException {
+		checkOpen();
+		_child.setNull(parameterIndex, sqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+		checkOpen();
+		_child.setBoolean(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setByte(int parameterIndex, byte x) throws SQLException {
+		checkOpen();
+		_child.setByte(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setShort(int parameterIndex, short x) throws SQLException {
+		checkOpen();
+		_child.setShort(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setInt(int parameterIndex, int x) throws SQLException {
+		checkOpen();
+		_child.setInt(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setLong(int parameterIndex, long x) throws SQLException {
+		checkOpen();
+		_child.setLong(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFloat(int parameterIndex, float x) throws SQLException {
+		checkOpen();
+		_child.setFloat(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDouble(int parameterIndex, double x) throws SQLException {
+		checkOpen();
+		_child.setDouble(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
+		checkOpen();
+		_child.setBigDecimal(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setString(int parameterIndex, String x) throws SQLException {
+		checkOpen();
+		_child.setString(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+		checkOpen();
+		_child.setBytes(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(int parameterIndex, Date x) throws SQLException {
+		checkOpen();
+		_child.setDate(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(int parameterIndex, Time x) throws SQLException {
+		checkOpen();
+		_child.setTime(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+		checkOpen();
+		_child.setTimestamp(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		checkOpen();
+		_child.setAsciiStream(parameterIndex, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Deprecated
+	@Override
+	public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		checkOpen();
+		_child.setUnicodeStream(parameterIndex, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
+		checkOpen();
+		_child.setBinaryStream(parameterIndex, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearParameters() throws SQLException {
+		checkOpen();
+		_child.clearParameters();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
+		checkOpen();
+		_child.setObject(parameterIndex, x, targetSqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x) throws SQLException {
+		checkOpen();
+		_child.setObject(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute() throws SQLException {
+		beginExecute();
+		try {
+			return _child.execute();
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void addBatch() throws SQLException {
+		checkOpen();
+		_batched = true;
+		_child.addBatch();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
+		checkOpen();
+		_child.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setRef(int parameterIndex, Ref x) throws SQLException {
+		checkOpen();
+		_child.setRef(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, Blob x) throws SQLException {
+		checkOpen();
+		_child.setBlob(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Clob x) throws SQLException {
+		checkOpen();
+		_child.setClob(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setArray(int parameterIndex, Array x) throws SQLException {
+		checkOpen();
+		_child.setArray(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException {
+		checkOpen();
+		return _child.getMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
+		checkOpen();
+		_child.setDate(parameterIndex, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
+		checkOpen();
+		_child.setTime(parameterIndex, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
+		checkOpen();
+		_child.setTimestamp(parameterIndex, x, cal);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+		checkOpen();
+		_child.setNull(parameterIndex, sqlType, typeName);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setURL(int parameterIndex, URL x) throws SQLException {
+		checkOpen();
+		_child.setURL(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ParameterMetaData getParameterMetaData() throws SQLException {
+		checkOpen();
+		return _child.getParameterMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setRowId(int parameterIndex, RowId x) throws SQLException {
+		checkOpen();
+		_child.setRowId(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNString(int parameterIndex, String value) throws SQLException {
+		checkOpen();
+		_child.setNString(parameterIndex, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
+		checkOpen();
+		_child.setNCharacterStream(parameterIndex, value, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, NClob value) throws SQLException {
+		checkOpen();
+		_child.setNClob(parameterIndex, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		checkOpen();
+		_child.setClob(parameterIndex, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
+		checkOpen();
+		_child.setBlob(parameterIndex, inputStream, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
+		checkOpen();
+		_child.setNClob(parameterIndex, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
+		checkOpen();
+		_child.setSQLXML(parameterIndex, xmlObject);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
+		checkOpen();
+		_child.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		checkOpen();
+		_child.setAsciiStream(parameterIndex, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
+		checkOpen();
+		_child.setBinaryStream(parameterIndex, x, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
+		checkOpen();
+		_child.setCharacterStream(parameterIndex, reader, length);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
+		checkOpen();
+		_child.setAsciiStream(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
+		checkOpen();
+		_child.setBinaryStream(parameterIndex, x);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
+		checkOpen();
+		_child.setCharacterStream(parameterIndex, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
+		checkOpen();
+		_child.setNCharacterStream(parameterIndex, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClob(int parameterIndex, Reader reader) throws SQLException {
+		checkOpen();
+		_child.setClob(parameterIndex, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
+		checkOpen();
+		_child.setBlob(parameterIndex, inputStream);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNClob(int parameterIndex, Reader reader) throws SQLException {
+		checkOpen();
+		_child.setNClob(parameterIndex, reader);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+		checkOpen();
+		_child.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException {
+		checkOpen();
+		_child.setObject(parameterIndex, x, targetSqlType);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate() throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeUpdate();
+		}
+		finally {
+			endExecute();
+		}
+	}
+}
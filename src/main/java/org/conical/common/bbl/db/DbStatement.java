@@ -0,0 +1,622 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+/**
+ * An implementation of <code>java.sql.Statement</code> that wraps a statement
+ * created on a pooled connection.  Calls are passed through to the driver's
+ * statement, except that <code>getConnection()</code> returns the
+ * <code>DbConnection</code> the statement was created through rather than the
+ * underlying physical connection, so callers cannot close the pooled
+ * connection by accident.  Once closed, the wrapper refuses further calls even
+ * if the driver's statement lives on (e.g. in a statement cache).  Executions
+ * of a statement with a query timeout are reported to the pool, whose
+ * watchdog (if enabled) cancels them when they overrun.  Also serves
+ * as the base class for the prepared statement wrapper.
+ * 
+ * @author rdoherty
+ */
+public class DbStatement implements Statement {
+
+	private DbConnection _conn;
+	private Statement _child;
+	private boolean _closed = false;
+	private boolean _modified = false;
+	private ResultSet _resultSet;
+	private DbConnection.Tracked _tracked;
+	private int _queryTimeout;
+
+	/**
+	 * Creates a DbStatement wrapping the given statement
+	 * 
+	 * @param conn connection through which the statement was created
+	 * @param child statement to be wrapped
+	 */
+	public DbStatement(DbConnection conn, Statement child) {
+		_conn = conn;
+		_child = child;
+		_queryTimeout = conn.getDefaultQueryTimeout();
+	}
+
+	/**
+	 * Throws an exception if this statement has been closed
+	 * 
+	 * @throws SQLException if this statement has been closed
+	 */
+	protected void checkOpen() throws SQLException {
+		if (_closed) {
+			throw new SQLException("Statement has been closed.");
+		}
+	}
+
+	/**
+	 * Checks that this statement is open and, if it has a query timeout,
+	 * registers the execution that is about to start with the pool's query
+	 * watchdog.  Must be paired with <code>endExecute()</code>.
+	 * 
+	 * @throws SQLException if this statement has been closed
+	 */
+	protected void beginExecute() throws SQLException {
+		checkOpen();
+		if (_queryTimeout > 0) {
+			_conn.startRunning(_child, _queryTimeout);
+		}
+	}
+
+	/**
+	 * Marks the execution registered by <code>beginExecute()</code> as finished
+	 */
+	protected void endExecute() {
+		if (_queryTimeout > 0) {
+			_conn.stopRunning(_child);
+		}
+	}
+
+	/**
+	 * @return the wrapped statement
+	 */
+	Statement getChild() {
+		return _child;
+	}
+
+	/**
+	 * @param tracked entry under which the creating connection tracks this statement
+	 */
+	void setTracked(DbConnection.Tracked tracked) {
+		_tracked = tracked;
+	}
+
+	/**
+	 * Remembers the result set most recently opened through this statement
+	 * so it can be closed when the statement is released
+	 * 
+	 * @param rs result set returned to the caller
+	 * @return the passed result set
+	 */
+	protected ResultSet trackResult(ResultSet rs) {
+		_resultSet = rs;
+		return rs;
+	}
+
+	/**
+	 * Closes the result set most recently opened through this statement
+	 * 
+	 * @return true if it was still open
+	 * @throws SQLException if unable to close the result set
+	 */
+	boolean closeResultSet() throws SQLException {
+		if (_resultSet == null) {
+			return false;
+		}
+		ResultSet rs = _resultSet;
+		_resultSet = null;
+		if (rs.isClosed()) {
+			return false;
+		}
+		rs.close();
+		return true;
+	}
+
+	/**
+	 * Called once, when this statement is closed, to release the wrapped
+	 * statement.  The default implementation closes it.
+	 * 
+	 * @param child wrapped statement
+	 * @throws SQLException if unable to release the statement
+	 */
+	protected void release(Statement child) throws SQLException {
+		child.close();
+	}
+
+	/**
+	 * @return true if the caller has changed any of this statement's settings
+	 * (e.g. max rows, fetch size, query timeout) since it was created
+	 */
+	protected boolean isModified() {
+		return _modified;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet executeQuery(String sql) throws SQLException {
+		beginExecute();
+		try {
+			return trackResult(_child.executeQuery(sql));
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeUpdate(sql);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws SQLException {
+		if (!_closed) {
+			_closed = true;
+			if (_tracked != null) {
+				_tracked.closed();
+			}
+			release(_child);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getMaxFieldSize() throws SQLException {
+		checkOpen();
+		return _child.getMaxFieldSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setMaxFieldSize(int max) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setMaxFieldSize(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getMaxRows() throws SQLException {
+		checkOpen();
+		return _child.getMaxRows();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setMaxRows(int max) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setMaxRows(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setEscapeProcessing(boolean enable) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setEscapeProcessing(enable);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getQueryTimeout() throws SQLException {
+		checkOpen();
+		return _child.getQueryTimeout();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setQueryTimeout(int seconds) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setQueryTimeout(seconds);
+		_queryTimeout = seconds;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void cancel() throws SQLException {
+		checkOpen();
+		_child.cancel();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		checkOpen();
+		return _child.getWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearWarnings() throws SQLException {
+		checkOpen();
+		_child.clearWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCursorName(String name) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setCursorName(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql) throws SQLException {
+		beginExecute();
+		try {
+			return _child.execute(sql);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet getResultSet() throws SQLException {
+		checkOpen();
+		return trackResult(_child.getResultSet());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getUpdateCount() throws SQLException {
+		checkOpen();
+		return _child.getUpdateCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getMoreResults() throws SQLException {
+		checkOpen();
+		return _child.getMoreResults();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setFetchDirection(direction);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getFetchDirection() throws SQLException {
+		checkOpen();
+		return _child.getFetchDirection();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setFetchSize(rows);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getFetchSize() throws SQLException {
+		checkOpen();
+		return _child.getFetchSize();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetConcurrency() throws SQLException {
+		checkOpen();
+		return _child.getResultSetConcurrency();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetType() throws SQLException {
+		checkOpen();
+		return _child.getResultSetType();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void addBatch(String sql) throws SQLException {
+		checkOpen();
+		_child.addBatch(sql);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearBatch() throws SQLException {
+		checkOpen();
+		_child.clearBatch();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int[] executeBatch() throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeBatch();
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Connection getConnection() throws SQLException {
+		checkOpen();
+		return _conn;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getMoreResults(int current) throws SQLException {
+		checkOpen();
+		return _child.getMoreResults(current);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public ResultSet getGeneratedKeys() throws SQLException {
+		checkOpen();
+		return _child.getGeneratedKeys();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeUpdate(sql, autoGeneratedKeys);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeUpdate(sql, columnIndexes);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeUpdate(sql, columnNames);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+		beginExecute();
+		try {
+			return _child.execute(sql, autoGeneratedKeys);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+		beginExecute();
+		try {
+			return _child.execute(sql, columnIndexes);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean execute(String sql, String[] columnNames) throws SQLException {
+		beginExecute();
+		try {
+			return _child.execute(sql, columnNames);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getResultSetHoldability() throws SQLException {
+		checkOpen();
+		return _child.getResultSetHoldability();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isClosed() throws SQLException {
+		return _closed || _child.isClosed();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setPoolable(boolean poolable) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setPoolable(poolable);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isPoolable() throws SQLException {
+		checkOpen();
+		return _child.isPoolable();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void closeOnCompletion() throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.closeOnCompletion();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isCloseOnCompletion() throws SQLException {
+		checkOpen();
+		return _child.isCloseOnCompletion();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLargeUpdateCount() throws SQLException {
+		checkOpen();
+		return _child.getLargeUpdateCount();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setLargeMaxRows(long max) throws SQLException {
+		checkOpen();
+		_modified = true;
+		_child.setLargeMaxRows(max);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long getLargeMaxRows() throws SQLException {
+		checkOpen();
+		return _child.getLargeMaxRows();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long[] executeLargeBatch() throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeBatch();
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeUpdate(sql);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeUpdate(sql, autoGeneratedKeys);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeUpdate(sql, columnIndexes);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+		beginExecute();
+		try {
+			return _child.executeLargeUpdate(sql, columnNames);
+		}
+		finally {
+			endExecute();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String enquoteLiteral(String val) throws SQLException {
+		checkOpen();
+		return _child.enquoteLiteral(val);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String enquoteIdentifier(String identifier, boolean alwaysQuote) throws SQLException {
+		checkOpen();
+		return _child.enquoteIdentifier(identifier, alwaysQuote);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isSimpleIdentifier(String identifier) throws SQLException {
+		checkOpen();
+		return _child.isSimpleIdentifier(identifier);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String enquoteNCharLiteral(String val) throws SQLException {
+		checkOpen();
+		return _child.enquoteNCharLiteral(val);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return _child.isWrapperFor(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return _child.unwrap(iface);
+	}
+}
@@ -1,13 +1,23 @@
 package org.conical.common.bbl.db;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.sql.Wrapper;
 import java.util.Date;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import javax.sql.DataSource;
+
+import org.conical.common.bbl.enums.ifc.Coded;
 import org.conical.common.bbl.exception.BBLRuntimeException;
 
 /**
@@ -20,6 +30,12 @@ public class DbUtil {
 	private static final String SEQUENCE_NAME_WILDCARD = "$SEQUENCE_NAME";
 	private static final String NEXT_SEQUENCE_VAL_SQL =
 		"select " + SEQUENCE_NAME_WILDCARD + ".nextval from dual";
+
+	/**
+	 * Number of rows fetched from the database at a time by the
+	 * <code>stream()</code> methods unless another fetch size is passed
+	 */
+	public static final int DEFAULT_FETCH_SIZE = 500;
 	
 	/**
 	 * Quietly closes an array of Wrapper objects.  Currently the following classes
@@ -59,7 +75,9 @@ public class DbUtil {
 
 	/**
 	 * Returns the next value in the named sequence given the passed connection.  The
-	 * SQL generated for this query assumes Oracle as the DB server.
+	 * SQL generated for this query assumes Oracle as the DB server.  Callers that
+	 * need many values should use a <code>SequenceAllocator</code>, which fetches
+	 * them in blocks.
 	 * 
 	 * @param conn connection to use
 	 * @param sequenceName name of the sequence from which to get the nexty value
@@ -72,6 +90,28 @@ public class DbUtil {
 				"Unable to look up next value in sequence " + sequenceName);
 	}
 	
+	/**
+	 * Returns the next value in the named sequence using SQL suited to the passed
+	 * type of database.  Oracle and Postgres sequences are native; on MySQL the
+	 * sequence is a one-row table as described in <code>SequenceAllocator</code>,
+	 * and its update joins the connection's current transaction: it is not
+	 * committed here, and holds the sequence row's lock until the caller
+	 * commits or rolls back.
+	 * 
+	 * @param conn connection to use
+	 * @param dbType type of database the connection is to
+	 * @param sequenceName name of the sequence from which to get the next value
+	 * @return next value in the sequence
+	 */
+	public static long getNextSequenceValue(Connection conn, DatabaseType dbType, String sequenceName) {
+		try {
+			return SequenceAllocator.nextValue(conn, dbType, sequenceName, 1);
+		}
+		catch (SQLException sqle) {
+			throw new BBLRuntimeException("Unable to look up next value in sequence " + sequenceName, sqle);
+		}
+	}
+	
 	/**
 	 * Executes a give SQL query on the given connection and returns a single integer
 	 * result.  This method ignores results beyond the first column and beyond the
@@ -124,6 +164,230 @@ public class DbUtil {
 		}
 	}
 
+	/**
+	 * Runs a query and returns its rows as a lazily populated stream, using
+	 * the default fetch size.  See <code>stream(DataSource, int, String,
+	 * RowMapper, Object...)</code>.
+	 * 
+	 * @param ds data source to take a connection from
+	 * @param sql query to run, with <code>?</code> placeholders
+	 * @param mapper maps each row to an object
+	 * @param params values bound to the placeholders, in order
+	 * @return stream of mapped rows; must be closed unless fully consumed
+	 */
+	public static <T> Stream<T> stream(DataSource ds, String sql, RowMapper<T> mapper, Object... params) {
+		return stream(ds, DEFAULT_FETCH_SIZE, sql, mapper, params);
+	}
+
+	/**
+	 * Runs a query on a connection taken from the passed data source and
+	 * returns its rows as a stream.  Rows are read from the database
+	 * <code>fetchSize</code> at a time as the stream is consumed, so results
+	 * of any size are processed in constant memory.  The result set,
+	 * statement and connection are closed when the last row has been read or
+	 * when the stream is closed, whichever comes first; callers that may stop
+	 * early must close the stream, e.g. with try-with-resources.
+	 * 
+	 * Auto-commit is turned off on the connection while the stream is open,
+	 * since some drivers (e.g. PostgreSQL) only honor the fetch size inside
+	 * a transaction.  SQL errors are thrown as <code>BBLRuntimeException</code>s,
+	 * both from this method and while the stream is consumed.
+	 * 
+	 * @param ds data source to take a connection from
+	 * @param fetchSize number of rows to fetch from the database at a time
+	 * @param sql query to run, with <code>?</code> placeholders
+	 * @param mapper maps each row to an object
+	 * @param params values bound to the placeholders, in order
+	 * @return stream of mapped rows; must be closed unless fully consumed
+	 */
+	public static <T> Stream<T> stream(DataSource ds, int fetchSize, String sql, RowMapper<T> mapper, Object... params) {
+		Connection conn = null;
+		try {
+			conn = ds.getConnection();
+			conn.setAutoCommit(false);
+		}
+		catch (SQLException sqle) {
+			close(conn);
+			throw new BBLRuntimeException("Unable to execute query " + sql, sqle);
+		}
+		return openStream(conn, true, fetchSize, sql, mapper, params);
+	}
+
+	/**
+	 * Runs a query on the passed connection and returns its rows as a stream,
+	 * as <code>stream(DataSource, int, String, RowMapper, Object...)</code>
+	 * does, except that the connection is left open and its auto-commit
+	 * setting is left alone.  The result set and statement are closed when the
+	 * last row has been read or when the stream is closed.
+	 * 
+	 * @param conn connection to use
+	 * @param fetchSize number of rows to fetch from the database at a time
+	 * @param sql query to run, with <code>?</code> placeholders
+	 * @param mapper maps each row to an object
+	 * @param params values bound to the placeholders, in order
+	 * @return stream of mapped rows; must be closed unless fully consumed
+	 */
+	public static <T> Stream<T> stream(Connection conn, int fetchSize, String sql, RowMapper<T> mapper, Object... params) {
+		return openStream(conn, false, fetchSize, sql, mapper, params);
+	}
+
+	private static <T> Stream<T> openStream(Connection conn, boolean ownsConn, int fetchSize,
+			String sql, RowMapper<T> mapper, Object... params) {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			bindParameters(ps, params);
+			rs = ps.executeQuery();
+		}
+		catch (SQLException sqle) {
+			close(rs, ps, (ownsConn ? conn : null));
+			throw new BBLRuntimeException("Unable to execute query " + sql, sqle);
+		}
+		RowSpliterator<T> rows = new RowSpliterator<T>(sql, rs, ps, (ownsConn ? conn : null), mapper);
+		return StreamSupport.stream(rows, false).onClose(rows::close);
+	}
+
+	/**
+	 * Binds values to the placeholders of a statement, in order, as
+	 * <code>bindValue()</code> does.
+	 * 
+	 * @param ps statement to bind
+	 * @param params values to bind
+	 * @throws SQLException if a value could not be bound
+	 */
+	static void bindParameters(PreparedStatement ps, Object... params) throws SQLException {
+		for (int i = 0; i < params.length; i++) {
+			bindValue(ps, i + 1, params[i]);
+		}
+	}
+
+	/**
+	 * Binds a value to a placeholder with the setter suited to its type.
+	 * Nulls are bound as untyped SQL nulls, <code>java.util.Date</code>s as
+	 * timestamps, <code>Coded</code> enums as their codes and other enums as
+	 * their names; types without a specific setter are passed to
+	 * <code>setObject()</code>.
+	 * 
+	 * @param ps statement to bind
+	 * @param index position of the placeholder, starting at 1
+	 * @param value value to bind
+	 * @throws SQLException if the value could not be bound
+	 */
+	public static void bindValue(PreparedStatement ps, int index, Object value) throws SQLException {
+		value = toSqlValue(value);
+		if (value == null) {
+			ps.setNull(index, Types.NULL);
+		}
+		else if (value instanceof String) {
+			ps.setString(index, (String)value);
+		}
+		else if (value instanceof Integer) {
+			ps.setInt(index, (Integer)value);
+		}
+		else if (value instanceof Long) {
+			ps.setLong(index, (Long)value);
+		}
+		else if (value instanceof Double) {
+			ps.setDouble(index, (Double)value);
+		}
+		else if (value instanceof Boolean) {
+			ps.setBoolean(index, (Boolean)value);
+		}
+		else if (value instanceof BigDecimal) {
+			ps.setBigDecimal(index, (BigDecimal)value);
+		}
+		else if (value instanceof java.sql.Timestamp) {
+			ps.setTimestamp(index, (java.sql.Timestamp)value);
+		}
+		else if (value instanceof java.sql.Date) {
+			ps.setDate(index, (java.sql.Date)value);
+		}
+		else if (value instanceof java.sql.Time) {
+			ps.setTime(index, (java.sql.Time)value);
+		}
+		else if (value instanceof byte[]) {
+			ps.setBytes(index, (byte[])value);
+		}
+		else {
+			ps.setObject(index, value);
+		}
+	}
+
+	/**
+	 * Converts a value to the form it is written to the database in:
+	 * <code>java.util.Date</code>s become timestamps, <code>Coded</code> enums
+	 * their codes and other enums their names.  Other values are returned as is.
+	 * Every path that writes values, bound or streamed, goes through this so
+	 * they all store the same thing.
+	 * 
+	 * @param value value to convert
+	 * @return value as written to the database
+	 */
+	static Object toSqlValue(Object value) {
+		if (value instanceof Date && !(value instanceof java.sql.Timestamp ||
+				value instanceof java.sql.Date || value instanceof java.sql.Time)) {
+			return new java.sql.Timestamp(((Date)value).getTime());
+		}
+		if (value instanceof Coded) {
+			return ((Coded)value).getCode();
+		}
+		if (value instanceof Enum) {
+			return ((Enum<?>)value).name();
+		}
+		return value;
+	}
+
+	/**
+	 * Reads rows from a result set one at a time, closing the result set,
+	 * its statement and optionally its connection once the last row is read
+	 */
+	private static class RowSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+		private final String _sql;
+		private final ResultSet _rs;
+		private final Statement _stmt;
+		private final Connection _conn;
+		private final RowMapper<T> _mapper;
+		private boolean _closed = false;
+
+		RowSpliterator(String sql, ResultSet rs, Statement stmt, Connection conn, RowMapper<T> mapper) {
+			super(Long.MAX_VALUE, Spliterator.ORDERED);
+			_sql = sql;
+			_rs = rs;
+			_stmt = stmt;
+			_conn = conn;
+			_mapper = mapper;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (_closed) {
+				return false;
+			}
+			try {
+				if (!_rs.next()) {
+					close();
+					return false;
+				}
+				action.accept(_mapper.mapRow(_rs));
+				return true;
+			}
+			catch (SQLException sqle) {
+				close();
+				throw new BBLRuntimeException("Unable to read results of query " + _sql, sqle);
+			}
+		}
+
+		void close() {
+			if (!_closed) {
+				_closed = true;
+				DbUtil.close(_rs, _stmt, _conn);
+			}
+		}
+	}
+
 	/**
 	 * Converts a java.util.Date to a java.sql.Date.  If the date passed
 	 * is null, null will be returned.
@@ -0,0 +1,160 @@
+package org.conical.common.bbl.db;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses which of several hosts serving the same database a new connection
+ * is opened to.  Each host keeps a moving average (EWMA) of how long its
+ * connections took to open; new connections go to the healthy host with the
+ * lowest average.  Hosts that have not been connected to yet are only used
+ * when no healthy host has been measured, in the order they were listed, so
+ * standbys are left alone while the preferred host is up.  A host that fails to connect is marked down and is not
+ * used again until a back-off period has passed; the back-off doubles with
+ * each consecutive failure, up to a maximum.  Once it has passed, a single
+ * caller is let through to probe the host, and a successful probe brings it
+ * back into rotation.
+ *
+ * If every host is down and none is due for a probe, the host due soonest
+ * is returned anyway, so a pool with a single host behaves as if there were
+ * no selector at all.
+ *
+ * @author rdoherty
+ */
+class HostSelector {
+
+	private static final double ALPHA = 0.3;
+	private static final long BASE_BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+
+	/**
+	 * Health and latency of one host
+	 */
+	static class Host {
+
+		private final String _url;
+		// negative until the first successful connection is measured
+		private volatile double _latencyMillis = -1;
+		private final AtomicInteger _failures = new AtomicInteger();
+		private final AtomicLong _downUntil = new AtomicLong(0);
+
+		Host(String url) {
+			_url = url;
+		}
+
+		String getUrl() {
+			return _url;
+		}
+
+		private long backoff() {
+			int shift = Math.min(_failures.get() - 1, 30);
+			return Math.min(BASE_BACKOFF_MILLIS << Math.max(shift, 0), MAX_BACKOFF_MILLIS);
+		}
+
+		@Override
+		public String toString() {
+			long downFor = _downUntil.get() - System.currentTimeMillis();
+			int failures = _failures.get();
+			return _url + " latency=" + (_latencyMillis < 0 ? "unknown" : Math.round(_latencyMillis) + "ms") +
+					" failures=" + failures +
+					(failures > 0 ? " retry in " + Math.max(downFor, 0) + "ms" : "");
+		}
+	}
+
+	private final Host[] _hosts;
+
+	/**
+	 * @param urls connection URLs of the hosts, in order of preference when
+	 * nothing is known about them yet
+	 */
+	HostSelector(List<String> urls) {
+		_hosts = new Host[urls.size()];
+		for (int i = 0; i < _hosts.length; i++) {
+			_hosts[i] = new Host(urls.get(i));
+		}
+	}
+
+	/**
+	 * @return number of hosts
+	 */
+	int size() {
+		return _hosts.length;
+	}
+
+	/**
+	 * Chooses the host for the next connection: a down host whose back-off
+	 * has passed (claimed so only one caller probes it), otherwise the
+	 * measured healthy host with the lowest connect latency, otherwise the
+	 * first unmeasured healthy host, otherwise the host due to be retried
+	 * soonest.  Hosts already tried for this connection are skipped.
+	 *
+	 * @param tried hosts that have already failed to give this connection
+	 * @return host to connect to, or null if every host has been tried
+	 */
+	Host select(Collection<Host> tried) {
+		long now = System.currentTimeMillis();
+		Host best = null;
+		Host unmeasured = null;
+		Host soonest = null;
+		for (Host host : _hosts) {
+			if (tried.contains(host)) {
+				continue;
+			}
+			if (host._failures.get() == 0) {
+				if (host._latencyMillis < 0) {
+					if (unmeasured == null) {
+						unmeasured = host;
+					}
+				}
+				else if (best == null || host._latencyMillis < best._latencyMillis) {
+					best = host;
+				}
+				continue;
+			}
+			long downUntil = host._downUntil.get();
+			if (downUntil <= now && host._downUntil.compareAndSet(downUntil, now + host.backoff())) {
+				return host;  // probe
+			}
+			if (soonest == null || downUntil < soonest._downUntil.get()) {
+				soonest = host;
+			}
+		}
+		return (best != null ? best : unmeasured != null ? unmeasured : soonest);
+	}
+
+	/**
+	 * Records a successful connection
+	 *
+	 * @param host host connected to
+	 * @param millis time taken to connect
+	 */
+	void success(Host host, long millis) {
+		host._latencyMillis = (host._failures.get() > 0 || host._latencyMillis < 0 ? millis :
+				ALPHA * millis + (1 - ALPHA) * host._latencyMillis);
+		host._failures.set(0);
+		host._downUntil.set(0);
+	}
+
+	/**
+	 * Records a failed connection attempt, marking the host down
+	 *
+	 * @param host host that could not be connected to
+	 */
+	void failure(Host host) {
+		host._failures.incrementAndGet();
+		host._downUntil.set(System.currentTimeMillis() + host.backoff());
+	}
+
+	/**
+	 * @return description of the state of each host
+	 */
+	String[] describe() {
+		String[] states = new String[_hosts.length];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = _hosts[i].toString();
+		}
+		return states;
+	}
+}
@@ -0,0 +1,199 @@
+package org.conical.common.bbl.db;
+
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Admission control for a pool whose borrowers are divided into priority
+ * lanes.  A borrower must be admitted to its lane before it may check out a
+ * connection, and gives the admission back when it returns the connection.
+ *
+ * Each named lane may reserve part of the pool: a borrower is only admitted
+ * if, after admitting it, the connections still unclaimed by other lanes'
+ * reserves would fit within the pool's limit.  Borrowers that cannot be
+ * admitted wait; when an admission is given back it goes to the waiting
+ * borrower of the highest priority lane that can be admitted.  Within a lane
+ * borrowers are admitted in arrival order.
+ *
+ * Lanes are numbered in priority order, highest first.  The last lane is the
+ * default lane for borrowers that name none; it has no reserve.
+ *
+ * @author rdoherty
+ */
+class LaneGate {
+
+	private final String[] _names;
+	private final int[] _reserved;
+	private final int[] _inUse;
+	private final int[] _waiting;
+	private final Condition[] _ready;
+	private final IntSupplier _limit;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private int _total = 0;
+
+	/**
+	 * @param names names of the named lanes, highest priority first
+	 * @param reserved number of connections reserved for each named lane
+	 * @param limit supplies the pool's current connection limit
+	 */
+	LaneGate(List<String> names, List<Integer> reserved, IntSupplier limit) {
+		int lanes = names.size() + 1;
+		_names = names.toArray(new String[lanes]);
+		_names[lanes - 1] = "default";
+		_reserved = new int[lanes];
+		for (int i = 0; i < reserved.size(); i++) {
+			_reserved[i] = reserved.get(i);
+		}
+		_inUse = new int[lanes];
+		_waiting = new int[lanes];
+		_ready = new Condition[lanes];
+		for (int i = 0; i < lanes; i++) {
+			_ready[i] = _lock.newCondition();
+		}
+		_limit = limit;
+	}
+
+	/**
+	 * @param name lane name, or null
+	 * @return number of the named lane, or of the default lane if there is no such lane
+	 */
+	int laneOf(String name) {
+		for (int i = 0; i < _names.length - 1; i++) {
+			if (_names[i].equals(name)) {
+				return i;
+			}
+		}
+		return _names.length - 1;
+	}
+
+	/**
+	 * @return total number of connections reserved by named lanes
+	 */
+	int getReservedTotal() {
+		int total = 0;
+		for (int r : _reserved) {
+			total += r;
+		}
+		return total;
+	}
+
+	/**
+	 * Admits a borrower to a lane, waiting up to the passed time if it cannot
+	 * be admitted yet.
+	 *
+	 * @param lane lane number
+	 * @param timeoutNanos maximum time to wait
+	 * @return true if admitted, false if the wait timed out
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	boolean acquire(int lane, long timeoutNanos) throws InterruptedException {
+		_lock.lock();
+		try {
+			if (_waiting[lane] == 0 && canAdmit(lane)) {
+				admit(lane);
+				return true;
+			}
+			_waiting[lane]++;
+			try {
+				long remaining = timeoutNanos;
+				while (!canAdmit(lane)) {
+					if (remaining <= 0) {
+						return false;
+					}
+					remaining = _ready[lane].awaitNanos(remaining);
+				}
+				admit(lane);
+				return true;
+			}
+			finally {
+				_waiting[lane]--;
+				// an admission this waiter passed up may suit another lane
+				signalNext();
+			}
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives back an admission, letting the next waiting borrower in
+	 *
+	 * @param lane lane the borrower was admitted to
+	 */
+	void release(int lane) {
+		_lock.lock();
+		try {
+			_inUse[lane]--;
+			_total--;
+			signalNext();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	private void admit(int lane) {
+		_inUse[lane]++;
+		_total++;
+	}
+
+	/**
+	 * A lane may be admitted if it fits and no higher priority lane with
+	 * waiting borrowers fits
+	 */
+	private boolean canAdmit(int lane) {
+		if (!fits(lane)) {
+			return false;
+		}
+		for (int i = 0; i < lane; i++) {
+			if (_waiting[i] > 0 && fits(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if one more borrower of the lane leaves room for the
+	 * unclaimed reserves of all other lanes
+	 */
+	private boolean fits(int lane) {
+		int unclaimed = 0;
+		for (int i = 0; i < _reserved.length; i++) {
+			if (i != lane) {
+				unclaimed += Math.max(0, _reserved[i] - _inUse[i]);
+			}
+		}
+		return _total + 1 + unclaimed <= _limit.getAsInt();
+	}
+
+	private void signalNext() {
+		for (int i = 0; i < _waiting.length; i++) {
+			if (_waiting[i] > 0 && fits(i)) {
+				_ready[i].signal();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return name, reserve, admitted and waiting borrowers of each lane
+	 */
+	String[] describe() {
+		_lock.lock();
+		try {
+			String[] states = new String[_names.length];
+			for (int i = 0; i < states.length; i++) {
+				states[i] = _names[i] + " reserved=" + _reserved[i] + " active=" + _inUse[i] +
+						" waiting=" + _waiting[i];
+			}
+			return states;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package org.conical.common.bbl.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in milliseconds.  Durations are counted
+ * in fixed buckets whose upper bounds grow roughly exponentially (1, 2, 5,
+ * 10, 20, 50 ms and so on up to a minute), with a final bucket for anything
+ * longer.  Recording a duration is a single atomic increment, so it can be
+ * done on every checkout.
+ *
+ * @author rdoherty
+ */
+class LatencyHistogram {
+
+	private static final long[] BOUNDS = {
+		1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000
+	};
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BOUNDS.length + 1);
+
+	/**
+	 * Counts a duration
+	 *
+	 * @param millis duration in milliseconds
+	 */
+	void record(long millis) {
+		int i = 0;
+		while (i < BOUNDS.length && millis > BOUNDS[i]) {
+			i++;
+		}
+		_counts.incrementAndGet(i);
+	}
+
+	/**
+	 * @return inclusive upper bound in milliseconds of each bucket but the
+	 * last, which counts everything longer
+	 */
+	static long[] getBounds() {
+		return BOUNDS.clone();
+	}
+
+	/**
+	 * @return number of durations counted in each bucket
+	 */
+	long[] getCounts() {
+		long[] counts = new long[_counts.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = _counts.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the passed percentile
+	 * of the durations counted so far.  Durations beyond the last bound are
+	 * reported as Long.MAX_VALUE.
+	 *
+	 * @param percentile percentile between 0 and 100
+	 * @return upper bound of the bucket in milliseconds, or 0 if nothing has been counted
+	 */
+	long getPercentile(double percentile) {
+		return percentileOf(getCounts(), percentile);
+	}
+
+	/**
+	 * Returns the percentile of durations counted between two snapshots
+	 * taken with <code>getCounts()</code>.
+	 *
+	 * @param before earlier snapshot
+	 * @param after later snapshot
+	 * @param percentile percentile between 0 and 100
+	 * @return upper bound of the bucket in milliseconds, or 0 if nothing was counted in between
+	 */
+	static long getPercentile(long[] before, long[] after, double percentile) {
+		long[] counts = new long[after.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = after[i] - before[i];
+		}
+		return percentileOf(counts, percentile);
+	}
+
+	private static long percentileOf(long[] counts, double percentile) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return (i < BOUNDS.length ? BOUNDS[i] : Long.MAX_VALUE);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
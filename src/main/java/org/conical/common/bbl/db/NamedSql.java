@@ -0,0 +1,270 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SQL with named parameters, e.g.
+ * <code>select * from visit where subject_id = :subjectId</code>, bound
+ * from a map of names to values such as a <code>ParameterMap</code>:
+ *
+ * <pre>
+ * NamedSql sql = NamedSql.parse("select * from visit where subject_id = :id and status in (:statuses)");
+ * try (PreparedStatement ps = sql.prepare(conn, ParameterMap.builder()
+ *         .add("id", 42)
+ *         .add("statuses", Arrays.asList("ACTIVE", "ON_HOLD"))
+ *         .getMap())) { ... }
+ * </pre>
+ *
+ * A name may appear more than once.  Parameters inside quoted strings,
+ * quoted identifiers and comments are left alone, as are Postgres
+ * <code>::</code> casts.  Values are bound with the setter suited to their
+ * type, as <code>DbUtil.bindValue()</code> does.  A collection or object
+ * array value is expanded into one placeholder per element, for use in
+ * <code>IN</code> lists; an empty one becomes <code>null</code>, which matches
+ * nothing.  To bind a collection as a single SQL array instead, e.g. for
+ * Postgres' <code>= any(:ids)</code>, pass <code>NamedSql.arrayOf()</code>.
+ *
+ * Parsing is done once per distinct SQL text: <code>parse()</code> caches
+ * what it parses, and statements whose values need no expansion reuse the
+ * same positional SQL on every execution, so the pool's prepared statement
+ * cache sees the same text each time.
+ *
+ * @author rdoherty
+ */
+public class NamedSql {
+
+	// beyond this, newly seen SQL is parsed but not cached, so generated SQL can't fill the heap
+	private static final int MAX_CACHED = 2048;
+	private static final ConcurrentMap<String, NamedSql> CACHE = new ConcurrentHashMap<String, NamedSql>();
+
+	/**
+	 * Value bound as a single SQL array rather than expanded into a list
+	 */
+	public static class ArrayValue {
+
+		private final String _typeName;
+		private final Object[] _elements;
+
+		private ArrayValue(String typeName, Object[] elements) {
+			_typeName = typeName;
+			_elements = elements;
+		}
+	}
+
+	/**
+	 * Wraps a collection so it is bound as one SQL array
+	 *
+	 * @param typeName SQL type of the elements, as passed to <code>Connection.createArrayOf()</code>
+	 * @param elements elements of the array
+	 * @return value to bind
+	 */
+	public static ArrayValue arrayOf(String typeName, Collection<?> elements) {
+		return new ArrayValue(typeName, elements.toArray());
+	}
+
+	private final String _sql;
+	// SQL text before, between and after the parameters
+	private final String[] _fragments;
+	// parameter name at each placeholder
+	private final String[] _names;
+	private final String _positionalSql;
+
+	/**
+	 * Returns the parsed form of the passed SQL, parsing it only if it has
+	 * not been parsed before
+	 *
+	 * @param sql SQL with <code>:name</code> parameters
+	 * @return parsed SQL
+	 */
+	public static NamedSql parse(String sql) {
+		NamedSql parsed = CACHE.get(sql);
+		if (parsed == null) {
+			parsed = new NamedSql(sql);
+			if (CACHE.size() < MAX_CACHED) {
+				CACHE.putIfAbsent(sql, parsed);
+			}
+		}
+		return parsed;
+	}
+
+	private NamedSql(String sql) {
+		List<String> fragments = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		int len = sql.length();
+		int start = 0;
+		int i = 0;
+		while (i < len) {
+			char c = sql.charAt(i);
+			if (c == '\'' || c == '"') {
+				int close = sql.indexOf(c, i + 1);
+				i = (close < 0 ? len : close + 1);
+			}
+			else if (c == '-' && sql.startsWith("--", i)) {
+				int eol = sql.indexOf('\n', i);
+				i = (eol < 0 ? len : eol + 1);
+			}
+			else if (c == '/' && sql.startsWith("/*", i)) {
+				int close = sql.indexOf("*/", i + 2);
+				i = (close < 0 ? len : close + 2);
+			}
+			else if (c == ':' && i + 1 < len && sql.charAt(i + 1) == ':') {
+				i += 2;
+			}
+			else if (c == ':' && i + 1 < len && Character.isJavaIdentifierStart(sql.charAt(i + 1))) {
+				int end = i + 2;
+				while (end < len && Character.isJavaIdentifierPart(sql.charAt(end))) {
+					end++;
+				}
+				fragments.add(sql.substring(start, i));
+				names.add(sql.substring(i + 1, end));
+				start = i = end;
+			}
+			else {
+				i++;
+			}
+		}
+		fragments.add(sql.substring(start));
+		_sql = sql;
+		_fragments = fragments.toArray(new String[fragments.size()]);
+		_names = names.toArray(new String[names.size()]);
+		_positionalSql = String.join("?", _fragments);
+	}
+
+	/**
+	 * @return the SQL as passed to <code>parse()</code>
+	 */
+	public String getSql() {
+		return _sql;
+	}
+
+	/**
+	 * @return names of the parameters, each once, in order of first appearance
+	 */
+	public List<String> getParameterNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(Arrays.asList(_names))));
+	}
+
+	/**
+	 * Returns the SQL with each parameter replaced by JDBC placeholders for
+	 * the passed values: one per element for collections and object arrays,
+	 * one otherwise.
+	 *
+	 * @param params values of the parameters
+	 * @return SQL with <code>?</code> placeholders
+	 * @throws IllegalArgumentException if a parameter has no value
+	 */
+	public String toPositionalSql(Map<String, ?> params) {
+		boolean expands = false;
+		for (String name : _names) {
+			expands |= (elements(valueOf(params, name)) != null);
+		}
+		if (!expands) {
+			return _positionalSql;
+		}
+		StringBuilder sql = new StringBuilder(_sql.length() + 16);
+		for (int i = 0; i < _names.length; i++) {
+			sql.append(_fragments[i]);
+			Object[] elements = elements(params.get(_names[i]));
+			if (elements == null) {
+				sql.append('?');
+			}
+			else if (elements.length == 0) {
+				sql.append("null");
+			}
+			else {
+				sql.append('?');
+				for (int j = 1; j < elements.length; j++) {
+					sql.append(", ?");
+				}
+			}
+		}
+		return sql.append(_fragments[_names.length]).toString();
+	}
+
+	/**
+	 * Prepares a statement for this SQL and the passed values, and binds them
+	 *
+	 * @param conn connection to prepare the statement on
+	 * @param params values of the parameters
+	 * @return bound statement, which the caller must close
+	 * @throws SQLException if the statement could not be prepared or bound
+	 * @throws IllegalArgumentException if a parameter has no value
+	 */
+	public PreparedStatement prepare(Connection conn, Map<String, ?> params) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(toPositionalSql(params));
+		try {
+			bind(ps, params);
+			return ps;
+		}
+		catch (SQLException | RuntimeException e) {
+			DbUtil.close(ps);
+			throw e;
+		}
+	}
+
+	/**
+	 * Binds values to a statement prepared from
+	 * <code>toPositionalSql(params)</code> with the same values
+	 *
+	 * @param ps statement to bind
+	 * @param params values of the parameters
+	 * @throws SQLException if a value could not be bound
+	 * @throws IllegalArgumentException if a parameter has no value
+	 */
+	public void bind(PreparedStatement ps, Map<String, ?> params) throws SQLException {
+		int index = 1;
+		for (String name : _names) {
+			Object value = valueOf(params, name);
+			Object[] elements = elements(value);
+			if (elements != null) {
+				for (Object element : elements) {
+					DbUtil.bindValue(ps, index++, element);
+				}
+			}
+			else if (value instanceof ArrayValue) {
+				ArrayValue array = (ArrayValue)value;
+				ps.setArray(index++, ps.getConnection().createArrayOf(array._typeName, array._elements));
+			}
+			else {
+				DbUtil.bindValue(ps, index++, value);
+			}
+		}
+	}
+
+	private static Object valueOf(Map<String, ?> params, String name) {
+		Object value = params.get(name);
+		if (value == null && !params.containsKey(name)) {
+			throw new IllegalArgumentException("No value given for SQL parameter :" + name);
+		}
+		return value;
+	}
+
+	/**
+	 * @return the elements of a value that expands into a list, or null if it does not
+	 */
+	private static Object[] elements(Object value) {
+		if (value instanceof Collection) {
+			return ((Collection<?>)value).toArray();
+		}
+		if (value instanceof Object[]) {
+			return (Object[])value;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return _sql;
+	}
+}
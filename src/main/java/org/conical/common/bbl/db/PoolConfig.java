@@ -0,0 +1,420 @@
+package org.conical.common.bbl.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optional settings for a <code>DbConnectionBroker</code> beyond the basic
+ * connection information and pool sizes passed to its constructors.  Each
+ * setting has a default, so callers only set what they need.  Setters return
+ * this object so settings can be chained:
+ *
+ * <code>
+ *   PoolConfig config = new PoolConfig()
+ *     .setWarmUp(PoolConfig.WarmUp.BACKGROUND)
+ *     .setCheckoutTimeout(5000);
+ * </code>
+ *
+ * A broker reads its configuration once, when it is constructed; later
+ * changes to a PoolConfig do not affect brokers already created with it.
+ *
+ * @author rdoherty
+ */
+public class PoolConfig {
+
+	/**
+	 * How a broker opens its initial (minimum) set of connections
+	 */
+	public enum WarmUp {
+		/** open connections one at a time; constructor blocks until done */
+		SERIAL,
+		/** open connections concurrently; constructor blocks until done */
+		PARALLEL,
+		/** open connections concurrently in the background; constructor returns immediately */
+		BACKGROUND;
+	}
+
+	/**
+	 * What a broker does with a connection checked out for longer than its
+	 * maximum checkout time
+	 */
+	public enum LeakMode {
+		/** log and count the leak, but leave the connection with the caller */
+		WARN,
+		/** log and count the leak, abort the connection and replace it in the pool */
+		RECLAIM;
+	}
+
+	private static final WarmUp DEFAULT_WARM_UP = WarmUp.PARALLEL;
+	private static final int DEFAULT_WARM_UP_ATTEMPTS = 20;
+	private static final long DEFAULT_WARM_UP_RETRY_MILLIS = 15000;
+	private static final long DEFAULT_CHECKOUT_TIMEOUT_MILLIS = 20000;
+	private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 600000;
+	private static final long DEFAULT_VALIDATION_WINDOW_MILLIS = 30000;
+	private static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 20000;
+	private static final long DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS = 5000;
+	private static final long DEFAULT_ADAPTIVE_INTERVAL_MILLIS = 30000;
+	private static final double DEFAULT_LIFETIME_JITTER = 0.1;
+
+	private WarmUp _warmUp = DEFAULT_WARM_UP;
+	private int _warmUpAttempts = DEFAULT_WARM_UP_ATTEMPTS;
+	private long _warmUpRetryMillis = DEFAULT_WARM_UP_RETRY_MILLIS;
+	private long _checkoutTimeoutMillis = DEFAULT_CHECKOUT_TIMEOUT_MILLIS;
+	private int _maxWaiters = Integer.MAX_VALUE;
+	private long _idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private int _minIdle = -1;
+	private long _validationWindowMillis = DEFAULT_VALIDATION_WINDOW_MILLIS;
+	private long _validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+	private long _housekeepingMillis = DEFAULT_HOUSEKEEPING_INTERVAL_MILLIS;
+	private int _statementCacheSize = 0;
+	private LeakMode _leakMode = LeakMode.RECLAIM;
+	private int _leakTraceSampling = 0;
+	private int _maxConnectionsCeiling = -1;
+	private long _adaptiveTargetWaitMillis = 0;
+	private long _adaptiveIntervalMillis = DEFAULT_ADAPTIVE_INTERVAL_MILLIS;
+	private int _queryTimeoutSeconds = 0;
+	private long _queryWatchdogMillis = 0;
+	private List<String> _initSql = Collections.emptyList();
+	private List<String> _warmStatements = Collections.emptyList();
+	private double _lifetimeJitter = DEFAULT_LIFETIME_JITTER;
+	private List<String> _laneNames = new ArrayList<String>();
+	private List<Integer> _laneReserves = new ArrayList<Integer>();
+
+	/**
+	 * @param warmUp how initial connections are opened; default is PARALLEL
+	 * @return this config
+	 */
+	public PoolConfig setWarmUp(WarmUp warmUp) {
+		_warmUp = warmUp;
+		return this;
+	}
+
+	public WarmUp getWarmUp() {
+		return _warmUp;
+	}
+
+	/**
+	 * @param attempts number of times to try opening the initial connections
+	 * before giving up; default is 20
+	 * @return this config
+	 */
+	public PoolConfig setWarmUpAttempts(int attempts) {
+		_warmUpAttempts = attempts;
+		return this;
+	}
+
+	public int getWarmUpAttempts() {
+		return _warmUpAttempts;
+	}
+
+	/**
+	 * @param millis time to wait between attempts to open the initial
+	 * connections; default is 15 seconds
+	 * @return this config
+	 */
+	public PoolConfig setWarmUpRetryInterval(long millis) {
+		_warmUpRetryMillis = millis;
+		return this;
+	}
+
+	public long getWarmUpRetryInterval() {
+		return _warmUpRetryMillis;
+	}
+
+	/**
+	 * @param millis maximum time a request waits for a connection when the
+	 * pool is exhausted; default is 20 seconds
+	 * @return this config
+	 */
+	public PoolConfig setCheckoutTimeout(long millis) {
+		_checkoutTimeoutMillis = millis;
+		return this;
+	}
+
+	public long getCheckoutTimeout() {
+		return _checkoutTimeoutMillis;
+	}
+
+	/**
+	 * @param maxWaiters maximum number of requests allowed to wait for a
+	 * connection at once; default is unbounded
+	 * @return this config
+	 */
+	public PoolConfig setMaxWaiters(int maxWaiters) {
+		_maxWaiters = maxWaiters;
+		return this;
+	}
+
+	public int getMaxWaiters() {
+		return _maxWaiters;
+	}
+
+	/**
+	 * @param millis time after which an unused idle connection is closed,
+	 * shrinking the pool; zero disables idle eviction; default is 10 minutes
+	 * @return this config
+	 */
+	public PoolConfig setIdleTimeout(long millis) {
+		_idleTimeoutMillis = millis;
+		return this;
+	}
+
+	public long getIdleTimeout() {
+		return _idleTimeoutMillis;
+	}
+
+	/**
+	 * @param minIdle number of idle connections idle eviction always leaves
+	 * open; default is the broker's minimum number of connections
+	 * @return this config
+	 */
+	public PoolConfig setMinIdle(int minIdle) {
+		_minIdle = minIdle;
+		return this;
+	}
+
+	/**
+	 * @return number of idle connections idle eviction leaves open, or -1 to
+	 * use the broker's minimum number of connections
+	 */
+	public int getMinIdle() {
+		return _minIdle;
+	}
+
+	/**
+	 * @param millis a connection returned within this long before its
+	 * scheduled validation is assumed good and not validated; default is 30 seconds
+	 * @return this config
+	 */
+	public PoolConfig setValidationWindow(long millis) {
+		_validationWindowMillis = millis;
+		return this;
+	}
+
+	public long getValidationWindow() {
+		return _validationWindowMillis;
+	}
+
+	/**
+	 * @param millis time between validations of each idle connection; default is 20 seconds
+	 * @return this config
+	 */
+	public PoolConfig setValidationInterval(long millis) {
+		_validationIntervalMillis = millis;
+		return this;
+	}
+
+	public long getValidationInterval() {
+		return _validationIntervalMillis;
+	}
+
+	/**
+	 * @param millis time between housekeeping passes over the pool; default is 5 seconds
+	 * @return this config
+	 */
+	public PoolConfig setHousekeepingInterval(long millis) {
+		_housekeepingMillis = millis;
+		return this;
+	}
+
+	public long getHousekeepingInterval() {
+		return _housekeepingMillis;
+	}
+
+	/**
+	 * @param size number of prepared statements cached per connection and
+	 * reused when the same SQL is prepared again; zero disables the cache;
+	 * default is zero
+	 * @return this config
+	 */
+	public PoolConfig setStatementCacheSize(int size) {
+		_statementCacheSize = size;
+		return this;
+	}
+
+	public int getStatementCacheSize() {
+		return _statementCacheSize;
+	}
+
+	/**
+	 * @param mode what to do with a connection checked out for longer than
+	 * the broker's maximum checkout time; default is RECLAIM
+	 * @return this config
+	 */
+	public PoolConfig setLeakMode(LeakMode mode) {
+		_leakMode = mode;
+		return this;
+	}
+
+	public LeakMode getLeakMode() {
+		return _leakMode;
+	}
+
+	/**
+	 * @param oneIn record the stack of one in this many checkouts, so that a
+	 * leaked connection can be reported with the code that checked it out;
+	 * 1 records every checkout, zero disables recording; default is zero
+	 * @return this config
+	 */
+	public PoolConfig setLeakTraceSampling(int oneIn) {
+		_leakTraceSampling = oneIn;
+		return this;
+	}
+
+	public int getLeakTraceSampling() {
+		return _leakTraceSampling;
+	}
+
+	/**
+	 * @param ceiling hard maximum number of connections, e.g. this pool's
+	 * share of the database's connection limit; adaptive sizing may grow the
+	 * pool past the broker's maximum number of connections up to this value,
+	 * and a ceiling below the broker's maximum (or minimum) lowers it to the
+	 * ceiling; default is the broker's maximum
+	 * @return this config
+	 */
+	public PoolConfig setMaxConnectionsCeiling(int ceiling) {
+		_maxConnectionsCeiling = ceiling;
+		return this;
+	}
+
+	/**
+	 * @return hard maximum number of connections, or -1 to use the broker's maximum
+	 */
+	public int getMaxConnectionsCeiling() {
+		return _maxConnectionsCeiling;
+	}
+
+	/**
+	 * @param millis turns on adaptive sizing: the pool's connection limit is
+	 * raised when the 95th percentile checkout wait exceeds this, and lowered
+	 * when the pool is mostly idle; zero disables adaptive sizing; default is zero
+	 * @return this config
+	 */
+	public PoolConfig setAdaptiveTargetWait(long millis) {
+		_adaptiveTargetWaitMillis = millis;
+		return this;
+	}
+
+	public long getAdaptiveTargetWait() {
+		return _adaptiveTargetWaitMillis;
+	}
+
+	/**
+	 * @param millis time over which adaptive sizing measures waits and
+	 * utilization before adjusting the limit; default is 30 seconds
+	 * @return this config
+	 */
+	public PoolConfig setAdaptiveInterval(long millis) {
+		_adaptiveIntervalMillis = millis;
+		return this;
+	}
+
+	public long getAdaptiveInterval() {
+		return _adaptiveIntervalMillis;
+	}
+
+	/**
+	 * @param seconds query timeout applied to every statement created through
+	 * the pool's connections; callers may override it per statement with
+	 * <code>setQueryTimeout</code>; zero means no limit; default is zero
+	 * @return this config
+	 */
+	public PoolConfig setQueryTimeout(int seconds) {
+		_queryTimeoutSeconds = seconds;
+		return this;
+	}
+
+	public int getQueryTimeout() {
+		return _queryTimeoutSeconds;
+	}
+
+	/**
+	 * @param millis turns on the query watchdog: statements running longer
+	 * than their query timeout are cancelled, checked at this interval, so
+	 * that drivers which do not enforce the timeout themselves still give the
+	 * connection back; zero disables the watchdog; default is zero
+	 * @return this config
+	 */
+	public PoolConfig setQueryWatchdogInterval(long millis) {
+		_queryWatchdogMillis = millis;
+		return this;
+	}
+
+	public long getQueryWatchdogInterval() {
+		return _queryWatchdogMillis;
+	}
+
+	/**
+	 * @param sql statements run, in order, on each new physical connection
+	 * before it is handed out, e.g. session settings; a connection on which
+	 * one fails is closed; default is none
+	 * @return this config
+	 */
+	public PoolConfig setInitSql(List<String> sql) {
+		_initSql = new ArrayList<String>(sql);
+		return this;
+	}
+
+	public List<String> getInitSql() {
+		return _initSql;
+	}
+
+	/**
+	 * @param sql queries prepared on each new physical connection before it
+	 * is handed out and kept in its statement cache, so the first callers
+	 * to use them do not pay to parse them; the statement cache is enlarged
+	 * to hold them if needed; default is none
+	 * @return this config
+	 */
+	public PoolConfig setWarmStatements(List<String> sql) {
+		_warmStatements = new ArrayList<String>(sql);
+		return this;
+	}
+
+	public List<String> getWarmStatements() {
+		return _warmStatements;
+	}
+
+	/**
+	 * @param fraction each connection's maximum lifetime is shortened by a
+	 * random amount of up to this fraction of the broker's maximum connection
+	 * time, so connections opened together are not all replaced together;
+	 * zero gives every connection the full time; default is 0.1
+	 * @return this config
+	 */
+	public PoolConfig setLifetimeJitter(double fraction) {
+		_lifetimeJitter = fraction;
+		return this;
+	}
+
+	public double getLifetimeJitter() {
+		return _lifetimeJitter;
+	}
+
+	/**
+	 * Adds a priority lane.  Borrowers name their lane when checking out a
+	 * connection; lanes are served in the order they are added, highest
+	 * priority first, and borrowers naming no lane (or an unknown one) rank
+	 * below all of them.  By default there are no lanes.
+	 *
+	 * @param name lane name
+	 * @param reserved number of connections kept for this lane: borrowers
+	 * from other lanes are made to wait rather than take them
+	 * @return this config
+	 */
+	public PoolConfig addLane(String name, int reserved) {
+		_laneNames.add(name);
+		_laneReserves.add(reserved);
+		return this;
+	}
+
+	public List<String> getLaneNames() {
+		return _laneNames;
+	}
+
+	public List<Integer> getLaneReserves() {
+		return _laneReserves;
+	}
+}
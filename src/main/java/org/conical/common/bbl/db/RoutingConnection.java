@@ -0,0 +1,407 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Connection handed out by <code>RoutingDataSource</code>.  No physical
+ * connection is taken until the connection is first used, so that a caller
+ * can call <code>setReadOnly(true)</code> first and be served by a replica.
+ * Any other call made before then (including setting auto-commit or the
+ * isolation level) takes a connection from the primary.
+ * 
+ * @author rdoherty
+ */
+class RoutingConnection implements Connection {
+
+	private RoutingDataSource _source;
+	private RoutingDataSource.Lease _lease;
+	private boolean _readOnly;
+	private boolean _closed = false;
+
+	/**
+	 * @param source data source that routes this connection
+	 * @param readOnly whether the connection starts out read-only
+	 */
+	RoutingConnection(RoutingDataSource source, boolean readOnly) {
+		_source = source;
+		_readOnly = readOnly;
+	}
+
+	/**
+	 * Returns the physical connection, taking one from a replica (if this
+	 * connection is read-only) or the primary on first use.
+	 */
+	Connection target() throws SQLException {
+		if (_lease == null) {
+			if (_closed) {
+				throw new SQLException("Connection has been closed.");
+			}
+			_lease = _source.lease(_readOnly);
+			if (_readOnly) {
+				_lease.getConnection().setReadOnly(true);
+			}
+		}
+		return _lease.getConnection();
+	}
+
+	private Connection clientInfoTarget() throws SQLClientInfoException {
+		try {
+			return target();
+		}
+		catch (SQLException e) {
+			throw new SQLClientInfoException(e.getMessage(), e.getSQLState(), e.getErrorCode(), null, e);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void close() throws SQLException {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		if (_lease != null) {
+			_lease.release();
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isClosed() throws SQLException {
+		return _closed || (_lease != null && _lease.getConnection().isClosed());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setReadOnly(boolean readOnly) throws SQLException {
+		if (_lease == null) {
+			_readOnly = readOnly;
+		}
+		else {
+			_lease.getConnection().setReadOnly(readOnly);
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		return (_lease == null ? _readOnly : _lease.getConnection().isReadOnly());
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement() throws SQLException {
+		return target().createStatement();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return target().prepareStatement(sql);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql) throws SQLException {
+		return target().prepareCall(sql);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String nativeSQL(String sql) throws SQLException {
+		return target().nativeSQL(sql);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		target().setAutoCommit(autoCommit);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		return target().getAutoCommit();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void commit() throws SQLException {
+		target().commit();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void rollback() throws SQLException {
+		target().rollback();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		return target().getMetaData();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setCatalog(String catalog) throws SQLException {
+		target().setCatalog(catalog);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getCatalog() throws SQLException {
+		return target().getCatalog();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTransactionIsolation(int level) throws SQLException {
+		target().setTransactionIsolation(level);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		return target().getTransactionIsolation();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return target().getWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void clearWarnings() throws SQLException {
+		target().clearWarnings();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+		return target().createStatement(resultSetType, resultSetConcurrency);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return target().prepareStatement(sql, resultSetType, resultSetConcurrency);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+		return target().prepareCall(sql, resultSetType, resultSetConcurrency);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Map<String,Class<?>> getTypeMap() throws SQLException {
+		return target().getTypeMap();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTypeMap(Map<String,Class<?>> map) throws SQLException {
+		target().setTypeMap(map);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setHoldability(int holdability) throws SQLException {
+		target().setHoldability(holdability);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getHoldability() throws SQLException {
+		return target().getHoldability();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		return target().setSavepoint();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Savepoint setSavepoint(String name) throws SQLException {
+		return target().setSavepoint(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void rollback(Savepoint savepoint) throws SQLException {
+		target().rollback(savepoint);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+		target().releaseSavepoint(savepoint);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return target().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return target().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+		return target().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		return target().prepareStatement(sql, autoGeneratedKeys);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+		return target().prepareStatement(sql, columnIndexes);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+		return target().prepareStatement(sql, columnNames);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Clob createClob() throws SQLException {
+		return target().createClob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Blob createBlob() throws SQLException {
+		return target().createBlob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public NClob createNClob() throws SQLException {
+		return target().createNClob();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		return target().createSQLXML();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isValid(int timeout) throws SQLException {
+		return target().isValid(timeout);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClientInfo(String name, String value) throws SQLClientInfoException {
+		clientInfoTarget().setClientInfo(name, value);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setClientInfo(Properties properties) throws SQLClientInfoException {
+		clientInfoTarget().setClientInfo(properties);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getClientInfo(String name) throws SQLException {
+		return target().getClientInfo(name);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		return target().getClientInfo();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+		return target().createArrayOf(typeName, elements);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+		return target().createStruct(typeName, attributes);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setSchema(String schema) throws SQLException {
+		target().setSchema(schema);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String getSchema() throws SQLException {
+		return target().getSchema();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void abort(Executor executor) throws SQLException {
+		target().abort(executor);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+		target().setNetworkTimeout(executor, milliseconds);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		return target().getNetworkTimeout();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || target().isWrapperFor(iface);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return (iface.isInstance(this) ? iface.cast(this) : target().unwrap(iface));
+	}
+}
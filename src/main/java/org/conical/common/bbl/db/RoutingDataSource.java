@@ -0,0 +1,248 @@
+package org.conical.common.bbl.db;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * DataSource that sends writes to a primary database and reads to a set of
+ * read replicas.  Connections from <code>getConnection()</code> are taken
+ * lazily: if the caller calls <code>setReadOnly(true)</code> before using the
+ * connection it is served by a replica, otherwise by the primary.
+ * <code>getReadOnlyConnection()</code> always asks for a replica.
+ *
+ * Reads go to the replica with the fewest connections currently checked out
+ * through this object.  A replica that fails to hand out a connection is
+ * considered down and skipped for a retry interval; if no replica can serve
+ * a read, it is served by the primary.
+ *
+ * @author rdoherty
+ */
+public class RoutingDataSource implements DataSource {
+
+	private static final Logger LOG = LogManager.getLogger(RoutingDataSource.class);
+
+	private static final long DEFAULT_RETRY_MILLIS = 30000;
+
+	/**
+	 * A primary or replica database and the number of connections currently
+	 * checked out from it through this object
+	 */
+	private static class Target {
+
+		private final DataSource _ds;
+		private final AtomicInteger _outstanding = new AtomicInteger();
+		private volatile long _downUntil = 0;
+
+		Target(DataSource ds) {
+			_ds = ds;
+		}
+	}
+
+	/**
+	 * A connection checked out from a target; releasing it closes the
+	 * connection and credits the target.
+	 */
+	static class Lease {
+
+		private final Target _target;
+		private final Connection _conn;
+
+		private Lease(Target target, Connection conn) {
+			_target = target;
+			_conn = conn;
+		}
+
+		Connection getConnection() {
+			return _conn;
+		}
+
+		void release() throws SQLException {
+			try {
+				_conn.close();
+			}
+			finally {
+				_target._outstanding.decrementAndGet();
+			}
+		}
+	}
+
+	private final Target _primary;
+	private final Target[] _replicas;
+	private volatile long _retryMillis = DEFAULT_RETRY_MILLIS;
+
+	/**
+	 * Creates a routing data source
+	 *
+	 * @param primary data source for writes, and for reads when no replica is available
+	 * @param replicas data sources for reads
+	 */
+	public RoutingDataSource(DataSource primary, List<? extends DataSource> replicas) {
+		_primary = new Target(primary);
+		_replicas = new Target[replicas.size()];
+		for (int i = 0; i < _replicas.length; i++) {
+			_replicas[i] = new Target(replicas.get(i));
+		}
+	}
+
+	/**
+	 * Sets how long a replica that failed to hand out a connection is skipped
+	 * before it is tried again.  Default is 30 seconds.
+	 *
+	 * @param millis retry interval in milliseconds
+	 */
+	public void setReplicaRetryInterval(long millis) {
+		_retryMillis = millis;
+	}
+
+	/**
+	 * Returns a connection that is routed to a replica if
+	 * <code>setReadOnly(true)</code> is called before it is otherwise used,
+	 * and to the primary otherwise.
+	 */
+	@Override
+	public Connection getConnection() throws SQLException {
+		return new RoutingConnection(this, false);
+	}
+
+	/**
+	 * Ignores the username and password passed in; connects as the users
+	 * the underlying data sources are configured with.
+	 */
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		return getConnection();
+	}
+
+	/**
+	 * Returns a read-only connection from a replica, or from the primary if
+	 * no replica is available.
+	 *
+	 * @return read-only connection
+	 * @throws SQLException if no connection could be obtained
+	 */
+	public Connection getReadOnlyConnection() throws SQLException {
+		RoutingConnection conn = new RoutingConnection(this, true);
+		conn.target();
+		return conn;
+	}
+
+	/**
+	 * Checks out a physical connection for a routing connection
+	 *
+	 * @param readOnly whether the connection may be served by a replica
+	 * @return the checked out connection
+	 * @throws SQLException if no connection could be obtained
+	 */
+	Lease lease(boolean readOnly) throws SQLException {
+		if (readOnly) {
+			boolean[] tried = new boolean[_replicas.length];
+			Target replica;
+			while ((replica = leastOutstanding(tried)) != null) {
+				replica._outstanding.incrementAndGet();
+				try {
+					return new Lease(replica, replica._ds.getConnection());
+				}
+				catch (SQLException e) {
+					replica._outstanding.decrementAndGet();
+					// an exhausted pool is busy, not down
+					if (!(e instanceof SQLTransientConnectionException) || e.getCause() != null) {
+						replica._downUntil = System.currentTimeMillis() + _retryMillis;
+						LOG.warn("Read replica unavailable; skipping it for " + _retryMillis + " ms: " + e);
+					}
+				}
+			}
+		}
+		_primary._outstanding.incrementAndGet();
+		try {
+			return new Lease(_primary, _primary._ds.getConnection());
+		}
+		catch (SQLException e) {
+			_primary._outstanding.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Marks and returns the healthy replica not yet tried with the fewest
+	 * outstanding connections, or null if there is none
+	 */
+	private Target leastOutstanding(boolean[] tried) {
+		long now = System.currentTimeMillis();
+		int best = -1;
+		for (int i = 0; i < _replicas.length; i++) {
+			if (tried[i] || _replicas[i]._downUntil > now) {
+				continue;
+			}
+			if (best < 0 || _replicas[i]._outstanding.get() < _replicas[best]._outstanding.get()) {
+				best = i;
+			}
+		}
+		if (best < 0) {
+			return null;
+		}
+		tried[best] = true;
+		return _replicas[best];
+	}
+
+	/**
+	 * @return number of replicas not currently considered down
+	 */
+	public int getAvailableReplicaCount() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		for (Target replica : _replicas) {
+			if (replica._downUntil <= now) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return _primary._ds.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		_primary._ds.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		_primary._ds.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return _primary._ds.getLoginTimeout();
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return _primary._ds.getParentLogger();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		throw new SQLException("RoutingDataSource does not wrap " + iface.getName());
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this);
+	}
+}
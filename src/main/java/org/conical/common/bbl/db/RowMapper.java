@@ -0,0 +1,22 @@
+package org.conical.common.bbl.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Turns the current row of a result set into an object.  Implementations
+ * should only read the current row and must not move the cursor.
+ *
+ * @param <T> type the rows are mapped to
+ * @author rdoherty
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+	/**
+	 * @param rs result set positioned on the row to map
+	 * @return object built from the row
+	 * @throws SQLException if the row could not be read
+	 */
+	T mapRow(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,236 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hands out IDs from database sequences in blocks, so that inserting many
+ * rows does not cost a round trip per ID.  Each round trip to the database
+ * reserves a whole block of IDs, which are then served from memory; threads
+ * take IDs from the current block without locking, and only the thread that
+ * finds the block used up fetches the next one.  Since every block is
+ * reserved by advancing the database sequence, any number of allocators, in
+ * this JVM or others, can share a sequence without handing out the same ID.
+ *
+ * Blocks are derived from the sequence in one of two ways:
+ * <ul>
+ *   <li>POOLED (default): the sequence is created to increment by the block
+ *       size, and a value <i>v</i> reserves IDs <i>v</i> through
+ *       <i>v</i> + blockSize - 1.  IDs match the sequence's own values, so
+ *       writers that call nextval directly do not collide with the allocator.</li>
+ *   <li>HILO: the sequence increments by one, and a value <i>v</i> reserves
+ *       IDs <i>v</i> * blockSize through (<i>v</i> + 1) * blockSize - 1.
+ *       Works with existing sequences, but every writer must use the allocator.</li>
+ * </ul>
+ *
+ * Supported databases are Oracle and Postgres, which use native sequences,
+ * and MySQL, which has none: there a sequence is a one-row table of the same
+ * name with a single numeric column <code>next_val</code>, advanced
+ * atomically with <code>LAST_INSERT_ID()</code>.
+ *
+ * IDs left in a block when the allocator is discarded are never used, so
+ * IDs are unique and increasing within a block but not gap-free.
+ *
+ * @author rdoherty
+ */
+public class SequenceAllocator {
+
+	private static final Logger LOG = LogManager.getLogger(SequenceAllocator.class);
+
+	private static final Pattern SEQUENCE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_$.]*");
+
+	/**
+	 * How blocks of IDs are derived from values of the database sequence
+	 */
+	public enum Strategy { POOLED, HILO }
+
+	/**
+	 * IDs [next, limit) not yet handed out
+	 */
+	private static class Block {
+
+		private final AtomicLong _next;
+		private final long _limit;
+
+		Block(long first, long limit) {
+			_next = new AtomicLong(first);
+			_limit = limit;
+		}
+	}
+
+	/**
+	 * Current block of one sequence, and the lock held while replacing it
+	 */
+	private class Sequence {
+
+		private final String _name;
+		private final ReentrantLock _refillLock = new ReentrantLock();
+		private volatile Block _block;
+
+		Sequence(String name) {
+			_name = name;
+		}
+
+		long next() throws SQLException {
+			while (true) {
+				Block block = _block;
+				if (block != null) {
+					long id = block._next.getAndIncrement();
+					if (id < block._limit) {
+						return id;
+					}
+				}
+				_refillLock.lock();
+				try {
+					// another thread may have refilled while this one waited
+					if (_block == block) {
+						_block = reserveBlock(_name);
+					}
+				}
+				finally {
+					_refillLock.unlock();
+				}
+			}
+		}
+	}
+
+	private final DataSource _ds;
+	private final DatabaseType _dbType;
+	private final int _blockSize;
+	private final Strategy _strategy;
+	private final ConcurrentMap<String, Sequence> _sequences = new ConcurrentHashMap<String, Sequence>();
+
+	/**
+	 * Creates an allocator that reserves IDs with the POOLED strategy; the
+	 * database sequences it is used with must increment by
+	 * <code>blockSize</code>.
+	 *
+	 * @param ds data source to reserve blocks through
+	 * @param dbType type of database behind the data source
+	 * @param blockSize number of IDs reserved per round trip
+	 */
+	public SequenceAllocator(DataSource ds, DatabaseType dbType, int blockSize) {
+		this(ds, dbType, blockSize, Strategy.POOLED);
+	}
+
+	/**
+	 * Creates an allocator
+	 *
+	 * @param ds data source to reserve blocks through
+	 * @param dbType type of database behind the data source; must be ORACLE, POSTGRES or MYSQL
+	 * @param blockSize number of IDs reserved per round trip
+	 * @param strategy how blocks are derived from sequence values
+	 * @throws IllegalArgumentException if the database type has no sequences or the block size is not positive
+	 */
+	public SequenceAllocator(DataSource ds, DatabaseType dbType, int blockSize, Strategy strategy) {
+		switch (dbType) {
+			case ORACLE: case POSTGRES: case MYSQL: break;
+			default:
+				throw new IllegalArgumentException("Sequences are not supported for DatabaseType " + dbType);
+		}
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		}
+		_ds = ds;
+		_dbType = dbType;
+		_blockSize = blockSize;
+		_strategy = strategy;
+	}
+
+	/**
+	 * Returns the next ID from the named sequence, reserving a new block of
+	 * IDs from the database if the current one is used up
+	 *
+	 * @param sequenceName name of the sequence
+	 * @return unused ID
+	 * @throws SQLException if a block could not be reserved
+	 */
+	public long next(String sequenceName) throws SQLException {
+		Sequence seq = _sequences.get(sequenceName);
+		if (seq == null) {
+			if (!SEQUENCE_NAME.matcher(sequenceName).matches()) {
+				throw new IllegalArgumentException("Invalid sequence name: " + sequenceName);
+			}
+			seq = _sequences.computeIfAbsent(sequenceName, Sequence::new);
+		}
+		return seq.next();
+	}
+
+	/**
+	 * Advances the database sequence and returns the block of IDs it reserves
+	 */
+	private Block reserveBlock(String sequenceName) throws SQLException {
+		long step = (_strategy == Strategy.POOLED ? _blockSize : 1);
+		long value;
+		// stay out of any unit of work, so committing a MySQL sequence table
+		// never commits the caller's transaction
+		try (Connection conn = (_ds instanceof DbConnectionBroker ?
+				((DbConnectionBroker)_ds).checkOutConnection(null) : _ds.getConnection())) {
+			value = nextValue(conn, _dbType, sequenceName, step);
+			// release the MySQL sequence row's lock as soon as the block is reserved
+			if (!conn.getAutoCommit()) {
+				conn.commit();
+			}
+		}
+		long first = (_strategy == Strategy.POOLED ? value : Math.multiplyExact(value, (long)_blockSize));
+		LOG.debug("Reserved IDs " + first + " to " + (first + _blockSize - 1) + " from sequence " + sequenceName);
+		return new Block(first, first + _blockSize);
+	}
+
+	/**
+	 * Advances a sequence and returns its new value.  On Oracle and Postgres
+	 * the sequence advances by its own increment, which should equal
+	 * <code>step</code>; on MySQL the sequence table is advanced by
+	 * <code>step</code>.  The MySQL update joins the connection's current
+	 * transaction and is not committed here, so it stays locked and can be
+	 * rolled back until the caller commits.
+	 *
+	 * @param conn connection to use
+	 * @param dbType type of database
+	 * @param sequenceName name of the sequence
+	 * @param step amount the sequence advances by
+	 * @return value reserved from the sequence
+	 * @throws SQLException if the sequence could not be advanced
+	 */
+	static long nextValue(Connection conn, DatabaseType dbType, String sequenceName, long step) throws SQLException {
+		switch (dbType) {
+			case ORACLE:
+				return queryLong(conn, "select " + sequenceName + ".nextval from dual", sequenceName);
+			case POSTGRES:
+				return queryLong(conn, "select nextval('" + sequenceName + "')", sequenceName);
+			case MYSQL:
+				try (PreparedStatement ps = conn.prepareStatement(
+						"update " + sequenceName + " set next_val = last_insert_id(next_val + ?)")) {
+					ps.setLong(1, step);
+					if (ps.executeUpdate() != 1) {
+						throw new SQLException("Sequence table " + sequenceName + " must hold exactly one row");
+					}
+				}
+				return queryLong(conn, "select last_insert_id()", sequenceName) - step;
+			default:
+				throw new IllegalArgumentException("Sequences are not supported for DatabaseType " + dbType);
+		}
+	}
+
+	private static long queryLong(Connection conn, String sql, String sequenceName) throws SQLException {
+		try (PreparedStatement ps = conn.prepareStatement(sql);
+			 ResultSet rs = ps.executeQuery()) {
+			if (!rs.next()) {
+				throw new SQLException("No value returned for sequence " + sequenceName);
+			}
+			return rs.getLong(1);
+		}
+	}
+}
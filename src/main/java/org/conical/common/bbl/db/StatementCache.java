@@ -0,0 +1,184 @@
+package org.conical.common.bbl.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Least-recently-used cache of the prepared statements of a single pooled
+ * connection.  A statement is taken out of the cache while a caller is using
+ * it and put back when the caller closes it, so a cached statement is never
+ * shared.  When the cache grows beyond its maximum size, the least recently
+ * returned statement is closed.
+ *
+ * The cache is normally used only by the thread holding its connection, but
+ * the housekeeping thread closes it when the connection is recycled, so all
+ * access is guarded by a lock.
+ *
+ * @author rdoherty
+ */
+class StatementCache {
+
+	/**
+	 * Identifies a prepared statement by its SQL and result set options
+	 */
+	static class Key {
+
+		private final String _sql;
+		private final int _type;
+		private final int _concurrency;
+		private final int _holdability;
+
+		/**
+		 * @param holdability result set holdability, or -1 for the connection's default
+		 */
+		Key(String sql, int type, int concurrency, int holdability) {
+			_sql = sql;
+			_type = type;
+			_concurrency = concurrency;
+			_holdability = holdability;
+		}
+
+		/**
+		 * Prepares a new statement for this key on the passed connection
+		 */
+		PreparedStatement prepare(Connection conn) throws SQLException {
+			if (_holdability < 0) {
+				return conn.prepareStatement(_sql, _type, _concurrency);
+			}
+			return conn.prepareStatement(_sql, _type, _concurrency, _holdability);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return _sql.equals(other._sql) && _type == other._type &&
+					_concurrency == other._concurrency && _holdability == other._holdability;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((_sql.hashCode() * 31 + _type) * 31 + _concurrency) * 31 + _holdability;
+		}
+	}
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final LinkedHashMap<Key, PreparedStatement> _statements;
+	private final int _maxSize;
+	private final LongAdder _hits, _misses;
+	private boolean _closed = false;
+
+	/**
+	 * @param maxSize maximum number of statements kept
+	 * @param hits counter incremented when a statement is found in the cache
+	 * @param misses counter incremented when a statement is not found
+	 */
+	StatementCache(int maxSize, LongAdder hits, LongAdder misses) {
+		_maxSize = maxSize;
+		_hits = hits;
+		_misses = misses;
+		_statements = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Removes and returns the cached statement for the passed key
+	 *
+	 * @param key statement key
+	 * @return cached statement, or null if none is cached
+	 */
+	PreparedStatement take(Key key) {
+		_lock.lock();
+		try {
+			PreparedStatement ps = _statements.remove(key);
+			if (ps == null) {
+				_misses.increment();
+			}
+			else {
+				_hits.increment();
+			}
+			return ps;
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a statement to the cache.  If the cache has been closed, or
+	 * already holds a statement for the same key, the statement is closed.
+	 *
+	 * @param key statement key
+	 * @param ps statement to cache
+	 */
+	void put(Key key, PreparedStatement ps) {
+		List<PreparedStatement> evicted = new ArrayList<>();
+		_lock.lock();
+		try {
+			if (_closed || _statements.containsKey(key)) {
+				evicted.add(ps);
+			}
+			else {
+				_statements.put(key, ps);
+				Iterator<PreparedStatement> eldest = _statements.values().iterator();
+				while (_statements.size() > _maxSize) {
+					evicted.add(eldest.next());
+					eldest.remove();
+				}
+			}
+		}
+		finally {
+			_lock.unlock();
+		}
+		closeAll(evicted);
+	}
+
+	/**
+	 * @return number of statements currently cached
+	 */
+	int size() {
+		_lock.lock();
+		try {
+			return _statements.size();
+		}
+		finally {
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes all cached statements.  Statements returned afterwards are closed.
+	 */
+	void close() {
+		List<PreparedStatement> evicted;
+		_lock.lock();
+		try {
+			_closed = true;
+			evicted = new ArrayList<>(_statements.values());
+			_statements.clear();
+		}
+		finally {
+			_lock.unlock();
+		}
+		closeAll(evicted);
+	}
+
+	private static void closeAll(List<PreparedStatement> statements) {
+		for (PreparedStatement ps : statements) {
+			try {
+				ps.close();
+			}
+			catch (SQLException e) {
+				// statement is being discarded anyway
+			}
+		}
+	}
+}
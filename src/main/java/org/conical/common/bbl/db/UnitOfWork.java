@@ -0,0 +1,118 @@
+package org.conical.common.bbl.db;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * Binds one pooled connection to the current thread for the duration of a
+ * unit of work.  While a scope for a broker is open, every call to that
+ * broker's <code>getConnection()</code> on the same thread returns the same
+ * connection instead of checking out another one, so DAO methods that call
+ * each other share a single checkout.  Each handle's <code>close()</code>
+ * only drops a reference; the connection goes back to the pool once the
+ * scope has been closed and every handle to it has been closed too.
+ *
+ * <pre>
+ * try (UnitOfWork uow = UnitOfWork.begin(dataSource)) {
+ *     User u = userDao.getUser(name);      // checks out the connection
+ *     u.addAccessRoles(roleDao.getRoles(u)); // reuses it
+ * }
+ * </pre>
+ *
+ * The connection is checked out lazily on first use, so a scope that never
+ * touches the database costs nothing.  Opening a scope for a broker that
+ * already has one on this thread joins the outer scope.  Scopes are bound
+ * to the thread that opened them and must be closed on that thread.
+ *
+ * @author rdoherty
+ */
+public class UnitOfWork implements AutoCloseable {
+
+	private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<UnitOfWork>();
+
+	private final DbConnectionBroker _broker;
+	private final UnitOfWork _outer;
+	private DbConnection _conn;
+	private int _depth = 1;
+
+	private UnitOfWork(DbConnectionBroker broker, UnitOfWork outer) {
+		_broker = broker;
+		_outer = outer;
+	}
+
+	/**
+	 * Opens a unit of work on the passed data source.  If the data source is
+	 * not a <code>DbConnectionBroker</code> the returned scope has no effect,
+	 * so callers need not know how their data source is implemented.
+	 *
+	 * @param ds data source whose connections should be shared
+	 * @return open scope; must be closed
+	 */
+	public static UnitOfWork begin(DataSource ds) {
+		DbConnectionBroker broker = (ds instanceof DbConnectionBroker ? (DbConnectionBroker)ds : null);
+		UnitOfWork scope = (broker == null ? null : current(broker));
+		if (scope != null) {
+			scope._depth++;
+			return scope;
+		}
+		scope = new UnitOfWork(broker, CURRENT.get());
+		if (broker != null) {
+			CURRENT.set(scope);
+		}
+		return scope;
+	}
+
+	/**
+	 * @param broker broker to look up
+	 * @return the innermost open scope on this thread for the passed broker, or null
+	 */
+	static UnitOfWork current(DbConnectionBroker broker) {
+		for (UnitOfWork scope = CURRENT.get(); scope != null; scope = scope._outer) {
+			if (scope._broker == broker) {
+				return scope;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the connection bound to this scope, checking it out on first
+	 * use.  Each call adds a reference that the caller releases with
+	 * <code>close()</code>.
+	 *
+	 * @param lane priority lane to check the connection out under if it is
+	 * not checked out yet, or null for the default lane
+	 * @return shared connection
+	 * @throws SQLException if no connection could be checked out
+	 */
+	DbConnection getConnection(String lane) throws SQLException {
+		if (_conn == null || _conn.isReleased()) {
+			_conn = _broker.checkOutConnection(lane);
+		}
+		_conn.retain();
+		return _conn;
+	}
+
+	/**
+	 * Closes this scope.  When the outermost scope for the broker closes, its
+	 * connection is returned to the pool once no handle still references it.
+	 */
+	@Override
+	public void close() throws SQLException {
+		if (_depth == 0 || --_depth > 0) {
+			return;
+		}
+		if (_broker != null) {
+			if (_outer == null) {
+				CURRENT.remove();
+			}
+			else {
+				CURRENT.set(_outer);
+			}
+		}
+		if (_conn != null) {
+			_conn.close();
+		}
+	}
+}
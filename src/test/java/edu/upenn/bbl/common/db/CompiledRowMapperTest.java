@@ -0,0 +1,166 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import org.conical.common.bbl.db.CompiledRowMapper;
+import org.conical.common.bbl.db.RowMapper;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests CompiledRowMapper against in-memory result sets.
+ *
+ * @author rdoherty
+ */
+public class CompiledRowMapperTest {
+
+	public enum Status { ACTIVE, WITHDRAWN }
+
+	public static class Subject {
+		private int _subjectId;
+		private String _name;
+		private double _score;
+		private Status _status;
+		public int getSubjectId() { return _subjectId; }
+		public void setSubjectId(int subjectId) { _subjectId = subjectId; }
+		public String getName() { return _name; }
+		public void setName(String name) { _name = name; }
+		public double getScore() { return _score; }
+		public void setScore(double score) { _score = score; }
+		public Status getStatus() { return _status; }
+		public void setStatus(Status status) { _status = status; }
+	}
+
+	public record SubjectSummary(int subjectId, String name, long visits) {}
+
+	public static class Visit {
+		private char _sex;
+		private Character _grade;
+		private Integer _visits;
+		private Double _weight;
+		private LocalDate _enrolled;
+		public char getSex() { return _sex; }
+		public void setSex(char sex) { _sex = sex; }
+		public Character getGrade() { return _grade; }
+		public void setGrade(Character grade) { _grade = grade; }
+		public Integer getVisits() { return _visits; }
+		public void setVisits(Integer visits) { _visits = visits; }
+		public Double getWeight() { return _weight; }
+		public void setWeight(Double weight) { _weight = weight; }
+		public LocalDate getEnrolled() { return _enrolled; }
+		public void setEnrolled(LocalDate enrolled) { _enrolled = enrolled; }
+	}
+
+	/**
+	 * Builds a result set with columns subject_id, name, score and status
+	 * holding the passed rows
+	 */
+	static ResultSet subjects(Object[]... rows) throws SQLException {
+		return resultSet(new String[]{ "subject_id", "NAME", "score", "status" },
+				new int[]{ Types.INTEGER, Types.VARCHAR, Types.DOUBLE, Types.VARCHAR }, rows);
+	}
+
+	/**
+	 * Builds a result set with the passed columns and rows.  Unlike the
+	 * JDK's own, it supports <code>getObject(int, Class)</code>, as JDBC 4.1
+	 * drivers do.
+	 */
+	static ResultSet resultSet(String[] labels, int[] types, Object[]... rows) throws SQLException {
+		RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+		meta.setColumnCount(labels.length);
+		for (int i = 0; i < labels.length; i++) {
+			meta.setColumnLabel(i + 1, labels[i]);
+			meta.setColumnName(i + 1, labels[i]);
+			meta.setColumnType(i + 1, types[i]);
+		}
+		CachedRowSet rs = RowSetProvider.newFactory().createCachedRowSet();
+		rs.setMetaData(meta);
+		for (Object[] row : rows) {
+			rs.moveToInsertRow();
+			for (int i = 0; i < row.length; i++) {
+				if (row[i] == null) {
+					rs.updateNull(i + 1);
+				}
+				else {
+					rs.updateObject(i + 1, row[i]);
+				}
+			}
+			rs.insertRow();
+		}
+		rs.moveToCurrentRow();
+		rs.beforeFirst();
+		return (ResultSet)Proxy.newProxyInstance(CompiledRowMapperTest.class.getClassLoader(),
+				new Class<?>[]{ ResultSet.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getObject") && args.length == 2 && args[1] instanceof Class) {
+						return ((Class<?>)args[1]).cast(rs.getObject((Integer)args[0]));
+					}
+					try {
+						return method.invoke(rs, args);
+					}
+					catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
+	@Test
+	public void testMapsBeansAndRecords() throws Exception {
+		RowMapper<Subject> beans = CompiledRowMapper.of(Subject.class);
+		ResultSet rs = subjects(new Object[]{ 7, "Ann", 98.5, "ACTIVE" }, new Object[]{ 8, "Bo", 71.0, "WITHDRAWN" });
+		assertTrue(rs.next());
+		Subject s = beans.mapRow(rs);
+		assertEquals(7, s.getSubjectId());
+		assertEquals("Ann", s.getName());
+		assertEquals(98.5, s.getScore());
+		assertEquals(Status.ACTIVE, s.getStatus());
+		assertTrue(rs.next());
+		assertEquals(Status.WITHDRAWN, beans.mapRow(rs).getStatus());
+
+		// components without a column are left at zero
+		RowMapper<SubjectSummary> records = CompiledRowMapper.of(SubjectSummary.class);
+		rs = subjects(new Object[]{ 9, "Cy", 50.0, "ACTIVE" });
+		assertTrue(rs.next());
+		assertEquals(new SubjectSummary(9, "Cy", 0), records.mapRow(rs));
+
+		assertThrows(IllegalArgumentException.class, () -> CompiledRowMapper.of(Runnable.class));
+	}
+
+	@Test
+	public void testMapsCharsWrappersAndOtherTypes() throws Exception {
+		RowMapper<Visit> visits = CompiledRowMapper.of(Visit.class);
+		LocalDate enrolled = LocalDate.of(2020, 3, 28);
+		ResultSet rs = resultSet(new String[]{ "sex", "grade", "visits", "weight", "enrolled" },
+				new int[]{ Types.CHAR, Types.CHAR, Types.INTEGER, Types.DOUBLE, Types.DATE },
+				new Object[]{ "F", "A", 3, 61.5, enrolled },
+				new Object[]{ "M", null, null, null, null });
+		assertTrue(rs.next());
+		Visit v = visits.mapRow(rs);
+		assertEquals('F', v.getSex());
+		assertEquals('A', v.getGrade());
+		assertEquals(3, v.getVisits());
+		assertEquals(61.5, v.getWeight());
+		assertEquals(enrolled, v.getEnrolled());
+
+		// null columns leave wrappers null rather than zero
+		assertTrue(rs.next());
+		v = visits.mapRow(rs);
+		assertEquals('M', v.getSex());
+		assertNull(v.getGrade());
+		assertNull(v.getVisits());
+		assertNull(v.getWeight());
+		assertNull(v.getEnrolled());
+	}
+}
@@ -0,0 +1,140 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.conical.common.bbl.db.DbConnectionBroker;
+import org.conical.common.bbl.db.PoolConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs many more concurrent requests than there are connections through a
+ * DbConnectionBroker, on a large set of platform threads and, on JDK 21
+ * and later, on virtual threads.  The virtual thread run fails if any
+ * request pins its carrier thread inside the pool; on earlier JDKs it is
+ * skipped.
+ *
+ * @author rdoherty
+ */
+public class DbConnectionBrokerStressTest {
+
+	private static final int REQUESTS = 10000;
+	private static final int POOL_SIZE = 20;
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+	private static final String POOL_PACKAGE = "org.conical.common.bbl.db.";
+
+	private DbConnectionBroker _broker;
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		if (_broker != null) {
+			_broker.destroy(0);
+		}
+	}
+
+	@Test
+	public void testManyPlatformThreadsShareSmallPool() throws Exception {
+		runRequests(Executors.newFixedThreadPool(200));
+	}
+
+	@Test
+	public void testManyVirtualThreadsShareSmallPoolWithoutPinning() throws Exception {
+		ExecutorService exec = newVirtualThreadExecutor();
+		assumeTrue(exec != null, "Virtual threads need JDK 21 or later");
+
+		Queue<String> pinnedStacks = new ConcurrentLinkedQueue<>();
+		AtomicInteger flushes = new AtomicInteger();
+		try (RecordingStream events = new RecordingStream()) {
+			events.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+			events.onEvent(PINNED_EVENT, event -> {
+				StringBuilder stack = new StringBuilder();
+				boolean inPool = false;
+				if (event.getStackTrace() != null) {
+					for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+						String method = frame.getMethod().getType().getName() + "." + frame.getMethod().getName();
+						inPool |= method.startsWith(POOL_PACKAGE);
+						stack.append("\n\tat ").append(method);
+					}
+				}
+				if (inPool) {
+					pinnedStacks.add(stack.toString());
+				}
+			});
+			events.onFlush(flushes::incrementAndGet);
+			events.startAsync();
+
+			runRequests(exec);
+
+			// events are delivered in batches; wait for one full flush after the run
+			int seen = flushes.get();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (flushes.get() < seen + 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+		}
+		assertTrue(pinnedStacks.isEmpty(), "Virtual threads pinned in the pool:" + String.join("\n", pinnedStacks));
+	}
+
+	/**
+	 * Runs every request on the passed executor against a pool of
+	 * POOL_SIZE connections, then shuts the executor down
+	 */
+	private void runRequests(ExecutorService exec) throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "stress",
+				"user", "pass", POOL_SIZE, POOL_SIZE, 1.0, new PoolConfig().setCheckoutTimeout(60000));
+
+		AtomicInteger completed = new AtomicInteger();
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				results.add(exec.submit(() -> {
+					try (Connection conn = _broker.getConnection();
+						 PreparedStatement ps = conn.prepareStatement("select 1")) {
+						ps.executeQuery().close();
+						Thread.sleep(1);
+					}
+					completed.incrementAndGet();
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get(120, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			exec.shutdownNow();
+		}
+		assertEquals(REQUESTS, completed.get());
+		assertTrue(_broker.getSize() <= POOL_SIZE);
+	}
+
+	/**
+	 * Returns a virtual-thread-per-task executor, or null if this JDK has none
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
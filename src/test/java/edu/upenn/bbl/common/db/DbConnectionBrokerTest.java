@@ -0,0 +1,692 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.conical.common.bbl.db.ConnectionLease;
+import org.conical.common.bbl.db.DbConnectionBroker;
+import org.conical.common.bbl.db.PoolConfig;
+import org.conical.common.bbl.db.UnitOfWork;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests checkout and return behavior of DbConnectionBroker against the
+ * in-memory StubDriver.
+ *
+ * @author rdoherty
+ */
+public class DbConnectionBrokerTest {
+
+	private DbConnectionBroker _broker;
+
+	private DbConnectionBroker newBroker(int minConns, int maxConns) throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", minConns, maxConns, 1.0);
+		return _broker;
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		if (_broker != null) {
+			_broker.destroy(0);
+		}
+	}
+
+	@Test
+	public void testCheckoutAndReturn() throws Exception {
+		DbConnectionBroker broker = newBroker(2, 4);
+		assertEquals(2, broker.getSize());
+
+		Connection c1 = broker.getConnection();
+		Connection c2 = broker.getConnection();
+		Connection c3 = broker.getConnection();
+		assertEquals(3, broker.getSize());
+		assertFalse(c1.isClosed());
+		c1.close();
+		c2.close();
+		c3.close();
+
+		// pool does not grow when idle connections are available
+		broker.getConnection().close();
+		assertEquals(3, broker.getSize());
+	}
+
+	@Test
+	public void testStaleHandleDoesNotFreeOtherCheckout() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 2);
+		Connection first = broker.getConnection();
+		Connection physical = first.unwrap(Connection.class);
+		first.close();
+
+		// same thread gets the same slot back under a new checkout
+		Connection second = broker.getConnection();
+		assertSame(physical, second.unwrap(Connection.class));
+
+		// returning the first handle again must not free the second checkout
+		first.close();
+		Connection third = broker.getConnection();
+		assertNotSame(physical, third.unwrap(Connection.class));
+		second.close();
+		third.close();
+	}
+
+	@Test
+	public void testSessionStateIsResetOnReturn() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		int rollbacks = StubDriver.ROLLBACKS.get();
+		Connection conn = broker.getConnection();
+		conn.setAutoCommit(false);
+		conn.setReadOnly(true);
+		conn.close();
+		assertTrue(conn.isClosed());
+		assertEquals(rollbacks + 1, StubDriver.ROLLBACKS.get());
+
+		conn = broker.getConnection();
+		assertTrue(conn.getAutoCommit());
+		assertFalse(conn.isReadOnly());
+		conn.close();
+
+		// a clean checkout is returned untouched
+		assertEquals(rollbacks + 1, StubDriver.ROLLBACKS.get());
+
+		// a session already out of auto-commit, e.g. by init SQL, is rolled back once used
+		conn = broker.getConnection();
+		conn.unwrap(Connection.class).setAutoCommit(false);
+		conn.close();
+		assertEquals(rollbacks + 1, StubDriver.ROLLBACKS.get());
+		conn = broker.getConnection();
+		conn.createStatement().execute("update visit set note = null");
+		conn.close();
+		assertEquals(rollbacks + 2, StubDriver.ROLLBACKS.get());
+	}
+
+	@Test
+	public void testWaiterIsHandedReturnedConnection() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		broker.setCheckoutTimeout(10000);
+		Connection held = broker.getConnection();
+		Connection physical = held.unwrap(Connection.class);
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			Future<Connection> waiting = exec.submit(() -> broker.getConnection());
+			while (broker.getWaiterCount() == 0) {
+				Thread.sleep(10);
+			}
+			held.close();
+			Connection handedOver = waiting.get(5, TimeUnit.SECONDS);
+			assertSame(physical, handedOver.unwrap(Connection.class));
+			handedOver.close();
+		}
+		finally {
+			exec.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testWaiterOpensConnectionAfterFailedReopen() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, new PoolConfig().setCheckoutTimeout(10000));
+		Connection held = _broker.getConnection();
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			Future<Connection> waiting = exec.submit(() -> _broker.getConnection());
+			Thread.sleep(100);
+
+			// the held connection is recycled on return, but the database is down
+			StubDriver.REFUSE_CONNECTIONS = true;
+			try {
+				_broker.recycleAll();
+				held.close();
+				Thread.sleep(300);
+			}
+			finally {
+				StubDriver.REFUSE_CONNECTIONS = false;
+			}
+			assertFalse(waiting.isDone());
+
+			// once it is back, the waiter opens the replacement itself
+			long start = System.currentTimeMillis();
+			waiting.get(5, TimeUnit.SECONDS).close();
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertEquals(1, _broker.getSize());
+		}
+		finally {
+			exec.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testExhaustedPoolTimesOutAndRejects() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		broker.setCheckoutTimeout(200);
+		Connection held = broker.getConnection();
+
+		long start = System.currentTimeMillis();
+		assertThrows(SQLTransientConnectionException.class, () -> broker.getConnection());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+
+		broker.setMaxWaiters(0);
+		assertThrows(SQLTransientConnectionException.class, () -> broker.getConnection());
+		held.close();
+		broker.getConnection().close();
+	}
+
+	@Test
+	public void testBackgroundWarmUp() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 4, 8, 1.0, new PoolConfig().setWarmUp(PoolConfig.WarmUp.BACKGROUND));
+		_broker.getReadyFuture().get(5, TimeUnit.SECONDS);
+		assertTrue(_broker.isReady());
+		assertEquals(4, _broker.getSize());
+	}
+
+	@Test
+	public void testBackgroundWarmUpDoesNotBlockOnUnreachableDatabase() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), "jdbc:unreachable:test",
+				"user", "pass", 4, 8, 1.0, new PoolConfig()
+					.setWarmUp(PoolConfig.WarmUp.BACKGROUND)
+					.setWarmUpAttempts(2)
+					.setWarmUpRetryInterval(10));
+		assertFalse(_broker.isReady());
+		ExecutionException e = assertThrows(ExecutionException.class,
+				() -> _broker.getReadyFuture().get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof SQLException);
+		assertFalse(_broker.isReady());
+	}
+
+	@Test
+	public void testIdleConnectionsAreEvicted() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 4, 1.0, new PoolConfig()
+					.setIdleTimeout(100)
+					.setMinIdle(1)
+					.setHousekeepingInterval(20));
+		List<Connection> conns = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			conns.add(_broker.getConnection());
+		}
+		assertEquals(4, _broker.getSize());
+		for (Connection conn : conns) {
+			conn.close();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (_broker.getSize() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(1, _broker.getSize());
+
+		// pool grows again on demand
+		Connection c1 = _broker.getConnection();
+		Connection c2 = _broker.getConnection();
+		assertEquals(2, _broker.getSize());
+		c1.close();
+		c2.close();
+	}
+
+	@Test
+	public void testPreparedStatementsAreCached() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, new PoolConfig().setStatementCacheSize(2));
+		Connection conn = _broker.getConnection();
+		PreparedStatement ps = conn.prepareStatement("select 1");
+		PreparedStatement physical = ps.unwrap(PreparedStatement.class);
+		ps.executeQuery();
+		ps.close();
+		assertTrue(ps.isClosed());
+		assertThrows(SQLException.class, () -> ps.executeQuery());
+		assertFalse(physical.isClosed());
+		conn.close();
+
+		// same SQL on the next checkout reuses the driver's statement
+		conn = _broker.getConnection();
+		PreparedStatement again = conn.prepareStatement("select 1");
+		assertSame(physical, again.unwrap(PreparedStatement.class));
+		assertEquals(1, _broker.getStatementCacheHits());
+
+		// statements whose settings were changed are not returned to the cache
+		again.setMaxRows(10);
+		again.close();
+		assertTrue(physical.isClosed());
+		conn.close();
+	}
+
+	@Test
+	public void testStatementsLeftOpenAreClosedOnReturn() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		Connection conn = broker.getConnection();
+		Statement closed = conn.createStatement();
+		closed.close();
+		Statement leaked = conn.createStatement();
+		ResultSet rs = leaked.executeQuery("select 1");
+		PreparedStatement ps = conn.prepareStatement("select 2");
+		conn.close();
+
+		assertTrue(leaked.isClosed());
+		assertTrue(rs.isClosed());
+		assertTrue(ps.isClosed());
+		assertEquals(2, broker.getStatementsForceClosed());
+		assertEquals(1, broker.getResultSetsForceClosed());
+	}
+
+	@Test
+	public void testRunawayQueryIsCancelled() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, new PoolConfig()
+					.setQueryTimeout(1)
+					.setQueryWatchdogInterval(50));
+		int opened = StubDriver.OPENED.get();
+		Connection conn = _broker.getConnection();
+		Statement stmt = conn.createStatement();
+		assertEquals(1, stmt.getQueryTimeout());
+		long start = System.currentTimeMillis();
+		assertThrows(SQLException.class, () -> stmt.executeQuery(StubDriver.HANG_SQL));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(1, _broker.getQueriesCancelled());
+		conn.close();
+
+		// the connection survives and goes back to the pool
+		assertEquals(1, _broker.getIdleConnections());
+		assertEquals(opened, StubDriver.OPENED.get());
+	}
+
+	@Test
+	public void testNewConnectionsAreInitializedAndWarm() throws Exception {
+		String initSql = "set search_path to test_" + System.nanoTime();
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, new PoolConfig()
+					.setInitSql(Arrays.asList(initSql))
+					.setWarmStatements(Arrays.asList("select 1", "select 2")));
+		assertTrue(StubDriver.EXECUTED.contains(initSql));
+
+		// the first use of a warm statement is already a cache hit
+		try (Connection conn = _broker.getConnection()) {
+			conn.prepareStatement("select 2").close();
+		}
+		assertEquals(1, _broker.getStatementCacheHits());
+		assertEquals(0, _broker.getStatementCacheMisses());
+	}
+
+	@Test
+	public void testRecycleAllReplacesConnectionsOneAtATime() throws Exception {
+		DbConnectionBroker broker = newBroker(2, 2);
+		Connection held = broker.getConnection();
+		int opened = StubDriver.OPENED.get();
+		broker.recycleAll();
+
+		// the idle connection is replaced straight away
+		long deadline = System.currentTimeMillis() + 5000;
+		while (StubDriver.OPENED.get() < opened + 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(opened + 1, StubDriver.OPENED.get());
+		assertFalse(held.isClosed());
+
+		// the checked out one when it is returned
+		held.close();
+		deadline = System.currentTimeMillis() + 5000;
+		while (StubDriver.OPENED.get() < opened + 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(opened + 2, StubDriver.OPENED.get());
+		assertEquals(2, broker.getSize());
+	}
+
+	@Test
+	public void testDestroyFinishesWhenLastConnectionIsReturned() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		Connection conn = broker.getConnection();
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			exec.submit(() -> {
+				Thread.sleep(100);
+				conn.close();
+				return null;
+			});
+			long start = System.currentTimeMillis();
+			broker.destroy(10000);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		}
+		finally {
+			exec.shutdownNow();
+			_broker = null;
+		}
+	}
+
+	@Test
+	public void testLaneReserveAndPriority() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 0, 3, 1.0, new PoolConfig()
+					.addLane("interactive", 1)
+					.setCheckoutTimeout(100));
+
+		// batch work cannot take the connection kept for the interactive lane
+		Connection batch1 = _broker.getConnection("batch");
+		Connection batch2 = _broker.getConnection();
+		assertThrows(SQLTransientConnectionException.class, () -> _broker.getConnection("batch"));
+		Connection interactive1 = _broker.getConnection("interactive");
+
+		// once the pool is full, a returned connection goes to the waiting
+		// interactive borrower even though a batch borrower queued first
+		_broker.setCheckoutTimeout(5000);
+		ExecutorService exec = Executors.newFixedThreadPool(2);
+		try {
+			Future<Connection> batch3 = exec.submit(() -> _broker.getConnection("batch"));
+			Thread.sleep(100);
+			Future<Connection> interactive2 = exec.submit(() -> _broker.getConnection("interactive"));
+			Thread.sleep(100);
+			batch1.close();
+			Connection interactive2Conn = interactive2.get(5, TimeUnit.SECONDS);
+			assertFalse(batch3.isDone());
+			interactive2Conn.close();
+			batch3.get(5, TimeUnit.SECONDS).close();
+		}
+		finally {
+			exec.shutdownNow();
+		}
+		batch2.close();
+		interactive1.close();
+		assertEquals(0, _broker.getActiveConnections());
+	}
+
+	@Test
+	public void testBulkLeaseIsAllOrNothing() throws Exception {
+		DbConnectionBroker broker = newBroker(0, 3);
+		assertThrows(IllegalArgumentException.class, () -> broker.leaseConnections(4, 100));
+
+		// two of three connections are free: the lease takes neither
+		Connection held = broker.getConnection();
+		assertThrows(SQLTransientConnectionException.class, () -> broker.leaseConnections(3, 100));
+		assertEquals(1, broker.getActiveConnections());
+		held.close();
+
+		try (ConnectionLease lease = broker.leaseConnections(3, 1000)) {
+			assertEquals(3, broker.getActiveConnections());
+			Set<Connection> used = ConcurrentHashMap.newKeySet();
+			List<ConnectionLease.Task<Integer>> tasks = new ArrayList<>();
+			for (int i = 0; i < 7; i++) {
+				int part = i;
+				tasks.add(conn -> {
+					used.add(conn);
+					return part * part;
+				});
+			}
+			assertEquals(Arrays.asList(0, 1, 4, 9, 16, 25, 36), lease.runPartitioned(tasks));
+			assertTrue(lease.getConnections().containsAll(used));
+
+			tasks.set(2, conn -> { throw new SQLException("part 2 failed"); });
+			SQLException e = assertThrows(SQLException.class, () -> lease.runPartitioned(tasks));
+			assertEquals("part 2 failed", e.getMessage());
+		}
+		assertEquals(0, broker.getActiveConnections());
+		broker.destroy(0);
+
+		// leases are bounded by the working limit, not by a higher ceiling
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 0, 2, 1.0, new PoolConfig().setMaxConnectionsCeiling(4));
+		assertThrows(IllegalArgumentException.class, () -> _broker.leaseConnections(3, 100));
+		_broker.leaseConnections(2, 1000).close();
+	}
+
+	@Test
+	public void testMetricsAreExposedOverJmx() throws Exception {
+		DbConnectionBroker broker = newBroker(1, 1);
+		broker.setCheckoutTimeout(50);
+		ObjectName name = broker.registerMBean("test");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		Connection held = broker.getConnection();
+		assertEquals(1, server.getAttribute(name, "ActiveConnections"));
+		assertEquals(0, server.getAttribute(name, "IdleConnections"));
+		assertEquals(-1L, server.getAttribute(name, "MillisSinceLastExhaustion"));
+		assertThrows(SQLTransientConnectionException.class, () -> broker.getConnection());
+		held.close();
+
+		assertEquals(1L, server.getAttribute(name, "CheckoutTimeouts"));
+		assertTrue((Long)server.getAttribute(name, "MillisSinceLastExhaustion") >= 0);
+		assertEquals(1L, server.getAttribute(name, "ConnectionsCreated"));
+		long holds = 0;
+		for (long count : (long[])server.getAttribute(name, "HoldTimeHistogram")) {
+			holds += count;
+		}
+		assertEquals(1, holds);
+		assertTrue(((long[])server.getAttribute(name, "SlotAges"))[0] >= 0);
+
+		broker.destroy(0);
+		_broker = null;
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testFailedHostIsSkipped() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(),
+				Arrays.asList("jdbc:unreachable:test", StubDriver.URL_PREFIX + "standby"),
+				"user", "pass", 1, 4, 1.0, new PoolConfig());
+		assertEquals(1, _broker.getConnectionFailures());
+		List<Connection> conns = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			conns.add(_broker.getConnection());
+		}
+		// the failed host is not tried again until its back-off has passed
+		assertEquals(1, _broker.getConnectionFailures());
+		assertEquals(3, _broker.getConnectionsCreated());
+		for (Connection conn : conns) {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testStandbyIsUnusedWhilePreferredHostIsUp() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(),
+				Arrays.asList(StubDriver.URL_PREFIX + "primary", StubDriver.URL_PREFIX + "standby"),
+				"user", "pass", 0, 4, 1.0, new PoolConfig());
+		List<Connection> conns = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			conns.add(_broker.getConnection());
+		}
+		assertTrue(_broker.getHostStatus()[1].contains("latency=unknown"), _broker.getHostStatus()[1]);
+		for (Connection conn : conns) {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testEachHostIsTriedOnceWhenAllAreDown() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(),
+				Arrays.asList("jdbc:unreachable:a", "jdbc:unreachable:b"),
+				"user", "pass", 0, 2, 1.0, new PoolConfig().setCheckoutTimeout(100));
+		assertThrows(SQLException.class, () -> _broker.getConnection());
+		assertThrows(SQLException.class, () -> _broker.getConnection());
+		// neither host is due for a probe, but both are still tried, once each
+		String[] hosts = _broker.getHostStatus();
+		assertEquals(hosts[0].substring(hosts[0].indexOf("failures=")).split(" ")[0],
+				hosts[1].substring(hosts[1].indexOf("failures=")).split(" ")[0], String.join(", ", hosts));
+	}
+
+	@Test
+	public void testAdaptiveSizingGrowsAndShrinksLimit() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, new PoolConfig()
+					.setMaxConnectionsCeiling(4)
+					.setAdaptiveTargetWait(5)
+					.setAdaptiveInterval(50)
+					.setHousekeepingInterval(10));
+		assertEquals(1, _broker.getConnectionLimit());
+
+		// one request waits well past the target while the pool is full
+		Connection held = _broker.getConnection();
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			Future<Connection> waiting = exec.submit(() -> _broker.getConnection());
+			Thread.sleep(100);
+			held.close();
+			waiting.get(5, TimeUnit.SECONDS).close();
+		}
+		finally {
+			exec.shutdownNow();
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (_broker.getConnectionLimit() == 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(_broker.getConnectionLimit() > 1);
+
+		// an idle pool drifts back down to its minimum
+		deadline = System.currentTimeMillis() + 5000;
+		while (_broker.getConnectionLimit() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, _broker.getConnectionLimit());
+	}
+
+	@Test
+	public void testCeilingBelowMaximumCapsPool() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 3, 6, 1.0, new PoolConfig()
+					.setMaxConnectionsCeiling(2)
+					.setCheckoutTimeout(100));
+		assertEquals(2, _broker.getMaxConnections());
+		assertEquals(2, _broker.getConnectionLimit());
+		assertTrue(_broker.getSize() <= 2);
+
+		Connection first = _broker.getConnection();
+		Connection second = _broker.getConnection();
+		assertThrows(SQLTransientConnectionException.class, () -> _broker.getConnection());
+		assertEquals(2, _broker.getSize());
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testLeakedConnectionsAreReportedOrReclaimed() throws Exception {
+		// WARN: each checkout is reported once and stays usable
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, 1, new PoolConfig()
+					.setLeakMode(PoolConfig.LeakMode.WARN)
+					.setHousekeepingInterval(50));
+		Connection held = _broker.getConnection();
+		awaitLeaks(_broker, 1);
+		Thread.sleep(300);
+		assertEquals(1, _broker.getLeaksDetected());
+		assertFalse(held.isClosed());
+		held.createStatement().execute("select 1");
+		held.close();
+
+		held = _broker.getConnection();
+		awaitLeaks(_broker, 2);
+		held.close();
+		_broker.destroy(0);
+
+		// RECLAIM: the connection is aborted and its slot refilled
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 1, 1, 1.0, 1, new PoolConfig()
+					.setLeakMode(PoolConfig.LeakMode.RECLAIM)
+					.setHousekeepingInterval(50)
+					.setCheckoutTimeout(100));
+		held = _broker.getConnection();
+		Connection physical = held.unwrap(Connection.class);
+		awaitLeaks(_broker, 1);
+		Connection replacement = _broker.getConnection();
+		assertNotSame(physical, replacement.unwrap(Connection.class));
+		assertEquals(1, _broker.getLeaksDetected());
+		// returning the reclaimed handle does not free the replacement
+		held.close();
+		assertThrows(SQLTransientConnectionException.class, () -> _broker.getConnection());
+		replacement.close();
+	}
+
+	private static void awaitLeaks(DbConnectionBroker broker, long leaks) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (broker.getLeaksDetected() < leaks && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(leaks, broker.getLeaksDetected());
+	}
+
+	@Test
+	public void testUnitOfWorkSharesOneCheckout() throws Exception {
+		DbConnectionBroker broker = newBroker(0, 4);
+		try (UnitOfWork uow = UnitOfWork.begin(broker)) {
+			Connection outer = broker.getConnection();
+			Connection inner = broker.getConnection();
+			assertSame(outer, inner);
+			assertEquals(1, broker.getActiveConnections());
+			inner.close();
+			assertFalse(outer.isClosed());
+			outer.createStatement().close();
+			try (UnitOfWork nested = UnitOfWork.begin(broker)) {
+				broker.getConnection().close();
+			}
+			outer.close();
+			assertEquals(1, broker.getActiveConnections());
+		}
+		assertEquals(0, broker.getActiveConnections());
+
+		// outside the scope each call is a separate checkout again
+		Connection c1 = broker.getConnection();
+		Connection c2 = broker.getConnection();
+		assertNotSame(c1, c2);
+		c1.close();
+		c2.close();
+	}
+
+	@Test
+	public void testConcurrentCheckoutNeverSharesConnection() throws Exception {
+		DbConnectionBroker broker = newBroker(5, 10);
+		Set<String> inUse = ConcurrentHashMap.newKeySet();
+		AtomicInteger collisions = new AtomicInteger();
+		ExecutorService exec = Executors.newFixedThreadPool(10);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int t = 0; t < 10; t++) {
+				results.add(exec.submit(() -> {
+					for (int i = 0; i < 2000; i++) {
+						Connection conn = broker.getConnection();
+						String physical = conn.unwrap(Connection.class).toString();
+						if (!inUse.add(physical)) {
+							collisions.incrementAndGet();
+						}
+						inUse.remove(physical);
+						conn.close();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			exec.shutdownNow();
+		}
+		assertEquals(0, collisions.get());
+		assertTrue(broker.getSize() <= 10);
+	}
+}
@@ -0,0 +1,183 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.conical.common.bbl.db.BatchWriter;
+import org.conical.common.bbl.db.DatabaseType;
+import org.conical.common.bbl.db.DbConnectionBroker;
+import org.conical.common.bbl.db.DbUtil;
+import org.conical.common.bbl.db.SequenceAllocator;
+import org.conical.common.bbl.enums.ifc.Coded;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests DbUtil and the bulk query, ID and write helpers alongside it
+ * against StubDriver pools.
+ *
+ * @author rdoherty
+ */
+public class DbUtilTest {
+
+	private enum Status implements Coded {
+		ACTIVE(1), ON_HOLD(7);
+
+		private final int _code;
+
+		Status(int code) {
+			_code = code;
+		}
+
+		@Override
+		public int getCode() {
+			return _code;
+		}
+	}
+
+	private enum Phase { BASELINE, FOLLOW_UP }
+
+	private DbConnectionBroker _broker;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		_broker = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.URL_PREFIX + "test",
+				"user", "pass", 0, 2, 1.0);
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		_broker.destroy(0);
+	}
+
+	@Test
+	public void testStreamReleasesConnectionWhenConsumedOrClosed() throws Exception {
+		List<Integer> rows = DbUtil.stream(_broker, StubDriver.ROWS_SQL_PREFIX + "5", rs -> rs.getInt(1))
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5), rows);
+		assertEquals(0, _broker.getActiveConnections());
+
+		// a stream abandoned part way through is released by close()
+		try (Stream<String> names = DbUtil.stream(_broker, 100, StubDriver.ROWS_SQL_PREFIX + "1000",
+				rs -> "row " + rs.getString(1), "unused")) {
+			assertEquals(Arrays.asList("row 1", "row 2"), names.limit(2).collect(Collectors.toList()));
+			assertEquals(1, _broker.getActiveConnections());
+		}
+		assertEquals(0, _broker.getActiveConnections());
+	}
+
+	@Test
+	public void testSequenceAllocatorReservesBlocks() throws Exception {
+		StubDriver.SEQUENCE.set(1);
+		StubDriver.SEQUENCE_INCREMENT = 50;
+		SequenceAllocator ids = new SequenceAllocator(_broker, DatabaseType.ORACLE, 50);
+		Set<Long> seen = ConcurrentHashMap.newKeySet();
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				workers.add(exec.submit(() -> {
+					for (int i = 0; i < 250; i++) {
+						seen.add(ids.next("subject_seq"));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		}
+		finally {
+			exec.shutdownNow();
+			StubDriver.SEQUENCE_INCREMENT = 1;
+		}
+		// 1000 distinct IDs, 1 to 1000, in 20 round trips
+		assertEquals(1000, seen.size());
+		assertEquals(1000L, (long)seen.stream().max(Long::compare).get());
+		assertEquals(1 + 20 * 50, StubDriver.SEQUENCE.get());
+		assertEquals(0, _broker.getActiveConnections());
+	}
+
+	@Test
+	public void testBatchWriterCommitsChunksAndSkipsBadRows() throws Exception {
+		int commits = StubDriver.COMMITS.get();
+		int released = StubDriver.RELEASED_SAVEPOINTS.get();
+		try (Connection conn = _broker.getConnection()) {
+			BatchWriter writer = new BatchWriter(conn, "visit", "subject_id", "note")
+					.setBatchSize(10)
+					.setCommitInterval(2);
+			for (int i = 0; i < 45; i++) {
+				writer.add(i, (i == 17 ? StubDriver.BAD_VALUE : "ok"));
+			}
+			// two full transactions of two chunks each
+			assertEquals(commits + 2, StubDriver.COMMITS.get());
+			writer.close();
+			assertTrue(conn.getAutoCommit());
+
+			assertEquals(44, writer.getRowsWritten());
+			assertEquals(1, writer.getFailures().size());
+			assertEquals(17, writer.getFailures().get(0).getRowNumber());
+			assertEquals(commits + 3, StubDriver.COMMITS.get());
+			// four clean chunks, then the nine good rows of the chunk written row by row
+			assertEquals(released + 4 + 9, StubDriver.RELEASED_SAVEPOINTS.get());
+		}
+	}
+
+	@Test
+	public void testBatchWriterRollsBackBeforeRestoringAutoCommit() throws Exception {
+		try (Connection conn = _broker.getConnection()) {
+			BatchWriter writer = new BatchWriter(conn, "visit", "subject_id");
+			writer.add(1);
+			int rollbacks = StubDriver.ROLLBACKS.get();
+			StubDriver.FAIL_COMMITS = true;
+			try {
+				SQLException e = assertThrows(SQLException.class, () -> writer.close());
+				assertEquals("Commit failed", e.getMessage());
+				assertEquals(0, e.getSuppressed().length);
+			}
+			finally {
+				StubDriver.FAIL_COMMITS = false;
+			}
+			assertEquals(rollbacks + 1, StubDriver.ROLLBACKS.get());
+			assertTrue(conn.getAutoCommit());
+		}
+	}
+
+	@Test
+	public void testBatchWriterCopiesValuesAsTheyAreBound() throws Exception {
+		try (Connection conn = _broker.getConnection();
+			 BatchWriter writer = new BatchWriter(conn, "visit", "status", "phase")) {
+			writer.add(Status.ON_HOLD, Phase.FOLLOW_UP);
+		}
+		List<Object> bound = StubDriver.BOUND;
+		assertEquals(Arrays.asList(7, "FOLLOW_UP"), bound);
+
+		DbConnectionBroker pg = new DbConnectionBroker(StubDriver.class.getName(), StubDriver.PG_URL_PREFIX + "test",
+				"user", "pass", 0, 1, 1.0);
+		StubDriver.COPIED.clear();
+		try (Connection conn = pg.getConnection();
+			 BatchWriter writer = new BatchWriter(conn, "visit", "status", "phase")) {
+			writer.add(Status.ON_HOLD, Phase.FOLLOW_UP);
+		}
+		finally {
+			pg.destroy(0);
+		}
+		assertEquals(Arrays.asList("\"" + bound.get(0) + "\",\"" + bound.get(1) + "\"\n"),
+				new ArrayList<>(StubDriver.COPIED));
+	}
+}
@@ -0,0 +1,83 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.conical.common.bbl.db.DbConnectionBroker;
+import org.conical.common.bbl.db.NamedSql;
+import org.conical.common.bbl.util.ParameterMap;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests parsing, expansion and binding of named-parameter SQL.
+ *
+ * @author rdoherty
+ */
+public class NamedSqlTest {
+
+	@Test
+	public void testParsesAndExpandsParameters() throws Exception {
+		String text = "select id::text, ':skip' from visit -- :skip\n" +
+				"where subject_id = :id and status in (:statuses) /* :skip */ and site = :site or owner = :id";
+		NamedSql sql = NamedSql.parse(text);
+		assertSame(sql, NamedSql.parse(text));
+		assertEquals(Arrays.asList("id", "statuses", "site"), sql.getParameterNames());
+
+		ParameterMap params = ParameterMap.builder()
+				.add("id", 42)
+				.add("statuses", Arrays.asList("ACTIVE", "ON_HOLD"))
+				.add("site", null)
+				.getMap();
+		assertEquals("select id::text, ':skip' from visit -- :skip\n" +
+				"where subject_id = ? and status in (?, ?) /* :skip */ and site = ? or owner = ?",
+				sql.toPositionalSql(params));
+		params.put("statuses", Collections.emptyList());
+		assertEquals("select id::text, ':skip' from visit -- :skip\n" +
+				"where subject_id = ? and status in (null) /* :skip */ and site = ? or owner = ?",
+				sql.toPositionalSql(params));
+
+		params.remove("site");
+		assertThrows(IllegalArgumentException.class, () -> sql.toPositionalSql(params));
+	}
+
+	@Test
+	public void testPreparesBoundStatement() throws Exception {
+		DbConnectionBroker broker = new DbConnectionBroker(StubDriver.class.getName(),
+				StubDriver.URL_PREFIX + "test", "user", "pass", 0, 1, 1.0);
+		try (Connection conn = broker.getConnection();
+			 PreparedStatement ps = NamedSql.parse("update visit set note = :note where id in (:ids)")
+					.prepare(conn, ParameterMap.builder()
+						.add("note", StubDriver.BAD_VALUE)
+						.add("ids", new Integer[]{ 1, 2, 3 })
+						.getMap())) {
+			// the stub rejects updates bound to its bad value
+			assertThrows(SQLException.class, () -> ps.executeUpdate());
+			assertEquals(Arrays.asList(StubDriver.BAD_VALUE, 1, 2, 3), StubDriver.BOUND);
+		}
+		try (Connection conn = broker.getConnection();
+			 PreparedStatement ps = NamedSql.parse("update visit set note = :note where id = any(:ids)")
+					.prepare(conn, ParameterMap.builder()
+						.add("note", "ok")
+						.add("ids", NamedSql.arrayOf("integer", Arrays.asList(1, 2, 3)))
+						.getMap())) {
+			assertEquals(1, ps.executeUpdate());
+			assertEquals(2, StubDriver.BOUND.size());
+			assertEquals("ok", StubDriver.BOUND.get(0));
+			Array ids = (Array)StubDriver.BOUND.get(1);
+			assertEquals("integer", ids.getBaseTypeName());
+			assertArrayEquals(new Object[]{ 1, 2, 3 }, (Object[])ids.getArray());
+		}
+		finally {
+			broker.destroy(0);
+		}
+	}
+}
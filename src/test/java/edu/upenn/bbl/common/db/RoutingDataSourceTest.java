@@ -0,0 +1,80 @@
+package edu.upenn.bbl.common.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.conical.common.bbl.db.DbConnectionBroker;
+import org.conical.common.bbl.db.PoolConfig;
+import org.conical.common.bbl.db.RoutingDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests read/write routing of RoutingDataSource over StubDriver pools.
+ *
+ * @author rdoherty
+ */
+public class RoutingDataSourceTest {
+
+	private List<DbConnectionBroker> _brokers = new ArrayList<>();
+
+	private DbConnectionBroker newBroker(String url) throws Exception {
+		DbConnectionBroker broker = new DbConnectionBroker(StubDriver.class.getName(), url,
+				"user", "pass", 0, 4, 1.0, new PoolConfig()
+					.setWarmUp(PoolConfig.WarmUp.BACKGROUND)
+					.setCheckoutTimeout(50));
+		_brokers.add(broker);
+		return broker;
+	}
+
+	@AfterEach
+	public void tearDown() throws Exception {
+		for (DbConnectionBroker broker : _brokers) {
+			broker.destroy(0);
+		}
+	}
+
+	@Test
+	public void testReadsGoToLeastLoadedReplica() throws Exception {
+		DbConnectionBroker primary = newBroker(StubDriver.URL_PREFIX + "primary");
+		DbConnectionBroker replica1 = newBroker(StubDriver.URL_PREFIX + "replica1");
+		DbConnectionBroker replica2 = newBroker(StubDriver.URL_PREFIX + "replica2");
+		RoutingDataSource ds = new RoutingDataSource(primary, Arrays.asList(replica1, replica2));
+
+		Connection write = ds.getConnection();
+		write.createStatement().close();
+		assertEquals(1, primary.getActiveConnections());
+
+		Connection read1 = ds.getConnection();
+		read1.setReadOnly(true);
+		read1.createStatement().close();
+		Connection read2 = ds.getReadOnlyConnection();
+		assertTrue(read2.isReadOnly());
+		assertEquals(1, primary.getActiveConnections());
+		assertEquals(1, replica1.getActiveConnections());
+		assertEquals(1, replica2.getActiveConnections());
+
+		write.close();
+		read1.close();
+		read2.close();
+		assertEquals(0, primary.getActiveConnections() + replica1.getActiveConnections() +
+				replica2.getActiveConnections());
+	}
+
+	@Test
+	public void testReadsFallBackToPrimaryWhenReplicaIsDown() throws Exception {
+		DbConnectionBroker primary = newBroker(StubDriver.URL_PREFIX + "primary");
+		DbConnectionBroker replica = newBroker("jdbc:unreachable:replica");
+		RoutingDataSource ds = new RoutingDataSource(primary, Arrays.asList(replica));
+
+		Connection read = ds.getReadOnlyConnection();
+		assertEquals(1, primary.getActiveConnections());
+		assertEquals(0, ds.getAvailableReplicaCount());
+		read.close();
+	}
+}
@@ -0,0 +1,105 @@
+package edu.upenn.bbl.common.db;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.conical.common.bbl.db.CompiledRowMapper;
+import org.conical.common.bbl.db.RowMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.upenn.bbl.common.db.CompiledRowMapperTest.Status;
+import edu.upenn.bbl.common.db.CompiledRowMapperTest.Subject;
+import edu.upenn.bbl.common.db.CompiledRowMapperTest.SubjectSummary;
+
+/**
+ * Compares CompiledRowMapper with hand-written mapping code.  Each
+ * benchmark maps every row of the same in-memory result set, so the cost
+ * of reading columns is common to all of them and the difference is the
+ * cost of mapping.  Not run by the build; to run it:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) edu.upenn.bbl.common.db.RowMapperBenchmark
+ * </pre>
+ *
+ * @author rdoherty
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMapperBenchmark {
+
+	private static final int ROWS = 1000;
+
+	private ResultSet _rs;
+	private final RowMapper<Subject> _beanMapper = CompiledRowMapper.of(Subject.class);
+	private final RowMapper<SubjectSummary> _recordMapper = CompiledRowMapper.of(SubjectSummary.class);
+
+	@Setup
+	public void setUp() throws SQLException {
+		Object[][] rows = new Object[ROWS][];
+		for (int i = 0; i < ROWS; i++) {
+			rows[i] = new Object[]{ i, "subject" + i, i / 10.0, (i % 2 == 0 ? "ACTIVE" : "WITHDRAWN") };
+		}
+		_rs = CompiledRowMapperTest.subjects(rows);
+	}
+
+	@Benchmark
+	public void handWrittenBean(Blackhole bh) throws SQLException {
+		_rs.beforeFirst();
+		while (_rs.next()) {
+			Subject s = new Subject();
+			s.setSubjectId(_rs.getInt(1));
+			s.setName(_rs.getString(2));
+			s.setScore(_rs.getDouble(3));
+			String status = _rs.getString(4);
+			s.setStatus(status == null ? null : Status.valueOf(status));
+			bh.consume(s);
+		}
+	}
+
+	@Benchmark
+	public void compiledBean(Blackhole bh) throws SQLException {
+		_rs.beforeFirst();
+		while (_rs.next()) {
+			bh.consume(_beanMapper.mapRow(_rs));
+		}
+	}
+
+	@Benchmark
+	public void handWrittenRecord(Blackhole bh) throws SQLException {
+		_rs.beforeFirst();
+		while (_rs.next()) {
+			bh.consume(new SubjectSummary(_rs.getInt(1), _rs.getString(2), 0));
+		}
+	}
+
+	@Benchmark
+	public void compiledRecord(Blackhole bh) throws SQLException {
+		_rs.beforeFirst();
+		while (_rs.next()) {
+			bh.consume(_recordMapper.mapRow(_rs));
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(RowMapperBenchmark.class.getSimpleName()).build()).run();
+	}
+}
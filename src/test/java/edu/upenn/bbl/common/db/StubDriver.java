@@ -0,0 +1,367 @@
+package edu.upenn.bbl.common.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Array;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.Encoding;
+import org.postgresql.core.QueryExecutor;
+
+/**
+ * In-memory JDBC driver used to exercise the connection pool without a
+ * database.  Accepts URLs of the form <code>jdbc:stub:anything</code> and
+ * hands out connections whose statements execute without doing anything
+ * and whose queries return empty result sets.  A query of
+ * <code>HANG_SQL</code> blocks until the statement is cancelled.  URLs of
+ * the form <code>jdbc:stub:pg:anything</code> give connections that also pass
+ * for pgjdbc connections, whose <code>COPY ... FROM STDIN</code> data is kept
+ * in <code>COPIED</code>.
+ *
+ * @author rdoherty
+ */
+public class StubDriver implements Driver {
+
+	public static final String URL_PREFIX = "jdbc:stub:";
+	public static final String PG_URL_PREFIX = URL_PREFIX + "pg:";
+	public static final String HANG_SQL = "hang";
+	// a query "rows:N" returns N rows; every column of row i reads as i
+	public static final String ROWS_SQL_PREFIX = "rows:";
+	// Oracle style "select seq.nextval from dual" queries share one sequence
+	public static final AtomicLong SEQUENCE = new AtomicLong(1);
+	public static volatile int SEQUENCE_INCREMENT = 1;
+	// an update or batched row with this value bound to it is rejected
+	public static final String BAD_VALUE = "bad";
+
+	public static final AtomicInteger OPENED = new AtomicInteger();
+	public static final AtomicInteger CLOSED = new AtomicInteger();
+	public static final AtomicInteger ROLLBACKS = new AtomicInteger();
+	public static final AtomicInteger COMMITS = new AtomicInteger();
+	public static final AtomicInteger RELEASED_SAVEPOINTS = new AtomicInteger();
+	// while set, new connections are refused
+	public static volatile boolean REFUSE_CONNECTIONS = false;
+	// while set, commits fail
+	public static volatile boolean FAIL_COMMITS = false;
+	public static final Queue<String> EXECUTED = new ConcurrentLinkedQueue<String>();
+	// data streamed to COPY ... FROM STDIN on pg connections
+	public static final Queue<String> COPIED = new ConcurrentLinkedQueue<String>();
+	// values bound to the statement last executed or batched, by index from 1
+	public static volatile List<Object> BOUND = Collections.emptyList();
+
+	static {
+		try {
+			DriverManager.registerDriver(new StubDriver());
+		}
+		catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		if (REFUSE_CONNECTIONS) {
+			throw new SQLException("Connection refused");
+		}
+		OPENED.incrementAndGet();
+		if (url.startsWith(PG_URL_PREFIX)) {
+			return proxy(BaseConnection.class, new ConnectionHandler());
+		}
+		return proxy(Connection.class, new ConnectionHandler());
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(URL_PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+		return iface.cast(Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{ iface }, handler));
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) return false;
+		if (type == int.class) return 0;
+		if (type == long.class) return 0L;
+		if (type == double.class) return 0d;
+		if (type == float.class) return 0f;
+		if (type == short.class) return (short)0;
+		if (type == byte.class) return (byte)0;
+		return null;
+	}
+
+	/**
+	 * Base handler: tracks closure and answers identity methods
+	 */
+	private static abstract class StubHandler implements InvocationHandler {
+
+		private static final AtomicInteger ID_SEQUENCE = new AtomicInteger();
+
+		protected final int _id = ID_SEQUENCE.incrementAndGet();
+		protected volatile boolean _closed = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "toString": return getClass().getSimpleName() + "@" + _id;
+				case "hashCode": return _id;
+				case "equals": return proxy == args[0];
+				case "isClosed": return _closed;
+				case "unwrap": return proxy;
+				case "isWrapperFor": return ((Class<?>)args[0]).isInstance(proxy);
+				case "close": _closed = true; return null;
+				default:
+					if (_closed) {
+						throw new SQLException("Object already closed");
+					}
+					return handle(method, args);
+			}
+		}
+
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+	private static class ConnectionHandler extends StubHandler {
+
+		private boolean _autoCommit = true;
+		private boolean _readOnly = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("close") && !_closed) {
+				CLOSED.incrementAndGet();
+			}
+			if (method.getName().equals("getCopyAPI") && !_closed) {
+				return new CopyManager((BaseConnection)proxy);
+			}
+			return super.invoke(proxy, method, args);
+		}
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "isValid": return true;
+				case "getAutoCommit": return _autoCommit;
+				case "setAutoCommit": _autoCommit = (Boolean)args[0]; return null;
+				case "isReadOnly": return _readOnly;
+				case "setReadOnly": _readOnly = (Boolean)args[0]; return null;
+				case "rollback": ROLLBACKS.incrementAndGet(); return null;
+				case "commit":
+					if (FAIL_COMMITS) {
+						throw new SQLException("Commit failed");
+					}
+					COMMITS.incrementAndGet();
+					return null;
+				case "setSavepoint": return proxy(Savepoint.class, new StubHandler(){});
+				case "releaseSavepoint": RELEASED_SAVEPOINTS.incrementAndGet(); return null;
+				case "getTransactionIsolation": return Connection.TRANSACTION_READ_COMMITTED;
+				case "getHoldability": return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+				case "createStatement": return proxy(Statement.class, new StatementHandler(null));
+				case "prepareStatement": return proxy(PreparedStatement.class, new StatementHandler((String)args[0]));
+				case "createArrayOf": return proxy(Array.class, new ArrayHandler((String)args[0], (Object[])args[1]));
+				case "getEncoding": return Encoding.getJVMEncoding(StandardCharsets.UTF_8.name());
+				case "getQueryExecutor": return proxy(QueryExecutor.class, new QueryExecutorHandler());
+				default: return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class StatementHandler extends StubHandler {
+
+		private final CountDownLatch _cancelled = new CountDownLatch(1);
+		private final String _preparedSql;
+		private int _queryTimeout = 0;
+		private boolean _badRow = false;
+		private final List<Object> _params = new ArrayList<Object>();
+		private final List<Boolean> _batch = new ArrayList<Boolean>();
+
+		StatementHandler(String preparedSql) {
+			_preparedSql = preparedSql;
+		}
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			if (method.getName().startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				int index = (Integer)args[0];
+				while (_params.size() < index) {
+					_params.add(null);
+				}
+				_params.set(index - 1, (method.getName().equals("setNull") ? null : args[1]));
+			}
+			switch (method.getName()) {
+				case "getQueryTimeout": return _queryTimeout;
+				case "setQueryTimeout": _queryTimeout = (Integer)args[0]; return null;
+				case "cancel": _cancelled.countDown(); return null;
+				case "execute": EXECUTED.add((String)args[0]); return false;
+				case "setObject": case "setString":
+					_badRow |= BAD_VALUE.equals(args[1]);
+					return null;
+				case "clearParameters": _badRow = false; _params.clear(); return null;
+				case "addBatch": BOUND = new ArrayList<Object>(_params); _batch.add(_badRow); _badRow = false; return null;
+				case "clearBatch": _batch.clear(); return null;
+				case "executeBatch":
+					// stops at the first bad row, like most drivers
+					int done = _batch.indexOf(true);
+					int[] counts = new int[done >= 0 ? done : _batch.size()];
+					Arrays.fill(counts, 1);
+					_batch.clear();
+					if (done >= 0) {
+						throw new BatchUpdateException(counts);
+					}
+					return counts;
+				case "executeUpdate":
+					BOUND = new ArrayList<Object>(_params);
+					boolean bad = _badRow;
+					_badRow = false;
+					if (bad) {
+						throw new SQLException("Rejected row");
+					}
+					return 1;
+				case "executeQuery":
+					if (args != null && HANG_SQL.equals(args[0])) {
+						_cancelled.await();
+						throw new SQLException("Statement cancelled");
+					}
+					String sql = (args != null ? (String)args[0] : _preparedSql);
+					if (sql != null && sql.startsWith(ROWS_SQL_PREFIX)) {
+						return proxy(ResultSet.class, new RowsHandler(Integer.parseInt(sql.substring(ROWS_SQL_PREFIX.length())), 1));
+					}
+					if (sql != null && sql.contains(".nextval")) {
+						return proxy(ResultSet.class, new RowsHandler(1, SEQUENCE.getAndAdd(SEQUENCE_INCREMENT)));
+					}
+					// fall through
+				case "getResultSet":
+					return proxy(ResultSet.class, new StubHandler(){});
+				default: return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class ArrayHandler extends StubHandler {
+
+		private final String _typeName;
+		private final Object[] _elements;
+
+		ArrayHandler(String typeName, Object[] elements) {
+			_typeName = typeName;
+			_elements = elements;
+		}
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "getBaseTypeName": return _typeName;
+				case "getArray": return _elements;
+				default: return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class QueryExecutorHandler extends StubHandler {
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "startCopy": return proxy(CopyIn.class, new CopyInHandler());
+				default: return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class CopyInHandler extends StubHandler {
+
+		private final StringBuilder _data = new StringBuilder();
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "writeToCopy":
+					_data.append(new String((byte[])args[0], (Integer)args[1], (Integer)args[2], StandardCharsets.UTF_8));
+					return null;
+				case "endCopy":
+					COPIED.add(_data.toString());
+					return (long)_data.chars().filter(c -> c == '\n').count();
+				default: return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class RowsHandler extends StubHandler {
+
+		private final int _rows;
+		private final long _first;
+		private int _row = 0;
+
+		RowsHandler(int rows, long first) {
+			_rows = rows;
+			_first = first;
+		}
+
+		@Override
+		protected Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "next": return ++_row <= _rows;
+				case "getInt": return (int)(_first + _row - 1);
+				case "getLong": return _first + _row - 1;
+				case "getString": return String.valueOf(_first + _row - 1);
+				case "getObject": return (int)(_first + _row - 1);
+				default: return super.handle(method, args);
+			}
+		}
+	}
+}